@@ -62,20 +62,22 @@ public class ImageUpload {
           .head()
           .build();
 
-      Response response = client.newCall(request).execute();
+      try (Response response = client.newCall(request).execute()) {
 
-      if (!"registry/2.0".equals(response.header("Docker-Distribution-Api-Version", null))) {
-        throw new IllegalArgumentException("invalid server API version: " + response.header("Docker-Distribution-Api-Version"));
-      }
+        if (!"registry/2.0".equals(response.header("Docker-Distribution-Api-Version", null))) {
+          throw new IllegalArgumentException("invalid server API version: " + response.header("Docker-Distribution-Api-Version"));
+        }
 
-      switch (response.code()) {
-        case 404:
-          return false;
-        case 200:
-          return true;
-      }
+        switch (response.code()) {
+          case 404:
+            return false;
+          case 200:
+            return true;
+        }
 
-      throw new IllegalArgumentException("invalid server response: " + response.code());
+        throw new IllegalArgumentException("invalid server response: " + response.code());
+
+      }
 
     }
     catch (IOException ex) {
@@ -44,8 +44,20 @@ public class SuccessResponse implements UploadResponse {
     return this.changingLayer().get("size").longValue();
   }
 
+  /**
+   * the size of all the stable layers, when the server splits them.
+   */
+
   public long stableSize() {
-    return this.stableLayer().get("size").longValue();
+    JsonNode layers = body().get("stableLayers");
+    if (layers == null) {
+      return this.stableLayer().get("size").longValue();
+    }
+    long size = 0;
+    for (JsonNode layer : layers) {
+      size += layer.get("size").longValue();
+    }
+    return size;
   }
 
   private ObjectNode stableLayer() {
@@ -0,0 +1,148 @@
+package io.zrz.joci.core;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.HashCode;
+
+/**
+ * in-memory view of which blobs the registry has, so lookups don't need to go to the filesystem.
+ *
+ * a bloom filter of every sha256 digest in the store answers negative lookups without a syscall once the startup
+ * {@link #scan(Path, Path)} is complete. the size of recently used blobs is kept in a bounded cache, so a positive lookup
+ * is usually answered from memory too. the location is always derived from the digest, so isn't stored.
+ *
+ * blobs are immutable and never removed by the registry, so entries don't need invalidating.
+ *
+ * @author theo
+ *
+ */
+
+public class BlobIndex {
+
+  private static final Logger log = LoggerFactory.getLogger(BlobIndex.class);
+
+  private static final Pattern SHA256 = Pattern.compile("[0-9a-f]{64}");
+
+  private final BloomFilter<byte[]> filter;
+  private final Cache<HashCode, Long> sizes;
+
+  /**
+   * set once the filter contains everything on disk, at which point a miss is authoritative.
+   */
+
+  private volatile boolean complete;
+
+  /**
+   * @param expectedBlobs
+   *          the number of blobs the filter is sized for. lookups still work past it, but more of them go to disk.
+   * @param maxCachedSizes
+   *          the number of blob sizes to keep in memory.
+   */
+
+  public BlobIndex(final long expectedBlobs, final long maxCachedSizes) {
+    this.filter = BloomFilter.create(Funnels.byteArrayFunnel(), expectedBlobs, 0.01);
+    this.sizes = CacheBuilder.newBuilder().maximumSize(maxCachedSizes).build();
+  }
+
+  private static boolean indexable(final Digest digest) {
+    return digest.algorithm().equals("sha256") && SHA256.matcher(digest.hash()).matches();
+  }
+
+  /**
+   * true if the blob is definitely not in the store.
+   */
+
+  public boolean isAbsent(final Digest digest) {
+    return this.complete && indexable(digest) && !this.filter.mightContain(digest.rawBytes());
+  }
+
+  /**
+   * the size of the blob, if we know it.
+   */
+
+  public Long size(final Digest digest) {
+    if (!indexable(digest)) {
+      return null;
+    }
+    return this.sizes.getIfPresent(digest.toHashCode());
+  }
+
+  /**
+   * records a blob which is in the store.
+   */
+
+  public void add(final Digest digest, final long size) {
+    if (!indexable(digest)) {
+      return;
+    }
+    this.filter.put(digest.rawBytes());
+    this.sizes.put(digest.toHashCode(), size);
+  }
+
+  public boolean isComplete() {
+    return this.complete;
+  }
+
+  /**
+   * adds every blob in the sharded blobs directory and (if given) the flat legacy base to the filter. until this has
+   * completed, negative lookups have to be checked on disk.
+   */
+
+  public void scan(final Path blobs, final Path legacy) throws IOException {
+
+    final long start = System.currentTimeMillis();
+
+    final long count = scan(blobs, Integer.MAX_VALUE, name -> name) + ((legacy == null)
+        ? 0
+        : scan(legacy, 1, name -> name.startsWith("sha256:") ? name.substring(7) : null));
+
+    this.complete = true;
+
+    log.info("indexed {} blobs in {}ms (expected fpp {})", count, System.currentTimeMillis() - start, this.filter.expectedFpp());
+
+  }
+
+  private long scan(final Path dir, final int depth, final Function<String, String> hash) throws IOException {
+
+    final long[] count = new long[1];
+
+    Files.walkFileTree(dir, Collections.emptySet(), depth, new SimpleFileVisitor<Path>() {
+
+      @Override
+      public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+        final String name = hash.apply(file.getFileName().toString());
+        if (attrs.isRegularFile() && name != null && SHA256.matcher(name).matches()) {
+          BlobIndex.this.filter.put(HashCode.fromString(name).asBytes());
+          count[0]++;
+        }
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFileFailed(final Path file, final IOException ex) {
+        log.warn("failed to index {}: {}", file, ex.toString());
+        return FileVisitResult.CONTINUE;
+      }
+
+    });
+
+    return count[0];
+
+  }
+
+}
@@ -4,62 +4,182 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
-import java.util.UUID;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.Optional;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.Range;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hashing;
-import com.google.common.io.ByteSink;
 import com.google.common.io.MoreFiles;
 
 import io.zrz.joci.spi.RegistryProvider;
 import io.zrz.joci.spi.RegistryUploadSession;
 
+/**
+ * registry backed by a local directory.
+ *
+ * blobs are sharded by the first two bytes of their hash, so no directory ends up with millions of entries:
+ *
+ * <pre>
+ * blobs/sha256/ab/cd/abcd...     content
+ * uploads/{uuid}                 uploads in progress
+ * repositories/{name}/manifests  manifests (by digest) and tags (symlinks to them)
+ * </pre>
+ *
+ * a store in the original flat layout is still readable, and can be converted while running with {@link #migrate()}.
+ *
+ * @author theo
+ *
+ */
+
 public class FilesystemRegistry implements RegistryProvider {
 
   private static final Logger log = LoggerFactory.getLogger(FilesystemRegistry.class);
 
+  /**
+   * how long an upload can go without any activity before it's dropped.
+   */
+
+  public static final Duration DEFAULT_UPLOAD_TTL = Duration.ofHours(1);
+
+  /**
+   * the default sizing of the blob index. the filter takes ~12MB for 10M blobs.
+   */
+
+  public static final long DEFAULT_EXPECTED_BLOBS = 10_000_000;
+  public static final long DEFAULT_CACHED_SIZES = 250_000;
+
+  static final String BLOBS = "blobs";
+  static final String UPLOADS = "uploads";
+  static final String REPOSITORIES = "repositories";
+  static final String MANIFESTS = "manifests";
+
   private final Path base;
+  private final Path blobs;
+  private final Path repositories;
+  private final UploadSessionManager uploads;
+  private final BlobIndex index;
+
+  /**
+   * if there may still be content in the flat layout, in which case lookups which miss fall back to it.
+   */
+
+  private volatile boolean legacy;
 
   public FilesystemRegistry(final Path path) {
+    this(path, DEFAULT_UPLOAD_TTL);
+  }
+
+  public FilesystemRegistry(final Path path, final Duration uploadTtl) {
+    this(path, uploadTtl, new BlobIndex(DEFAULT_EXPECTED_BLOBS, DEFAULT_CACHED_SIZES));
+  }
+
+  public FilesystemRegistry(final Path path, final Duration uploadTtl, final BlobIndex index) {
     this.base = path;
+    this.index = index;
+    this.blobs = path.resolve(BLOBS);
+    this.repositories = path.resolve(REPOSITORIES);
+    try {
+      Files.createDirectories(this.blobs);
+      Files.createDirectories(this.repositories);
+      Files.createDirectories(path.resolve(UPLOADS));
+      this.legacy = LayoutMigration.isLegacy(path);
+    }
+    catch (final IOException e) {
+      throw new RuntimeException(e);
+    }
+    if (this.legacy) {
+      log.warn("{} contains content in the flat layout, which should be migrated", path);
+    }
+    this.uploads = new UploadSessionManager(path.resolve(UPLOADS), uploadTtl);
+  }
+
+  public boolean hasLegacyLayout() {
+    return this.legacy;
   }
 
-  private class Session implements RegistryUploadSession {
+  /**
+   * moves anything in the flat layout into the sharded one. safe to run while serving requests.
+   */
 
-    private final String uploadId;
+  public void migrate() throws IOException {
+    new LayoutMigration(this.base).run();
+    this.legacy = LayoutMigration.isLegacy(this.base);
+  }
+
+  /**
+   * fills the blob index from disk, after which lookups of blobs we don't have never touch the filesystem.
+   */
+
+  public void indexBlobs() throws IOException {
+    this.index.scan(this.blobs, this.legacy ? this.base : null);
+  }
+
+  /**
+   * where the blob with the given digest is stored, e.g blobs/sha256/ab/cd/abcd....
+   */
 
-    public Session(final String uploadId) {
-      this.uploadId = uploadId;
+  public static Path shard(final Path blobs, final Digest digest) {
+    final String hash = digest.hash();
+    if (hash.length() < 4 || hash.indexOf('/') != -1 || hash.indexOf('.') != -1) {
+      throw new IllegalArgumentException("invalid digest " + digest);
     }
+    return blobs.resolve(digest.algorithm())
+        .resolve(hash.substring(0, 2))
+        .resolve(hash.substring(2, 4))
+        .resolve(hash);
+  }
 
-    @Override
-    public String uploadId() {
-      return this.uploadId;
+  /**
+   * the file for the blob, which may still be in the flat layout.
+   */
+
+  private Path locate(final Digest digest) {
+
+    final Path path = shard(this.blobs, digest);
+
+    if (!this.legacy || Files.exists(path)) {
+      return path;
     }
 
-    @Override
-    public void patch(final Range<Long> range, final InputStream content) {
-      log.debug("added range {}", range);
+    final Path flat = this.base.resolve(digest.toString());
+
+    if (Files.exists(flat)) {
+      return flat;
     }
 
+    // could have been moved between the two checks.
+    return path;
+
   }
 
   @Override
   public RegistryUploadSession startUpload() {
-    final String uploadId = UUID.randomUUID().toString();
-    return new Session(uploadId);
+    return this.uploads.start();
   }
 
   @Override
   public RegistryUploadSession resumeUpload(final String uploadId) {
-    return new Session(uploadId);
+    return this.uploads.get(uploadId);
+  }
+
+  @Override
+  public boolean cancelUpload(final String uploadId) throws IOException {
+    return this.uploads.cancel(uploadId);
+  }
+
+  public UploadSessionManager uploads() {
+    return this.uploads;
   }
 
   @Override
@@ -69,103 +189,198 @@ public class FilesystemRegistry implements RegistryProvider {
 
   @Override
   public boolean containsBlob(final Digest digest) {
-    return Files.exists(this.base.resolve(digest.toString()));
+    return this.lookup(digest) != null;
   }
 
   @Override
   public BlobInfo stat(final Digest digest) {
 
-    final Path path = this.resolve(digest.toString());
+    final BlobInfo blob = this.lookup(digest);
 
-    if (!Files.exists(path)) {
-      log.warn("missing blob: {} at {}", digest, path);
+    if (blob == null) {
+      log.warn("missing blob: {}", digest);
+    }
+
+    return blob;
+
+  }
+
+  /**
+   * finds the blob, going to the index first. a blob the index has never seen costs no syscalls once it's been
+   * populated, one we have costs none if its size is cached.
+   */
+
+  private BlobInfo lookup(final Digest digest) {
+
+    // the filter may not have seen content which is mid-migration, so can't be trusted until that's done.
+    if (!this.legacy && this.index.isAbsent(digest)) {
       return null;
     }
 
-    return new BlobInfo() {
+    final Long size = this.index.size(digest);
 
-      @Override
-      public long size() {
-        try {
-          return Files.size(path);
-        }
-        catch (IOException e) {
-          throw new RuntimeException(e);
-        }
-      }
+    if (size != null) {
+      return new FileBlob(digest, this.locate(digest), size);
+    }
 
-      @Override
-      public InputStream openStream() {
-        try {
-          return new FileInputStream(path.toFile());
-        }
-        catch (FileNotFoundException e) {
-          throw new RuntimeException(e);
-        }
-      }
+    final Path path = this.locate(digest);
 
-      @Override
-      public Digest digest() {
-        return digest;
-      }
+    final BasicFileAttributes attrs;
+
+    try {
+      attrs = Files.readAttributes(path, BasicFileAttributes.class);
+    }
+    catch (final NoSuchFileException e) {
+      return null;
+    }
+    catch (final IOException e) {
+      throw new RuntimeException(e);
+    }
+
+    this.index.add(digest, attrs.size());
+
+    return new FileBlob(digest, path, attrs.size());
+
+  }
+
+  /**
+   * a blob on disk. blobs are immutable, so the size is taken once.
+   */
+
+  private static class FileBlob implements BlobInfo {
+
+    private final Digest digest;
+    private final Path path;
+    private final long size;
 
-      public String toString() {
-        return "FSBlob(" + digest + ", " + path + ", " + size() + ")";
+    FileBlob(final Digest digest, final Path path, final long size) {
+      this.digest = digest;
+      this.path = path;
+      this.size = size;
+    }
+
+    @Override
+    public long size() {
+      return this.size;
+    }
+
+    @Override
+    public InputStream openStream() {
+      try {
+        return new FileInputStream(this.path.toFile());
       }
+      catch (final FileNotFoundException e) {
+        throw new RuntimeException(e);
+      }
+    }
 
-    };
+    @Override
+    public Digest digest() {
+      return this.digest;
+    }
+
+    @Override
+    public Optional<Path> path() {
+      return Optional.of(this.path);
+    }
+
+    @Override
+    public String toString() {
+      return "FSBlob(" + this.digest + ", " + this.path + ", " + this.size + ")";
+    }
 
   }
 
+  /**
+   * while a repository hasn't been migrated, everything for it (including new tags) stays in the flat layout, as tags
+   * link to manifests in the same directory.
+   */
+
   @Override
   public Path resolve(final String registry, final String version) {
-    return this.base.resolve(registry + "/manifests/" + version);
+
+    final Path manifests = this.repositories.resolve(registry).resolve(MANIFESTS);
+
+    if (this.legacy) {
+
+      final Path flat = this.base.resolve(registry).resolve(MANIFESTS);
+
+      if (Files.isDirectory(flat) && !Files.exists(manifests.resolve(version), LinkOption.NOFOLLOW_LINKS)) {
+        return flat.resolve(version);
+      }
+
+    }
+
+    return manifests.resolve(version);
+
   }
 
   @Override
   public BlobInfo completeUpload(final String uploadId, final Digest digest) throws IOException {
 
-    final Path file = this.resolve(uploadId);
+    final Path file = this.uploads.resolve(uploadId);
+
+    final UploadSessionManager.Session session = this.uploads.remove(uploadId);
 
-    final HashCode hash = MoreFiles.asByteSource(file).hash(Hashing.sha256());
+    HashCode hash = (session == null) ? null : session.hash();
+
+    if (hash == null) {
+      // not written through a session we know about (e.g, from before a restart), so need to read it back.
+      log.debug("rehashing upload {}", uploadId);
+      hash = MoreFiles.asByteSource(file).hash(Hashing.sha256());
+    }
 
     if (!hash.toString().equals(digest.hash())) {
       throw new IllegalArgumentException("invalid hash");
     }
 
-    final Path target = this.resolve(digest.toString());
+    final BlobInfo existing = this.lookup(digest);
 
-    if (Files.exists(target)) {
+    if (existing != null) {
       Files.delete(file);
-    }
-    else {
-      Files.move(file, this.resolve(digest.toString()));
+      return existing;
     }
 
-    return this.stat(digest);
+    final Path target = shard(this.blobs, digest);
+    Files.createDirectories(target.getParent());
+    Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+
+    final long size = Files.size(target);
+
+    this.index.add(digest, size);
+
+    return new FileBlob(digest, target, size);
 
   }
 
   @Override
   public BlobInfo putBlob(byte[] data) {
 
-    final HashCode hash = Hashing.sha256().hashBytes(data);
+    final Digest digest = new Digest(Hashing.sha256().hashBytes(data));
 
-    Path target = resolve(new Digest(hash).toString());
+    final BlobInfo existing = this.lookup(digest);
 
-    if (Files.exists(target)) {
-      return this.stat(new Digest(hash));
+    if (existing != null) {
+      return existing;
     }
 
+    final Path target = shard(this.blobs, digest);
+
     try {
+      Files.createDirectories(target.getParent());
       MoreFiles.asByteSink(target, StandardOpenOption.CREATE_NEW)
           .write(data);
     }
+    catch (FileAlreadyExistsException e) {
+      // raced with another put of the same content.
+    }
     catch (IOException e) {
       throw new RuntimeException(e);
     }
 
-    return this.stat(new Digest(hash));
+    this.index.add(digest, data.length);
+
+    return new FileBlob(digest, target, data.length);
 
   }
 
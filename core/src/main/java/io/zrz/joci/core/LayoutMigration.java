@@ -0,0 +1,255 @@
+package io.zrz.joci.core;
+
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * converts a store from the original flat layout (blobs, uploads and repositories all directly under the base) to the
+ * sharded one used by {@link FilesystemRegistry}.
+ *
+ * everything is moved with an atomic rename, and the registry falls back to the flat location for anything not yet
+ * moved, so it can run against a live registry. run it in-process with {@link FilesystemRegistry#migrate()}, or stand
+ * alone with:
+ *
+ * <pre>
+ * java io.zrz.joci.core.LayoutMigration /path/to/images
+ * </pre>
+ *
+ * @author theo
+ *
+ */
+
+public class LayoutMigration {
+
+  private static final Logger log = LoggerFactory.getLogger(LayoutMigration.class);
+
+  private static final Pattern BLOB = Pattern.compile("sha256:[0-9a-f]{64}");
+  private static final Pattern UPLOAD = Pattern.compile("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
+
+  private final Path base;
+
+  private long blobs;
+  private long uploads;
+  private long repositories;
+
+  public LayoutMigration(final Path base) {
+    this.base = base;
+  }
+
+  /**
+   * if there is anything in the base which predates the sharded layout.
+   */
+
+  public static boolean isLegacy(final Path base) throws IOException {
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(base)) {
+      for (final Path entry : entries) {
+        if (isLegacyEntry(entry)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static boolean isLegacyEntry(final Path entry) throws IOException {
+    final String name = entry.getFileName().toString();
+    if (BLOB.matcher(name).matches() || UPLOAD.matcher(name).matches()) {
+      return true;
+    }
+    if (!Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS) || isLayoutDirectory(name)) {
+      return false;
+    }
+    // the same as run() looks for, but stopping at the first.
+    try (Stream<Path> walk = Files.walk(entry)) {
+      return walk.anyMatch(LayoutMigration::isManifests);
+    }
+  }
+
+  public void run() throws IOException {
+
+    final long start = System.currentTimeMillis();
+
+    log.info("migrating {} to sharded layout", this.base);
+
+    final List<Path> registries = new ArrayList<>();
+
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(this.base)) {
+
+      for (final Path entry : entries) {
+
+        final String name = entry.getFileName().toString();
+
+        if (BLOB.matcher(name).matches()) {
+          this.moveBlob(entry, new Digest(name));
+        }
+        else if (UPLOAD.matcher(name).matches()) {
+          this.move(entry, this.base.resolve(FilesystemRegistry.UPLOADS).resolve(name));
+          this.uploads++;
+        }
+        else if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS) && !isLayoutDirectory(name)) {
+          registries.add(entry);
+        }
+
+      }
+
+    }
+
+    for (final Path top : registries) {
+      for (final Path manifests : findManifests(top)) {
+        this.moveRepository(manifests);
+      }
+    }
+
+    log.info("migrated {} blobs, {} uploads and {} repositories in {}ms",
+        this.blobs,
+        this.uploads,
+        this.repositories,
+        System.currentTimeMillis() - start);
+
+  }
+
+  private static boolean isLayoutDirectory(final String name) {
+    return name.startsWith("_")
+        || name.equals(FilesystemRegistry.BLOBS)
+        || name.equals(FilesystemRegistry.UPLOADS)
+        || name.equals(FilesystemRegistry.REPOSITORIES)
+        || name.equals("lost+found");
+  }
+
+  private void moveBlob(final Path file, final Digest digest) throws IOException {
+
+    this.move(file, FilesystemRegistry.shard(this.base.resolve(FilesystemRegistry.BLOBS), digest));
+
+    if (++this.blobs % 10000 == 0) {
+      log.info("moved {} blobs", this.blobs);
+    }
+
+  }
+
+  /**
+   * repositories may be nested (e.g, "library/alpine"), so look for each manifests directory.
+   */
+
+  private static List<Path> findManifests(final Path top) throws IOException {
+    try (Stream<Path> walk = Files.walk(top)) {
+      return walk
+          .filter(LayoutMigration::isManifests)
+          .collect(Collectors.toList());
+    }
+  }
+
+  private static boolean isManifests(final Path path) {
+    return path.getFileName().toString().equals(FilesystemRegistry.MANIFESTS) && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS);
+  }
+
+  /**
+   * moves the manifests of a single repository. tags are symlinks to their manifest in the same directory, so any which
+   * spell out the directory are made relative first, otherwise they would dangle once moved.
+   */
+
+  private void moveRepository(final Path manifests) throws IOException {
+
+    final Path name = this.base.relativize(manifests.getParent());
+
+    final Path target = this.base.resolve(FilesystemRegistry.REPOSITORIES).resolve(name).resolve(FilesystemRegistry.MANIFESTS);
+
+    log.info("moving repository {}", name);
+
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(manifests)) {
+      for (final Path entry : entries) {
+        if (Files.isSymbolicLink(entry)) {
+          relink(entry);
+        }
+      }
+    }
+
+    Files.createDirectories(target.getParent());
+
+    try {
+      Files.move(manifests, target, StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch (final FileAlreadyExistsException | DirectoryNotEmptyException ex) {
+      // something was already written in the new location, so merge them.
+      try (DirectoryStream<Path> entries = Files.newDirectoryStream(manifests)) {
+        for (final Path entry : entries) {
+          this.move(entry, target.resolve(entry.getFileName()));
+        }
+      }
+      Files.delete(manifests);
+    }
+
+    // tidy up the (now hopefully empty) parents.
+    for (Path dir = manifests.getParent(); !dir.equals(this.base); dir = dir.getParent()) {
+      try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+        if (entries.iterator().hasNext()) {
+          break;
+        }
+      }
+      Files.delete(dir);
+    }
+
+    this.repositories++;
+
+  }
+
+  private static void relink(final Path link) throws IOException {
+
+    final Path target = Files.readSymbolicLink(link);
+
+    if (target.getParent() == null) {
+      return;
+    }
+
+    if (!target.getParent().equals(link.getParent()) && !target.getParent().equals(link.toAbsolutePath().getParent())) {
+      return;
+    }
+
+    final Path temp = link.resolveSibling("." + link.getFileName() + ".relink");
+
+    Files.deleteIfExists(temp);
+    Files.createSymbolicLink(temp, target.getFileName());
+    Files.move(temp, link, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+  }
+
+  /**
+   * moves a single file, unless the target already exists (content addressed, so it's the same) in which case the
+   * source is dropped.
+   */
+
+  private void move(final Path source, final Path target) throws IOException {
+    Files.createDirectories(target.getParent());
+    if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+      Files.delete(source);
+      return;
+    }
+    Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  public static void main(final String[] args) throws IOException {
+
+    if (args.length != 1) {
+      System.err.println("usage: LayoutMigration /path/to/images");
+      System.exit(255);
+    }
+
+    new LayoutMigration(Paths.get(args[0])).run();
+
+  }
+
+}
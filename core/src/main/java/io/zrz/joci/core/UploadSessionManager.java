@@ -0,0 +1,327 @@
+package io.zrz.joci.core;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Range;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+import io.zrz.joci.spi.RegistryUploadSession;
+
+/**
+ * tracks blob uploads in progress.
+ *
+ * each session appends to a temp file named by its upload id, and keeps the running hash and offset so chunks can be
+ * validated and the digest is known as soon as the last byte is written. sessions which haven't seen any activity for
+ * the TTL are dropped along with their temp file by {@link #expire()}, which the server calls periodically.
+ *
+ * sessions are only tracked in memory. an upload from before a restart is picked back up from its temp file (which is
+ * re-hashed once) the first time it's resumed, and temp files nobody comes back for are removed once they're older than
+ * the TTL.
+ *
+ * @author theo
+ *
+ */
+
+public class UploadSessionManager {
+
+  private static final Logger log = LoggerFactory.getLogger(UploadSessionManager.class);
+
+  private static final Pattern UPLOAD_ID = Pattern.compile("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
+
+  private final Path directory;
+  private final long ttl;
+
+  private final ConcurrentMap<String, Session> sessions = new ConcurrentHashMap<>();
+
+  public UploadSessionManager(final Path directory, final Duration ttl) {
+    this.directory = directory;
+    this.ttl = ttl.toNanos();
+  }
+
+  /**
+   * the temp file for the given upload.
+   */
+
+  public Path resolve(final String uploadId) {
+    if (!UPLOAD_ID.matcher(uploadId).matches()) {
+      throw new IllegalArgumentException("invalid upload id");
+    }
+    return this.directory.resolve(uploadId);
+  }
+
+  public Session start() {
+    final Session session = new Session(UUID.randomUUID().toString());
+    this.sessions.put(session.uploadId(), session);
+    return session;
+  }
+
+  /**
+   * the session for the given upload, or null if it's not one we know about.
+   */
+
+  public Session get(final String uploadId) {
+
+    if (!UPLOAD_ID.matcher(uploadId).matches()) {
+      return null;
+    }
+
+    final Session session = this.sessions.get(uploadId);
+
+    if (session != null) {
+      session.touch();
+      return session;
+    }
+
+    if (!Files.exists(this.resolve(uploadId))) {
+      return null;
+    }
+
+    return this.sessions.computeIfAbsent(uploadId, id -> {
+      try {
+        return new Session(id).adopt();
+      }
+      catch (final IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+
+  }
+
+  /**
+   * stops tracking the session. the temp file is left for the caller to move or delete.
+   */
+
+  public Session remove(final String uploadId) {
+    return this.sessions.remove(uploadId);
+  }
+
+  /**
+   * removes the upload and its temp file.
+   *
+   * @return false if there was no such upload.
+   */
+
+  public boolean cancel(final String uploadId) throws IOException {
+    if (!UPLOAD_ID.matcher(uploadId).matches()) {
+      return false;
+    }
+    final Session session = this.sessions.remove(uploadId);
+    return Files.deleteIfExists(this.resolve(uploadId)) || session != null;
+  }
+
+  /**
+   * drops sessions which have been idle for longer than the TTL, and deletes their temp files.
+   *
+   * @return the number of sessions expired.
+   */
+
+  public int expire() {
+
+    final long now = System.nanoTime();
+
+    int expired = 0;
+
+    for (final Session session : this.sessions.values()) {
+
+      if (now - session.touched <= this.ttl || !this.sessions.remove(session.uploadId(), session)) {
+        continue;
+      }
+
+      log.info("expiring upload {} after {} bytes", session.uploadId(), session.offset());
+
+      try {
+        Files.deleteIfExists(session.file);
+      }
+      catch (final IOException e) {
+        log.warn("failed to remove expired upload {}: {}", session.file, e.toString());
+      }
+
+      expired++;
+
+    }
+
+    return expired + this.expireOrphans();
+
+  }
+
+  /**
+   * temp files which don't belong to any session (e.g, left from before a restart) are removed once they're older than
+   * the TTL.
+   */
+
+  private int expireOrphans() {
+
+    final long cutoff = System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(this.ttl);
+
+    int expired = 0;
+
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory)) {
+
+      for (final Path file : files) {
+
+        final String uploadId = file.getFileName().toString();
+
+        if (!UPLOAD_ID.matcher(uploadId).matches() || this.sessions.containsKey(uploadId)) {
+          continue;
+        }
+
+        if (Files.getLastModifiedTime(file).toMillis() < cutoff) {
+          log.info("removing abandoned upload {}", uploadId);
+          Files.deleteIfExists(file);
+          expired++;
+        }
+
+      }
+
+    }
+    catch (final IOException e) {
+      log.warn("failed to check for abandoned uploads: {}", e.toString());
+    }
+
+    return expired;
+
+  }
+
+  public class Session implements RegistryUploadSession {
+
+    private final String uploadId;
+    private final Path file;
+    private final Hasher hasher;
+    private final Object writer = new Object();
+    private long offset;
+    private volatile long touched;
+
+    private Session(final String uploadId) {
+      this.uploadId = uploadId;
+      this.file = resolve(uploadId);
+      this.hasher = Hashing.sha256().newHasher();
+      this.touched = System.nanoTime();
+    }
+
+    /**
+     * picks up content written before we started tracking the upload.
+     */
+
+    private Session adopt() throws IOException {
+      log.info("resuming untracked upload {}", this.uploadId);
+      try (InputStream in = Files.newInputStream(this.file)) {
+        final byte[] buffer = new byte[65536];
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+          update(buffer, 0, len);
+        }
+      }
+      return this;
+    }
+
+    @Override
+    public String uploadId() {
+      return this.uploadId;
+    }
+
+    @Override
+    public synchronized long offset() {
+      return this.offset;
+    }
+
+    /**
+     * chunks are written one at a time. the offset can still be read while one is in progress.
+     */
+
+    @Override
+    public long patch(final Range<Long> range, final InputStream content) throws IOException {
+
+      synchronized (this.writer) {
+
+        final long offset = this.offset();
+
+        if (range.hasLowerBound() && range.lowerEndpoint() != offset) {
+          throw new IllegalArgumentException("upload " + this.uploadId + " is at offset " + offset + ", not " + range.lowerEndpoint());
+        }
+
+        log.debug("appending range {} to {}", range, this.uploadId);
+
+        // never take more than the client said it was sending.
+        final InputStream in = range.hasUpperBound()
+            ? ByteStreams.limit(content, range.upperEndpoint() - offset + 1)
+            : content;
+
+        try (OutputStream out = this.openStream()) {
+          return ByteStreams.copy(in, out);
+        }
+
+      }
+
+    }
+
+    @Override
+    public OutputStream openStream() throws IOException {
+
+      final OutputStream file = Files.newOutputStream(
+          this.file,
+          StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE,
+          StandardOpenOption.APPEND);
+
+      return new BufferedOutputStream(new FilterOutputStream(file) {
+
+        @Override
+        public void write(final int b) throws IOException {
+          this.out.write(b);
+          update(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+          this.out.write(b, off, len);
+          update(b, off, len);
+        }
+
+      });
+
+    }
+
+    private synchronized void update(final byte[] b, final int off, final int len) {
+      this.hasher.putBytes(b, off, len);
+      this.offset += len;
+      this.touched = System.nanoTime();
+    }
+
+    private void touch() {
+      this.touched = System.nanoTime();
+    }
+
+    /**
+     * the hash of everything written, if it all went through this session. can only be called once.
+     */
+
+    synchronized HashCode hash() throws IOException {
+      if (!Files.exists(this.file) || Files.size(this.file) != this.offset) {
+        return null;
+      }
+      return this.hasher.hash();
+    }
+
+  }
+
+}
@@ -5,6 +5,7 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Path;
+import java.util.Optional;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.hash.HashCode;
@@ -15,8 +16,20 @@ public interface RegistryProvider {
 
   RegistryUploadSession startUpload();
 
+  /**
+   * the upload with the given id, or null if it doesn't exist (or has expired).
+   */
+
   RegistryUploadSession resumeUpload(String uploadId);
 
+  /**
+   * abandons the upload, removing anything received so far.
+   *
+   * @return false if there was no such upload.
+   */
+
+  boolean cancelUpload(String uploadId) throws IOException;
+
   Path resolve(String string);
 
   /**
@@ -41,6 +54,16 @@ public interface RegistryProvider {
 
     Digest digest();
 
+    /**
+     * the local file containing the blob content, if there is one.
+     *
+     * allows the transport to hand the file straight to the socket rather than copying it through the heap.
+     */
+
+    default Optional<Path> path() {
+      return Optional.empty();
+    }
+
   }
 
   BlobInfo completeUpload(String uploadId, Digest digest) throws IOException;
@@ -1,6 +1,8 @@
 package io.zrz.joci.spi;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 
 import com.google.common.collect.Range;
 
@@ -8,6 +10,31 @@ public interface RegistryUploadSession {
 
   String uploadId();
 
-  void patch(Range<Long> range, InputStream content);
+  /**
+   * appends the content to the upload.
+   *
+   * if the range has a lower bound it must be the current offset, and no more than the upper bound is taken from the
+   * content.
+   *
+   * @return the number of bytes written.
+   * @throws IllegalArgumentException
+   *           if the range doesn't start at the current offset.
+   */
+
+  long patch(Range<Long> range, InputStream content) throws IOException;
+
+  /**
+   * opens a stream which appends to the upload.
+   *
+   * bytes are hashed as they are written, so completing the upload doesn't need to read them back.
+   */
+
+  OutputStream openStream() throws IOException;
+
+  /**
+   * the number of bytes received so far.
+   */
+
+  long offset();
 
 }
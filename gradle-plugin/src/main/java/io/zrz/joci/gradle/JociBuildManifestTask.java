@@ -71,6 +71,9 @@ public class JociBuildManifestTask extends DefaultTask {
       // start
       JpxUpload ctx = new JpxUpload("https://" + repo + "/v2");
 
+      // kept between builds, so the JARs it writes are replaced each time rather than left in a new temporary directory.
+      ctx.workDir(getProject().getBuildDir().toPath().resolve("joci"));
+
       ctx.mainClass(plugin.extension.mainClass);
 
       plugin.extension.env.forEach(ctx::env);
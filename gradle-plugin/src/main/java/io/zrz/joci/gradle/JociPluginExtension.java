@@ -16,6 +16,10 @@ public class JociPluginExtension {
   public String tag;
   public String mainClass;
   public boolean forceSync = false;
+  public String compression;
+  public Integer compressionLevel;
+  public String entrypoint;
+  public boolean normalizeJars = false;
 
   @javax.inject.Inject
   public JociPluginExtension(ObjectFactory objectFactory) {
@@ -33,6 +37,39 @@ public class JociPluginExtension {
     this.mainClass = mainClass;
   }
 
+  /**
+   * how the registry stores the layers, "gzip", "zstd" or "none". unless a level is given too, it's the default level
+   * for that compression, rather than the registry's own.
+   */
+
+  public void compression(String compression) {
+    this.compression = compression;
+  }
+
+  /**
+   * the level the registry compresses the layers at, e.g 1-9 for gzip or 1-22 for zstd.
+   */
+
+  public void compressionLevel(int compressionLevel) {
+    this.compressionLevel = compressionLevel;
+  }
+
+  /**
+   * how the image starts the JVM, "script" or "argfile".
+   */
+
+  public void entrypoint(String entrypoint) {
+    this.entrypoint = entrypoint;
+  }
+
+  /**
+   * if the project's own and SNAPSHOT JARs are normalized, so a rebuild which doesn't change them isn't pushed again.
+   */
+
+  public void normalizeJars(boolean normalizeJars) {
+    this.normalizeJars = normalizeJars;
+  }
+
   public void jvmArgs(String... args) {
     this.jvmArgs.addAll(Arrays.asList(args));
   }
@@ -25,6 +25,8 @@ import com.google.common.base.Stopwatch;
 import com.google.common.io.Files;
 
 import io.zrz.joci.client.SuccessResponse;
+import io.zrz.joci.jpx.JpxCompression;
+import io.zrz.joci.jpx.JpxEntrypoint;
 import io.zrz.joci.jpx.JpxUpload;
 
 public class JociPushTask extends DefaultTask {
@@ -84,6 +86,12 @@ public class JociPushTask extends DefaultTask {
       // start
       JpxUpload ctx = new JpxUpload("https://" + repo + "/v2");
 
+      // kept between builds, so the JARs it writes are replaced each time rather than left in a new temporary directory.
+      ctx.workDir(getProject().getBuildDir().toPath().resolve("joci"));
+
+      // before the manifest is loaded, as it's applied as the JARs are added.
+      ctx.normalizeJars(plugin.extension.normalizeJars);
+
       ctx.loadManifest(this.input);
 
       // ctx.mainClass(plugin.extension.mainClass);
@@ -92,6 +100,18 @@ public class JociPushTask extends DefaultTask {
       plugin.extension.jvmArgs.forEach(ctx::option);
       plugin.extension.exposedPorts.forEach(ctx::expose);
 
+      if (plugin.extension.compression != null) {
+        ctx.compression(JpxCompression.fromId(plugin.extension.compression));
+      }
+
+      if (plugin.extension.compressionLevel != null) {
+        ctx.compressionLevel(plugin.extension.compressionLevel);
+      }
+
+      if (plugin.extension.entrypoint != null) {
+        ctx.entrypoint(JpxEntrypoint.fromId(plugin.extension.entrypoint));
+      }
+
       // .configurations.runtime.resolvedConfiguration.resolvedArtifacts
       // Set<ResolvedArtifact> artifacts = this.getProject()
       // .getConfigurations()
@@ -0,0 +1,131 @@
+package io.zrz.joci.jpx;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorInputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorOutputStream;
+
+/**
+ * how a JPX layer is stored, given as "compression" (and optionally "compressionLevel") in the JPX manifest.
+ *
+ * @author theo
+ *
+ */
+
+public enum JpxCompression {
+
+  /**
+   * a gzipped tar, which every client understands.
+   */
+
+  GZIP("application/vnd.docker.image.rootfs.diff.tar.gzip", 6, 1, 9),
+
+  /**
+   * a zstd compressed tar, which is much quicker to decompress when materializing. needs a recent client to pull.
+   */
+
+  ZSTD("application/vnd.oci.image.layer.v1.tar+zstd", 3, 1, 22),
+
+  /**
+   * a plain tar. JARs are already deflated, so gzipping them again costs a lot of CPU to save a few percent.
+   */
+
+  NONE("application/vnd.docker.image.rootfs.diff.tar", 0, 0, 0);
+
+  private final String mediaType;
+  private final int defaultLevel;
+  private final int minLevel;
+  private final int maxLevel;
+
+  JpxCompression(String mediaType, int defaultLevel, int minLevel, int maxLevel) {
+    this.mediaType = mediaType;
+    this.defaultLevel = defaultLevel;
+    this.minLevel = minLevel;
+    this.maxLevel = maxLevel;
+  }
+
+  /**
+   * the media type of layers stored this way.
+   */
+
+  public String mediaType() {
+    return this.mediaType;
+  }
+
+  /**
+   * the level used when none is given.
+   */
+
+  public int defaultLevel() {
+    return this.defaultLevel;
+  }
+
+  /**
+   * checks the level is valid for this compression, returning it.
+   */
+
+  public int checkLevel(int level) {
+    if (level < this.minLevel || level > this.maxLevel) {
+      throw new IllegalArgumentException(
+          String.format("%s level must be between %d and %d, got %d", this.id(), this.minLevel, this.maxLevel, level));
+    }
+    return level;
+  }
+
+  /**
+   * wraps the stream so what's written to it is stored this way at the given level. closing it closes the target.
+   */
+
+  public OutputStream compress(OutputStream out, int level) throws IOException {
+    switch (this) {
+      case GZIP:
+        return new ParallelGzipOutputStream(
+            out,
+            ForkJoinPool.commonPool(),
+            checkLevel(level),
+            ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE);
+      case ZSTD:
+        return new ZstdCompressorOutputStream(out, checkLevel(level));
+      default:
+        return out;
+    }
+  }
+
+  /**
+   * wraps a stream of data stored this way, giving the plain tar. gzip streams may have more than one member, as JPX
+   * layers do.
+   */
+
+  public InputStream decompress(InputStream in) throws IOException {
+    switch (this) {
+      case GZIP:
+        return new GzipCompressorInputStream(in, true);
+      case ZSTD:
+        return new ZstdCompressorInputStream(in);
+      default:
+        return in;
+    }
+  }
+
+  /**
+   * the name used in the manifest, e.g "gzip" or "none".
+   */
+
+  public String id() {
+    return this.name().toLowerCase();
+  }
+
+  public static JpxCompression fromId(String id) {
+    for (JpxCompression compression : values()) {
+      if (compression.id().equalsIgnoreCase(id)) {
+        return compression;
+      }
+    }
+    throw new IllegalArgumentException("unknown compression '" + id + "'");
+  }
+
+}
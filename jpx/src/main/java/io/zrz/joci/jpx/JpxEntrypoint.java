@@ -0,0 +1,40 @@
+package io.zrz.joci.jpx;
+
+/**
+ * how a JPX image starts the JVM, given as "entrypoint" in the JPX manifest.
+ *
+ * @author theo
+ *
+ */
+
+public enum JpxEntrypoint {
+
+  /**
+   * /joci/entrypoint, a shell script which reads the classpath from /joci/classpath.txt and takes the main class from
+   * $MAIN_CLASS.
+   */
+
+  SCRIPT,
+
+  /**
+   * java is the entrypoint, with everything it's started with (the java options, classpath and main class) in the
+   * argument file /joci/jvm.args. there's no shell or cat to start, and no limit on how long the classpath is. options
+   * can still be added when running with JDK_JAVA_OPTIONS.
+   */
+
+  ARGFILE;
+
+  public String id() {
+    return this.name().toLowerCase();
+  }
+
+  public static JpxEntrypoint fromId(String id) {
+    for (JpxEntrypoint entrypoint : values()) {
+      if (entrypoint.id().equalsIgnoreCase(id)) {
+        return entrypoint;
+      }
+    }
+    throw new IllegalArgumentException("unknown entrypoint '" + id + "'");
+  }
+
+}
@@ -0,0 +1,240 @@
+package io.zrz.joci.jpx;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Manifest;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.MoreFiles;
+
+/**
+ * a fat JAR (e.g, a Spring Boot one) with the JARs it depends on nested inside it, which is split into those JARs and
+ * one of just the application's classes so the dependencies go in stable layers and only the classes change.
+ *
+ * the nested JARs are copied out as they are, so they have the same hash whichever fat JAR they came from. the classes
+ * JAR is written like {@link JpxJarNormalizer} does, so it only changes when the classes do. the launcher classes the
+ * fat JAR starts with are left out, as the classpath is flat; the class it would have started ("Start-Class") is the
+ * main class instead.
+ *
+ * @author theo
+ *
+ */
+
+public class JpxFatJar {
+
+  /**
+   * where nested JARs are, in Spring Boot JARs and WARs.
+   */
+
+  private static final List<String> LIBS = Arrays.asList("BOOT-INF/lib/", "WEB-INF/lib/", "WEB-INF/lib-provided/");
+
+  private static final List<String> CLASSES = Arrays.asList("BOOT-INF/classes/", "WEB-INF/classes/");
+
+  /**
+   * the order Spring Boot puts the nested JARs on the classpath in, if given.
+   */
+
+  private static final String CLASSPATH_INDEX = "BOOT-INF/classpath.idx";
+
+  private final List<ObjectNode> nodes;
+  private final String startClass;
+
+  private JpxFatJar(List<ObjectNode> nodes, String startClass) {
+    this.nodes = Collections.unmodifiableList(nodes);
+    this.startClass = startClass;
+  }
+
+  /**
+   * the classpath entries it was split into, with a local "file", in the order they go on the classpath.
+   */
+
+  public List<ObjectNode> nodes() {
+    return this.nodes;
+  }
+
+  /**
+   * the application's main class, if the fat JAR gives one.
+   */
+
+  public String startClass() {
+    return this.startClass;
+  }
+
+  /**
+   * if the file is a JAR with others nested inside it.
+   */
+
+  public static boolean isFatJar(Path file) {
+
+    if (!Files.isRegularFile(file) || !(file.toString().endsWith(".jar") || file.toString().endsWith(".war"))) {
+      return false;
+    }
+
+    try (ZipFile zip = new ZipFile(file.toFile())) {
+      return zip.stream().anyMatch(e -> lib(e.getName()));
+    }
+    catch (IOException ex) {
+      // not a zip, which isn't for us to complain about.
+      return false;
+    }
+
+  }
+
+  private static boolean lib(String name) {
+    return name.endsWith(".jar") && LIBS.stream().anyMatch(lib -> name.startsWith(lib) && name.indexOf('/', lib.length()) == -1);
+  }
+
+  private static String classes(String name) {
+    return CLASSES.stream().filter(name::startsWith).findFirst().orElse(null);
+  }
+
+  /**
+   * splits the fat JAR, writing the JARs into the given directory.
+   */
+
+  public static JpxFatJar explode(Path file, Path dir) {
+
+    try (ZipFile zip = new ZipFile(file.toFile())) {
+
+      Files.createDirectories(dir);
+
+      String name = MoreFiles.getNameWithoutExtension(file);
+
+      List<ObjectNode> nodes = new ArrayList<>();
+
+      // the application's classes go first, as they do in the fat JAR.
+      List<? extends ZipEntry> classes = zip.stream()
+          .filter(e -> classes(e.getName()) != null && e.getName().length() > classes(e.getName()).length())
+          .sorted(Comparator.comparing(ZipEntry::getName, JpxJarNormalizer.ORDER))
+          .collect(Collectors.toList());
+
+      if (!classes.isEmpty()) {
+
+        Path target = dir.resolve(name + "-classes.jar");
+
+        write(target, out -> JpxJarNormalizer.write(zip, classes, entry -> entry.substring(classes(entry).length()), out));
+
+        nodes.add(node(name + "-classes.jar", target, true));
+
+      }
+
+      for (ZipEntry e : libs(zip)) {
+
+        String jar = e.getName().substring(e.getName().lastIndexOf('/') + 1);
+
+        Path target = dir.resolve(jar);
+
+        write(target, out -> {
+          try (InputStream in = zip.getInputStream(e)) {
+            ByteStreams.copy(in, out);
+          }
+        });
+
+        nodes.add(node(jar, target, jar.endsWith("-SNAPSHOT.jar")));
+
+      }
+
+      String startClass = null;
+
+      ZipEntry manifest = zip.getEntry("META-INF/MANIFEST.MF");
+
+      if (manifest != null) {
+        try (InputStream in = zip.getInputStream(manifest)) {
+          startClass = new Manifest(in).getMainAttributes().getValue("Start-Class");
+        }
+      }
+
+      return new JpxFatJar(nodes, startClass);
+
+    }
+    catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+
+  }
+
+  /**
+   * the nested JARs, in the order of the classpath index if there is one and otherwise as they are in the fat JAR.
+   */
+
+  private static List<ZipEntry> libs(ZipFile zip) throws IOException {
+
+    Map<String, ZipEntry> libs = new LinkedHashMap<>();
+
+    zip.stream().filter(e -> lib(e.getName())).forEach(e -> libs.put(e.getName(), e));
+
+    ZipEntry index = zip.getEntry(CLASSPATH_INDEX);
+
+    if (index == null) {
+      return new ArrayList<>(libs.values());
+    }
+
+    List<ZipEntry> ordered = new ArrayList<>();
+
+    try (InputStream in = zip.getInputStream(index)) {
+      // e.g '- "BOOT-INF/lib/spring-core-5.2.8.RELEASE.jar"'.
+      for (String line : new String(ByteStreams.toByteArray(in), UTF_8).split("\n")) {
+        String path = line.trim().replaceFirst("^- ", "").replace("\"", "");
+        ZipEntry e = libs.remove(path);
+        if (e != null) {
+          ordered.add(e);
+        }
+      }
+    }
+
+    ordered.addAll(libs.values());
+
+    return ordered;
+
+  }
+
+  private static ObjectNode node(String name, Path file, boolean changing) {
+    return JsonNodeFactory.instance.objectNode()
+        .put("name", name)
+        .put("file", file.toString())
+        .put("changing", changing);
+  }
+
+  @FunctionalInterface
+  private interface Writer {
+
+    void write(OutputStream out) throws IOException;
+
+  }
+
+  /**
+   * writes the file alongside and moves it into place, so a JAR is never seen half written.
+   */
+
+  private static void write(Path target, Writer writer) throws IOException {
+    Path temp = Files.createTempFile(target.getParent(), ".", ".tmp");
+    try {
+      try (OutputStream out = Files.newOutputStream(temp)) {
+        writer.write(out);
+      }
+      Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+}
@@ -0,0 +1,192 @@
+package io.zrz.joci.jpx;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * rewrites a JAR so it only changes when what's in it does: entries are sorted (with the manifest first, where
+ * JarInputStream needs it), all modified at the same time, and without extra fields or comments. manifest attributes
+ * which are just the time it was built are dropped.
+ *
+ * a rebuilt SNAPSHOT JAR with the same classes then has the same hash, so it's not uploaded again and the layers it's
+ * in are found in the cache. signed JARs are left alone, as their signatures cover the manifest.
+ *
+ * @author theo
+ *
+ */
+
+public class JpxJarNormalizer {
+
+  private static final String MANIFEST = "META-INF/MANIFEST.MF";
+
+  /**
+   * what entries are modified at, which is the earliest a zip can hold.
+   */
+
+  static final LocalDateTime TIME = LocalDateTime.of(1980, 1, 1, 0, 0);
+
+  /**
+   * manifest attributes tools put the build time in.
+   */
+
+  private static final List<String> VOLATILE = Arrays.asList("Bnd-LastModified", "Build-Time", "Build-Timestamp", "Build-Date");
+
+  private static final Pattern SIGNATURE = Pattern.compile("^META-INF/[^/]+\\.(SF|RSA|DSA|EC)$");
+
+  /**
+   * the order entries are written in.
+   */
+
+  static final Comparator<String> ORDER = Comparator
+      .comparingInt((String name) -> name.equals("META-INF/") ? 0 : name.equals(MANIFEST) ? 1 : 2)
+      .thenComparing(Comparator.naturalOrder());
+
+  private JpxJarNormalizer() {
+  }
+
+  /**
+   * writes the normalized JAR to the target, returning false (and writing nothing) if it's signed.
+   */
+
+  public static boolean normalize(Path jar, Path target) {
+
+    try (ZipFile zip = new ZipFile(jar.toFile())) {
+
+      if (zip.stream().anyMatch(e -> SIGNATURE.matcher(e.getName()).matches())) {
+        return false;
+      }
+
+      List<? extends ZipEntry> entries = zip.stream()
+          .sorted(Comparator.comparing(ZipEntry::getName, ORDER))
+          .collect(Collectors.toList());
+
+      Files.createDirectories(target.getParent());
+
+      Path temp = Files.createTempFile(target.getParent(), ".", ".tmp");
+
+      try {
+        try (OutputStream out = Files.newOutputStream(temp)) {
+          write(zip, entries, Function.identity(), out);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }
+      finally {
+        Files.deleteIfExists(temp);
+      }
+
+      return true;
+
+    }
+    catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+
+  }
+
+  /**
+   * writes the given entries of the zip in order as a normalized JAR, renamed by the given function. stored entries
+   * stay stored, so JARs nested in them can still be read in place.
+   */
+
+  static void write(ZipFile zip, List<? extends ZipEntry> entries, Function<String, String> names, OutputStream out) throws IOException {
+
+    try (ZipOutputStream jar = new ZipOutputStream(out)) {
+
+      for (ZipEntry e : entries) {
+
+        String name = names.apply(e.getName());
+
+        ZipEntry entry = new ZipEntry(name);
+
+        entry.setTimeLocal(TIME);
+
+        byte[] content = null;
+
+        if (name.equals(MANIFEST)) {
+          try (InputStream in = zip.getInputStream(e)) {
+            content = manifest(ByteStreams.toByteArray(in));
+          }
+        }
+
+        if (e.getMethod() == ZipEntry.STORED) {
+          if (content == null) {
+            try (InputStream in = zip.getInputStream(e)) {
+              content = ByteStreams.toByteArray(in);
+            }
+          }
+          CRC32 crc = new CRC32();
+          crc.update(content);
+          entry.setMethod(ZipEntry.STORED);
+          entry.setSize(content.length);
+          entry.setCompressedSize(content.length);
+          entry.setCrc(crc.getValue());
+        }
+
+        jar.putNextEntry(entry);
+
+        if (content != null) {
+          jar.write(content);
+        }
+        else if (!e.isDirectory()) {
+          try (InputStream in = zip.getInputStream(e)) {
+            ByteStreams.copy(in, jar);
+          }
+        }
+
+        jar.closeEntry();
+
+      }
+
+    }
+
+  }
+
+  /**
+   * the manifest without the attributes which change each build, along with the lines they're continued on.
+   */
+
+  private static byte[] manifest(byte[] content) {
+
+    String[] lines = new String(content, UTF_8).split("(?<=\n)");
+
+    StringBuilder sb = new StringBuilder();
+
+    boolean skipping = false;
+
+    for (String line : lines) {
+      if (line.startsWith(" ")) {
+        if (!skipping) {
+          sb.append(line);
+        }
+        continue;
+      }
+      skipping = VOLATILE.stream().anyMatch(attribute -> line.regionMatches(true, 0, attribute + ":", 0, attribute.length() + 1));
+      if (!skipping) {
+        sb.append(line);
+      }
+    }
+
+    return sb.toString().getBytes(UTF_8);
+
+  }
+
+}
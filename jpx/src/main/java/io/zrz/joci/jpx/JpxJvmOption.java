@@ -1,22 +1,61 @@
 package io.zrz.joci.jpx;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * JVM options which can be enabled on a JPX image, some of which are presets of several.
+ *
+ * @author theo
+ *
+ */
+
 public enum JpxJvmOption {
 
   HeapDumpOnOutOfMemoryError("-XX:+HeapDumpOnOutOfMemoryError"),
 
-  DenyIllegalAccess("--illegal-access=deny")
+  DenyIllegalAccess("--illegal-access=deny"),
+
+  /**
+   * exits rather than carrying on in a bad state, so the container is restarted.
+   */
+
+  ExitOnOutOfMemoryError("-XX:+ExitOnOutOfMemoryError"),
+
+  /**
+   * sizes the heap from the container's memory limit rather than the host's, starting at half and growing to three
+   * quarters of it.
+   */
+
+  ContainerMemory("-XX:+UseContainerSupport", "-XX:InitialRAMPercentage=50.0", "-XX:MaxRAMPercentage=75.0"),
+
+  /**
+   * for containers with a single CPU or a small heap, where the other collectors' threads cost more than they save.
+   * only compiles with C1, which starts quicker at the cost of peak performance.
+   */
+
+  SmallContainer("-XX:+UseSerialGC", "-XX:TieredStopAtLevel=1", "-Xss512k")
 
   //
   ;
 
-  private String arg;
+  private List<String> args;
 
-  JpxJvmOption(String arg) {
-    this.arg = arg;
+  JpxJvmOption(String... args) {
+    this.args = Collections.unmodifiableList(Arrays.asList(args));
   }
 
+  /**
+   * the first of the options.
+   */
+
   public String arg() {
-    return this.arg;
+    return this.args.get(0);
+  }
+
+  public List<String> args() {
+    return this.args;
   }
 
 }
@@ -11,11 +11,14 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
-import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.base.Preconditions;
@@ -26,7 +29,23 @@ import com.google.common.io.ByteStreams;
 
 /**
  * materializes a JPX image layer based on a bunch of JARs stored as blobs.
- * 
+ *
+ * the layer is gzipped in parallel on the given pool, but the output is the same however many threads there are.
+ *
+ * JARs can also be added from a fragment: a gzip member holding just their tar entry, made once with
+ * {@link #fragment(String, long, InputStream, OutputStream, ForkJoinPool)}. these are copied into the layer as is, and
+ * everything else goes into members of its own, so the layer is a valid multi-member gzip stream.
+ *
+ * with {@link JpxCompression#ZSTD} the whole layer is a single zstd frame, and fragments aren't used. with
+ * {@link JpxCompression#NONE} the layer is a plain tar, and the single hash is both the compressed and uncompressed one.
+ *
+ * with a shared archive (see {@link #setSharedArchive(String, List)}), the entrypoint runs with it when started in /.
+ * the JARs it was dumped with go first on the classpath, given relative to / as they were when dumping, as a JDK 11
+ * archive is only used with the same classpath.
+ *
+ * instead of the script, the layer can have a JVM argument file (see {@link #addArgs(String, List, String)}) with the
+ * classpath written into it, so java can be the image's entrypoint.
+ *
  * @author theo
  *
  */
@@ -35,27 +54,158 @@ public class JpxLayerBuilder {
   private TarArchiveOutputStream tar;
   private List<String> manifest;
   private HashingOutputStream hashingOut;
-  private GzipCompressorOutputStream compressStream;
+  private Members members;
   private BufferedOutputStream outputStream;
   private HashingOutputStream uncompressedHash;
+  private OutputStream compressStream;
   private boolean entrypoint;
+  private String sharedArchive;
+  private List<String> sharedClasspath;
+  private String argsName;
+  private List<String> javaOptions;
+  private String mainClass;
+  private HashCode compressed;
+  private HashCode uncompressed;
+  private final ForkJoinPool pool;
+  private final JpxCompression compression;
+  private final int level;
 
   public JpxLayerBuilder() {
+    this(ForkJoinPool.commonPool());
+  }
+
+  public JpxLayerBuilder(ForkJoinPool pool) {
+    this(pool, JpxCompression.GZIP);
+  }
+
+  public JpxLayerBuilder(ForkJoinPool pool, JpxCompression compression) {
+    this(pool, compression, compression.defaultLevel());
+  }
+
+  public JpxLayerBuilder(ForkJoinPool pool, JpxCompression compression, int level) {
+    this.pool = pool;
+    this.compression = compression;
+    this.level = compression.checkLevel(level);
+  }
+
+  /**
+   * the tar stream is passed through to the current gzip member, which is started when needed. while a fragment is
+   * being added the tar only feeds the uncompressed hash, as the fragment already holds the compressed form.
+   */
+
+  private class Members extends OutputStream {
+
+    private ParallelGzipOutputStream member;
+    private boolean skipping;
+
+    @Override
+    public void write(int b) throws IOException {
+      this.write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (this.skipping || len == 0) {
+        return;
+      }
+      if (this.member == null) {
+        this.member = new ParallelGzipOutputStream(
+            new CloseShieldOutputStream(hashingOut),
+            pool,
+            level,
+            ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE);
+      }
+      this.member.write(b, off, len);
+    }
+
+    /**
+     * finishes the current member, if there is one.
+     */
+
+    void end() throws IOException {
+      if (this.member != null) {
+        this.member.close();
+        this.member = null;
+      }
+    }
+
   }
 
   public void open(Path target) {
     try {
-      Preconditions.checkArgument(this.tar == null);
-      this.outputStream = new BufferedOutputStream(Files.newOutputStream(target));
-      this.hashingOut = new HashingOutputStream(Hashing.sha256(), outputStream);
-      this.compressStream = new GzipCompressorOutputStream(hashingOut);
-      this.uncompressedHash = new HashingOutputStream(Hashing.sha256(), compressStream);
+      open(Files.newOutputStream(target));
+    }
+    catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
 
-      TarArchiveOutputStream tarArchiveOutputStream = new TarArchiveOutputStream(uncompressedHash);
-      tarArchiveOutputStream.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+  /**
+   * writes the layer to the given stream, which is closed along with the builder.
+   */
 
-      this.tar = tarArchiveOutputStream;
-      this.manifest = new LinkedList<>();
+  public void open(OutputStream target) {
+    Preconditions.checkArgument(this.tar == null);
+    this.outputStream = new BufferedOutputStream(target, 64 * 1024);
+    switch (this.compression) {
+      case NONE:
+        this.uncompressedHash = new HashingOutputStream(Hashing.sha256(), outputStream);
+        break;
+      case ZSTD:
+        this.hashingOut = new HashingOutputStream(Hashing.sha256(), outputStream);
+        try {
+          this.compressStream = JpxCompression.ZSTD.compress(hashingOut, this.level);
+        }
+        catch (IOException ex) {
+          throw new RuntimeException(ex);
+        }
+        this.uncompressedHash = new HashingOutputStream(Hashing.sha256(), compressStream);
+        break;
+      default:
+        this.hashingOut = new HashingOutputStream(Hashing.sha256(), outputStream);
+        this.members = new Members();
+        this.uncompressedHash = new HashingOutputStream(Hashing.sha256(), members);
+        break;
+    }
+    this.tar = tar(uncompressedHash);
+    this.manifest = new LinkedList<>();
+  }
+
+  private static TarArchiveOutputStream tar(OutputStream out) {
+    TarArchiveOutputStream tarArchiveOutputStream = new TarArchiveOutputStream(out);
+    tarArchiveOutputStream.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+    return tarArchiveOutputStream;
+  }
+
+  private static TarArchiveEntry entry(String filename, long size) {
+    TarArchiveEntry e = new TarArchiveEntry("./joci/" + filename);
+    e.setSize(size);
+    // everything set to epoch 0, so we have repeatable image hashes.
+    e.setModTime(0);
+    e.setMode(0644);
+    return e;
+  }
+
+  /**
+   * writes the gzip member for a JAR which can later be added to any layer with
+   * {@link #addFragment(String, long, InputStream, InputStream)}, without compressing it again. the output stream is
+   * closed.
+   */
+
+  public static void fragment(String filename, long size, InputStream content, OutputStream out, ForkJoinPool pool) {
+    fragment(filename, size, content, out, pool, JpxCompression.GZIP.defaultLevel());
+  }
+
+  /**
+   * a fragment compressed at the given gzip level, which must match the layer it's added to.
+   */
+
+  public static void fragment(String filename, long size, InputStream content, OutputStream out, ForkJoinPool pool, int level) {
+    int checked = JpxCompression.GZIP.checkLevel(level);
+    try (ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(out, pool, checked, ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE)) {
+      // the tar is deliberately not finished, as the end of archive marker belongs at the end of the layer.
+      TarArchiveOutputStream tar = tar(gzip);
+      putEntry(tar, entry(filename, size), content);
     }
     catch (IOException ex) {
       throw new RuntimeException(ex);
@@ -64,20 +214,108 @@ public class JpxLayerBuilder {
 
   public void addBlob(JpxDepNode node) {
     Path inputFile = node.file();
-    TarArchiveEntry e = new TarArchiveEntry("./joci/" + inputFile.getFileName().toString());
-    putEntry(e, inputFile, node);
+    try {
+      putEntry(this.tar, entry(inputFile.getFileName().toString(), Files.size(inputFile)), Files.newInputStream(inputFile));
+    }
+    catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
     manifest.add("/joci/" + inputFile.getFileName().toString());
   }
 
   public void addBlob(String filename, long size, InputStream in) {
-    TarArchiveEntry e = new TarArchiveEntry("./joci/" + filename);
-    putEntry(e, size, in);
+    putEntry(this.tar, entry(filename, size), in);
+    manifest.add("/joci/" + filename);
+  }
+
+  /**
+   * adds a JAR from a fragment made by {@link #fragment(String, long, InputStream, OutputStream, ForkJoinPool)} for the
+   * same name and content. the content is only read to keep track of the uncompressed hash.
+   */
+
+  public void addFragment(String filename, long size, InputStream content, InputStream fragment) {
+    Preconditions.checkState(this.members != null, "fragments are only used in gzipped layers");
+    try {
+      this.members.end();
+      this.members.skipping = true;
+      putEntry(this.tar, entry(filename, size), content);
+      ByteStreams.copy(fragment, this.hashingOut);
+    }
+    catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+    finally {
+      this.members.skipping = false;
+    }
     manifest.add("/joci/" + filename);
   }
 
+  /**
+   * adds a file which isn't on the classpath.
+   */
+
+  public void addFile(String filename, long size, InputStream in) {
+    putEntry(this.tar, entry(filename, size), in);
+  }
+
+  /**
+   * adds a directory (e.g, a Java runtime) as the given name, keeping which files are executable and any symbolic links.
+   * entries are sorted, so the same files always make the same layer.
+   */
+
+  public void addTree(String name, Path dir) {
+    try (Stream<Path> paths = Files.walk(dir)) {
+      for (Path path : paths.sorted().collect(Collectors.toList())) {
+        String relative = dir.relativize(path).toString();
+        String target = "./joci/" + name + (relative.isEmpty() ? "" : "/" + relative);
+        if (Files.isSymbolicLink(path)) {
+          TarArchiveEntry e = new TarArchiveEntry(target, TarConstants.LF_SYMLINK);
+          e.setLinkName(Files.readSymbolicLink(path).toString());
+          e.setModTime(0);
+          e.setMode(0777);
+          this.tar.putArchiveEntry(e);
+          this.tar.closeArchiveEntry();
+        }
+        else if (Files.isDirectory(path)) {
+          TarArchiveEntry e = new TarArchiveEntry(target + "/");
+          e.setModTime(0);
+          e.setMode(0755);
+          this.tar.putArchiveEntry(e);
+          this.tar.closeArchiveEntry();
+        }
+        else {
+          TarArchiveEntry e = new TarArchiveEntry(target);
+          e.setSize(Files.size(path));
+          e.setModTime(0);
+          e.setMode(Files.isExecutable(path) ? 0755 : 0644);
+          putEntry(this.tar, e, Files.newInputStream(path));
+        }
+      }
+    }
+    catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  /**
+   * has the entrypoint use the shared archive (e.g, an AppCDS archive) at the given path, which was dumped with the
+   * given classpath. it is relative to /, e.g "joci/abcd/guava.jar".
+   */
+
+  public void setSharedArchive(String path, List<String> classpath) {
+    this.sharedArchive = path;
+    this.sharedClasspath = classpath;
+  }
+
   public void addScript(String name, JsonNode mf) {
     StringBuilder sb = new StringBuilder();
     sb.append("#!/bin/sh\n");
+    if (this.sharedArchive != null) {
+      // the archive's classpath is relative, so only matches from /.
+      sb.append("if [ \"$(pwd)\" = / ]; then\n");
+      sb.append("  exec java -XX:SharedArchiveFile=" + this.sharedArchive + " -Xshare:auto -cp $(cat /joci/classpath-cds.txt) $MAIN_CLASS \"$@\"\n");
+      sb.append("fi\n");
+    }
     sb.append("exec java -cp $(cat /joci/classpath.txt) $MAIN_CLASS \"$@\"\n");
     this.entrypoint = true;
     try {
@@ -96,19 +334,64 @@ public class JpxLayerBuilder {
 
   }
 
+  /**
+   * adds a JVM argument file (e.g "jvm.args", for "java @/joci/jvm.args") which starts the main class with the given
+   * options and the classpath.
+   */
+
+  public void addArgs(String name, List<String> javaOptions, String mainClass) {
+    this.argsName = name;
+    this.javaOptions = javaOptions;
+    this.mainClass = mainClass;
+  }
+
+  /**
+   * the content of a JVM argument file with the given arguments, one to a line. any which need it are quoted.
+   */
+
+  public static String argfile(List<String> args) {
+    StringBuilder sb = new StringBuilder();
+    for (String arg : args) {
+      if (!arg.isEmpty() && arg.chars().noneMatch(c -> Character.isWhitespace(c) || c == '"' || c == '\'' || c == '\\' || c == '#')) {
+        sb.append(arg);
+      }
+      else {
+        sb.append('"');
+        for (char c : arg.toCharArray()) {
+          switch (c) {
+            case '"':
+            case '\\':
+              sb.append('\\').append(c);
+              break;
+            case '\n':
+              sb.append("\\n");
+              break;
+            case '\r':
+              sb.append("\\r");
+              break;
+            case '\t':
+              sb.append("\\t");
+              break;
+            default:
+              sb.append(c);
+          }
+        }
+        sb.append('"');
+      }
+      sb.append('\n');
+    }
+    return sb.toString();
+  }
+
   public void addClasspath(List<String> paths) {
     this.manifest.addAll(paths);
   }
 
-  private void putEntry(TarArchiveEntry e, long size, InputStream stream) {
+  private static void putEntry(TarArchiveOutputStream tar, TarArchiveEntry e, InputStream stream) {
     try {
-      e.setSize(size);
-      // everything set to epoch 0, so we have repeatable image hashes.
-      e.setModTime(0);
-      e.setMode(0644);
-      this.tar.putArchiveEntry(e);
+      tar.putArchiveEntry(e);
       try (InputStream input = new BufferedInputStream(stream)) {
-        ByteStreams.copy(input, this.tar);
+        ByteStreams.copy(input, tar);
         tar.closeArchiveEntry();
       }
     }
@@ -117,29 +400,28 @@ public class JpxLayerBuilder {
     }
   }
 
-  private void putEntry(TarArchiveEntry e, Path file, JpxDepNode node) {
-    try {
-      e.setSize(Files.size(file));
-      // everything set to epoch 0, so we have repeatable image hashes.
-      e.setMode(0644);
-      e.setModTime(0);
-      this.tar.putArchiveEntry(e);
-      try (InputStream input = new BufferedInputStream(Files.newInputStream(file))) {
-        ByteStreams.copy(input, this.tar);
-        tar.closeArchiveEntry();
-      }
-    }
-    catch (IOException ex) {
-      throw new RuntimeException(ex);
-    }
+  public JpxCompression compression() {
+    return this.compression;
   }
 
+  public int level() {
+    return this.level;
+  }
+
+  /**
+   * the hash of the layer as written, once closed.
+   */
+
   public HashCode compressedHash() {
-    return this.hashingOut.hash();
+    return this.compressed;
   }
 
+  /**
+   * the hash of the tar, once closed.
+   */
+
   public HashCode uncompressedHash() {
-    return this.uncompressedHash.hash();
+    return this.uncompressed;
   }
 
   public void close() {
@@ -158,14 +440,52 @@ public class JpxLayerBuilder {
         tar.closeArchiveEntry();
       }
 
+      if (this.entrypoint && this.sharedArchive != null) {
+        List<String> relative = new LinkedList<>(this.sharedClasspath);
+        this.manifest.stream().map(path -> path.substring(1)).filter(path -> !relative.contains(path)).forEach(relative::add);
+        TarArchiveEntry e = new TarArchiveEntry("./joci/classpath-cds.txt");
+        byte[] cp = String.join(":", relative).getBytes(UTF_8);
+        e.setSize(cp.length);
+        e.setModTime(0);
+        e.setMode(0644);
+        tar.putArchiveEntry(e);
+        tar.write(cp);
+        tar.closeArchiveEntry();
+      }
+
+      if (this.argsName != null) {
+        List<String> args = new LinkedList<>(this.javaOptions);
+        args.add("-cp");
+        args.add(String.join(":", this.manifest));
+        args.add(this.mainClass);
+        TarArchiveEntry e = new TarArchiveEntry("./joci/" + this.argsName);
+        byte[] content = argfile(args).getBytes(UTF_8);
+        e.setSize(content.length);
+        e.setModTime(0);
+        e.setMode(0644);
+        tar.putArchiveEntry(e);
+        tar.write(content);
+        tar.closeArchiveEntry();
+      }
+
       //
 
       this.tar.close();
       this.uncompressedHash.close();
-      this.compressStream.close();
-      this.hashingOut.close();
+      if (this.members != null) {
+        this.members.end();
+      }
+      if (this.compressStream != null) {
+        this.compressStream.close();
+      }
+      if (this.hashingOut != null) {
+        this.hashingOut.close();
+      }
       this.outputStream.close();
 
+      this.uncompressed = this.uncompressedHash.hash();
+      this.compressed = (this.hashingOut == null) ? this.uncompressed : this.hashingOut.hash();
+
     }
     catch (IOException e) {
       throw new RuntimeException(e);
@@ -1,10 +1,17 @@
 package io.zrz.joci.jpx;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import com.fasterxml.jackson.databind.JsonNode;
@@ -12,14 +19,25 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
 
-public class JpxSpecProcessor {
+public class JpxSpecProcessor implements Closeable {
 
   private List<JpxDepNode> nodes;
   private String mainClass;
   private ArrayNode jopts;
   private ArrayNode env;
   private ArrayNode ports;
+  private JpxCompression compression;
+  private Integer compressionLevel;
+  private JpxEntrypoint entrypoint;
+  private boolean explode = true;
+  private boolean normalize;
+  private Path workDir;
+  private boolean temporary;
+  private String startClass;
 
   public JpxSpecProcessor() {
     this(new LinkedList<>());
@@ -38,6 +56,64 @@ public class JpxSpecProcessor {
     return this;
   }
 
+  /**
+   * how the registry should store the layers, or null to leave it to the registry.
+   */
+
+  public JpxSpecProcessor compression(JpxCompression compression) {
+    this.compression = compression;
+    return this;
+  }
+
+  /**
+   * the level the registry compresses the layers at, or null for the default of the compression.
+   */
+
+  public JpxSpecProcessor compressionLevel(Integer compressionLevel) {
+    this.compressionLevel = compressionLevel;
+    return this;
+  }
+
+  /**
+   * how the image starts the JVM, or null to leave it to the registry.
+   */
+
+  public JpxSpecProcessor entrypoint(JpxEntrypoint entrypoint) {
+    this.entrypoint = entrypoint;
+    return this;
+  }
+
+  /**
+   * if fat JARs on the classpath are split into the JARs nested in them and their classes (see {@link JpxFatJar}),
+   * which they are unless turned off.
+   */
+
+  public JpxSpecProcessor explodeFatJars(boolean explode) {
+    this.explode = explode;
+    return this;
+  }
+
+  /**
+   * if JARs which aren't releases (e.g, SNAPSHOTs and the project's own) are rewritten by {@link JpxJarNormalizer}
+   * before they're hashed, so a rebuild with the same classes isn't uploaded again. off unless turned on.
+   */
+
+  public JpxSpecProcessor normalizeJars(boolean normalize) {
+    this.normalize = normalize;
+    return this;
+  }
+
+  /**
+   * where the JARs split out of fat JARs and normalized JARs are written. each is written to the same place each time,
+   * so a directory kept between runs (e.g, in the build directory) stays the size of one. if not given, a temporary
+   * directory is used, which is deleted by {@link #close()}.
+   */
+
+  public JpxSpecProcessor workDir(Path dir) {
+    this.workDir = dir;
+    return this;
+  }
+
   public JpxSpecProcessor javaOption(String opt) {
     jopts.add(opt);
     return this;
@@ -63,7 +139,7 @@ public class JpxSpecProcessor {
       ObjectNode tree = new ObjectMapper().readValue(singleFile, ObjectNode.class);
 
       for (JsonNode dep : tree.withArray("classpath")) {
-        this.nodes.add(JpxDepNode.fromJson((ObjectNode) dep));
+        explode((ObjectNode) dep).forEach(this.nodes::add);
       }
 
       this.mainClass = tree.path("mainClass").textValue();
@@ -84,8 +160,8 @@ public class JpxSpecProcessor {
 
     });
 
-    if (mainClass != null) {
-      root.put("mainClass", this.mainClass);
+    if (mainClass() != null) {
+      root.put("mainClass", mainClass());
     }
 
     if (this.jopts.size() > 0) {
@@ -102,6 +178,18 @@ public class JpxSpecProcessor {
       ports.addAll(this.ports);
     }
 
+    if (this.compression != null) {
+      root.put("compression", this.compression.id());
+    }
+
+    if (this.compressionLevel != null) {
+      root.put("compressionLevel", this.compressionLevel);
+    }
+
+    if (this.entrypoint != null) {
+      root.put("entrypoint", this.entrypoint.id());
+    }
+
     return root;
   }
 
@@ -115,8 +203,8 @@ public class JpxSpecProcessor {
 
     });
 
-    if (mainClass != null) {
-      root.put("mainClass", this.mainClass);
+    if (mainClass() != null) {
+      root.put("mainClass", mainClass());
     }
 
     if (this.jopts.size() > 0) {
@@ -133,6 +221,18 @@ public class JpxSpecProcessor {
       ports.addAll(this.ports);
     }
 
+    if (this.compression != null) {
+      root.put("compression", this.compression.id());
+    }
+
+    if (this.compressionLevel != null) {
+      root.put("compressionLevel", this.compressionLevel);
+    }
+
+    if (this.entrypoint != null) {
+      root.put("entrypoint", this.entrypoint.id());
+    }
+
     return root;
 
   }
@@ -157,6 +257,134 @@ public class JpxSpecProcessor {
     return this.nodes.stream().map(e -> e.file());
   }
 
+  /**
+   * the main class, which is the one a fat JAR would have started if it's not given or is the fat JAR's launcher.
+   */
+
+  private String mainClass() {
+    if (this.startClass != null && (this.mainClass == null || this.mainClass.startsWith("org.springframework.boot.loader."))) {
+      return this.startClass;
+    }
+    return this.mainClass;
+  }
+
+  /**
+   * the classpath entries for the given one, which are those split out of it if it's a fat JAR.
+   */
+
+  private List<JpxDepNode> explode(ObjectNode node) {
+
+    if (!this.explode || !node.has("file") || !JpxFatJar.isFatJar(Paths.get(node.get("file").asText()))) {
+      return Collections.singletonList(JpxDepNode.fromJson(normalize(node)));
+    }
+
+    Path file = Paths.get(node.get("file").asText());
+
+    // by the path it came from, as the same name may be nested in more than one, and fat JARs in different
+    // directories may share a name.
+    String key = Hashing.sha256().hashString(file.toAbsolutePath().toString(), UTF_8).toString().substring(0, 16);
+
+    Path dir = workDir().resolve("exploded").resolve(key).resolve(MoreFiles.getNameWithoutExtension(file));
+
+    // without those from the last time, which may no longer be nested in it.
+    delete(dir);
+
+    JpxFatJar fat = JpxFatJar.explode(file, dir);
+
+    if (this.startClass == null) {
+      this.startClass = fat.startClass();
+    }
+
+    return fat.nodes().stream().map(this::normalize).map(JpxDepNode::fromJson).collect(Collectors.toList());
+
+  }
+
+  /**
+   * the entry with its local JAR normalized, if that's turned on and it isn't a release.
+   */
+
+  private ObjectNode normalize(ObjectNode node) {
+
+    if (!this.normalize || !node.has("file") || node.has("integrity") || !node.get("file").asText().endsWith(".jar") || release(node)) {
+      return node;
+    }
+
+    Path file = Paths.get(node.get("file").asText());
+
+    // by the path it came from, so each keeps its name and they don't overwrite each other.
+    String key = Hashing.sha256().hashString(file.toAbsolutePath().toString(), UTF_8).toString().substring(0, 16);
+
+    Path target = workDir().resolve("normalized").resolve(key).resolve(file.getFileName().toString());
+
+    if (!JpxJarNormalizer.normalize(file, target)) {
+      return node;
+    }
+
+    ObjectNode normalized = node.deepCopy();
+    normalized.put("file", target.toString());
+    return normalized;
+
+  }
+
+  /**
+   * if the entry is a release, which doesn't change once published.
+   */
+
+  private static boolean release(ObjectNode node) {
+    if (node.path("changing").isBoolean()) {
+      return !node.get("changing").asBoolean();
+    }
+    String version = node.path("moduleVersion").path("id").path("version").asText("");
+    return !version.isEmpty() && !version.endsWith("-SNAPSHOT");
+  }
+
+  private Path workDir() {
+    try {
+      if (this.workDir == null) {
+        this.workDir = Files.createTempDirectory("jpx");
+        this.temporary = true;
+      }
+      return this.workDir;
+    }
+    catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  private static void delete(Path dir) {
+    try {
+      if (Files.exists(dir)) {
+        MoreFiles.deleteRecursively(dir, RecursiveDeleteOption.ALLOW_INSECURE);
+      }
+    }
+    catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  /**
+   * deletes the temporary directory the JARs were written to, if one was used. the entries pointing into it can't be
+   * uploaded after.
+   */
+
+  @Override
+  public void close() {
+    if (this.temporary) {
+      delete(this.workDir);
+      this.workDir = null;
+      this.temporary = false;
+    }
+  }
+
+  /**
+   * adds the entry, or the JARs split out of it if it's a fat JAR.
+   */
+
+  public JpxSpecProcessor add(ObjectNode node) {
+    explode(node).forEach(this::add);
+    return this;
+  }
+
   public JpxSpecProcessor add(JpxDepNode node) {
     if (!nodes.stream().anyMatch(e -> e.hash().contentEquals(node.hash()))) {
       this.nodes.add(node);
@@ -166,7 +394,7 @@ public class JpxSpecProcessor {
 
   public JpxSpecProcessor addAll(ArrayNode tree) {
     for (JsonNode node : tree) {
-      add(JpxDepNode.fromJson((ObjectNode) node));
+      add((ObjectNode) node);
     }
     return this;
   }
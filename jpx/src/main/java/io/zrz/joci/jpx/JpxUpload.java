@@ -1,5 +1,6 @@
 package io.zrz.joci.jpx;
 
+import java.io.Closeable;
 import java.io.File;
 import java.nio.file.Path;
 import java.util.Collection;
@@ -18,7 +19,7 @@ import io.zrz.joci.client.MissingBlobResponse;
 import io.zrz.joci.client.SuccessResponse;
 import io.zrz.joci.client.UploadResponse;
 
-public class JpxUpload {
+public class JpxUpload implements Closeable {
 
   private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(JpxUpload.class);
 
@@ -44,7 +45,36 @@ public class JpxUpload {
     ObjectNode main = JsonNodeFactory.instance.objectNode();
     main.put("name", MoreFiles.getNameWithoutExtension(path));
     main.put("file", path.toString());
-    spec.add(JpxDepNode.fromJson(main));
+    spec.add(main);
+    return this;
+  }
+
+  /**
+   * if fat JARs are split into the JARs nested in them, which they are unless turned off.
+   */
+
+  public JpxUpload explodeFatJars(boolean explode) {
+    spec.explodeFatJars(explode);
+    return this;
+  }
+
+  /**
+   * where JARs split out of fat JARs and normalized JARs are written, which is otherwise a temporary directory deleted
+   * on {@link #close()}.
+   */
+
+  public JpxUpload workDir(Path dir) {
+    spec.workDir(dir);
+    return this;
+  }
+
+  /**
+   * if SNAPSHOT and other JARs which aren't releases are normalized before they're hashed, so an unchanged rebuild
+   * isn't uploaded again or given new layers. applies to JARs added after it's set.
+   */
+
+  public JpxUpload normalizeJars(boolean normalize) {
+    spec.normalizeJars(normalize);
     return this;
   }
 
@@ -128,6 +158,16 @@ public class JpxUpload {
     return this;
   }
 
+  public JpxUpload compression(JpxCompression compression) {
+    spec.compression(compression);
+    return this;
+  }
+
+  public JpxUpload compressionLevel(Integer level) {
+    spec.compressionLevel(level);
+    return this;
+  }
+
   public JpxUpload mainClass(String className) {
     spec.mainClass(className);
     return this;
@@ -139,7 +179,12 @@ public class JpxUpload {
   }
 
   public JpxUpload enable(JpxJvmOption opt) {
-    spec.javaOption(opt.arg());
+    opt.args().forEach(spec::javaOption);
+    return this;
+  }
+
+  public JpxUpload entrypoint(JpxEntrypoint entrypoint) {
+    spec.entrypoint(entrypoint);
     return this;
   }
 
@@ -164,4 +209,13 @@ public class JpxUpload {
     return new UploadStats(this.uploaded);
   }
 
+  /**
+   * removes the JARs written while adding to the classpath, once they've been uploaded.
+   */
+
+  @Override
+  public void close() {
+    this.spec.close();
+  }
+
 }
@@ -0,0 +1,231 @@
+package io.zrz.joci.jpx;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * a gzip stream which compresses fixed size blocks in parallel, in the same way as pigz.
+ *
+ * each block is deflated on its own, primed with the last 32K of the block before it as a dictionary, and ended with a
+ * sync flush so the blocks can simply be concatenated. the output only depends on the input, block size and level -
+ * never on the number of threads or how the writes were split up - so layer hashes stay reproducible.
+ *
+ * the gzip header has no name and a zero mtime. flush() only flushes blocks which have already been compressed.
+ *
+ * @author theo
+ *
+ */
+
+public class ParallelGzipOutputStream extends OutputStream {
+
+  public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+  /**
+   * the deflate window, which is how much of the previous block can be referred to.
+   */
+
+  private static final int DICTIONARY_SIZE = 32 * 1024;
+
+  private final OutputStream out;
+  private final ForkJoinPool pool;
+  private final int level;
+  private final int blockSize;
+  private final int maxPending;
+
+  private final Deque<ForkJoinTask<byte[]>> pending = new ArrayDeque<>();
+  private final CRC32 crc = new CRC32();
+
+  private byte[] block;
+  private int length;
+  private byte[] previous;
+  private long size;
+  private boolean closed;
+
+  public ParallelGzipOutputStream(final OutputStream out) throws IOException {
+    this(out, ForkJoinPool.commonPool(), Deflater.DEFAULT_COMPRESSION, DEFAULT_BLOCK_SIZE);
+  }
+
+  public ParallelGzipOutputStream(final OutputStream out, final ForkJoinPool pool) throws IOException {
+    this(out, pool, Deflater.DEFAULT_COMPRESSION, DEFAULT_BLOCK_SIZE);
+  }
+
+  /**
+   * @param pool
+   *          where blocks are compressed. at most twice its parallelism are held in memory at once.
+   * @param level
+   *          the deflate level.
+   * @param blockSize
+   *          the uncompressed size of each block. must be at least 32K.
+   */
+
+  public ParallelGzipOutputStream(final OutputStream out, final ForkJoinPool pool, final int level, final int blockSize) throws IOException {
+
+    Preconditions.checkArgument(blockSize >= DICTIONARY_SIZE, "block size must be at least %s", DICTIONARY_SIZE);
+
+    this.out = out;
+    this.pool = pool;
+    this.level = level;
+    this.blockSize = blockSize;
+    this.maxPending = Math.max(2, pool.getParallelism() * 2);
+    this.block = new byte[blockSize];
+
+    // same as commons-compress: no flags, no mtime, and an unknown OS.
+    out.write(new byte[] {
+        0x1f,
+        (byte) 0x8b,
+        Deflater.DEFLATED,
+        0,
+        0,
+        0,
+        0,
+        0,
+        (byte) ((level == Deflater.BEST_COMPRESSION) ? 2 : (level == Deflater.BEST_SPEED) ? 4 : 0),
+        (byte) 255 });
+
+  }
+
+  @Override
+  public void write(final int b) throws IOException {
+    this.write(new byte[] { (byte) b }, 0, 1);
+  }
+
+  @Override
+  public void write(final byte[] b, int off, int len) throws IOException {
+
+    Preconditions.checkState(!this.closed, "stream closed");
+
+    this.crc.update(b, off, len);
+    this.size += len;
+
+    while (len > 0) {
+
+      // a full block is only sent once we know it's not the last one, which is finished instead of flushed.
+      if (this.length == this.blockSize) {
+        this.submit(false);
+      }
+
+      final int count = Math.min(len, this.blockSize - this.length);
+      System.arraycopy(b, off, this.block, this.length, count);
+      this.length += count;
+      off += count;
+      len -= count;
+
+    }
+
+  }
+
+  private void submit(final boolean last) throws IOException {
+
+    final byte[] input = this.block;
+    final int length = this.length;
+    final byte[] dictionary = this.previous;
+    final int level = this.level;
+
+    this.pending.add(this.pool.submit(() -> deflate(input, length, dictionary, level, last)));
+
+    this.previous = input;
+    this.block = last ? null : new byte[this.blockSize];
+    this.length = 0;
+
+    while (this.pending.size() > this.maxPending) {
+      this.out.write(this.pending.remove().join());
+    }
+
+  }
+
+  private static byte[] deflate(final byte[] input, final int length, final byte[] dictionary, final int level, final boolean last) {
+
+    final Deflater deflater = new Deflater(level, true);
+
+    try {
+
+      if (dictionary != null) {
+        // copied, as the offset is ignored by setDictionary(byte[], int, int) on java 11.
+        deflater.setDictionary(Arrays.copyOfRange(dictionary, dictionary.length - DICTIONARY_SIZE, dictionary.length));
+      }
+
+      deflater.setInput(input, 0, length);
+
+      final ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+      final byte[] buffer = new byte[64 * 1024];
+
+      if (last) {
+        deflater.finish();
+        while (!deflater.finished()) {
+          out.write(buffer, 0, deflater.deflate(buffer));
+        }
+      }
+      else {
+        int count;
+        do {
+          count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+          out.write(buffer, 0, count);
+        }
+        while (count == buffer.length);
+      }
+
+      return out.toByteArray();
+
+    }
+    finally {
+      deflater.end();
+    }
+
+  }
+
+  @Override
+  public void flush() throws IOException {
+    while (!this.pending.isEmpty() && this.pending.peek().isDone()) {
+      this.out.write(this.pending.remove().join());
+    }
+    this.out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+
+    if (this.closed) {
+      return;
+    }
+
+    try {
+
+      this.submit(true);
+
+      while (!this.pending.isEmpty()) {
+        this.out.write(this.pending.remove().join());
+      }
+
+      final long crc = this.crc.getValue();
+
+      this.out.write(new byte[] {
+          (byte) crc,
+          (byte) (crc >> 8),
+          (byte) (crc >> 16),
+          (byte) (crc >> 24),
+          (byte) this.size,
+          (byte) (this.size >> 8),
+          (byte) (this.size >> 16),
+          (byte) (this.size >> 24) });
+
+    }
+    finally {
+      this.closed = true;
+      this.pending.forEach(task -> task.cancel(false));
+      this.pending.clear();
+      this.out.close();
+    }
+
+  }
+
+}
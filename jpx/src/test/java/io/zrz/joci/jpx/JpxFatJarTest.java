@@ -0,0 +1,142 @@
+package io.zrz.joci.jpx;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+
+public class JpxFatJarTest {
+
+  private static void zip(Path file, long time, String... entries) throws IOException {
+    try (OutputStream out = Files.newOutputStream(file); ZipOutputStream zip = new ZipOutputStream(out)) {
+      for (String name : entries) {
+        ZipEntry e = new ZipEntry(name);
+        e.setTime(time);
+        zip.putNextEntry(e);
+        if (name.equals("META-INF/MANIFEST.MF")) {
+          zip.write("Manifest-Version: 1.0\r\nStart-Class: com.example.App\r\n\r\n".getBytes(UTF_8));
+        }
+        else if (name.equals("BOOT-INF/classpath.idx")) {
+          zip.write("- \"BOOT-INF/lib/b-1.0.jar\"\n- \"BOOT-INF/lib/a-1.0.jar\"\n".getBytes(UTF_8));
+        }
+        else if (!name.endsWith("/")) {
+          zip.write(name.getBytes(UTF_8));
+        }
+        zip.closeEntry();
+      }
+    }
+  }
+
+  @Test
+  public void testExplode() throws IOException {
+
+    Path dir = Files.createTempDirectory("fat");
+
+    try {
+
+      Path fat = dir.resolve("app.jar");
+
+      zip(fat, 1_000_000_000_000L,
+          "META-INF/MANIFEST.MF",
+          "org/springframework/boot/loader/JarLauncher.class",
+          "BOOT-INF/",
+          "BOOT-INF/classes/",
+          "BOOT-INF/classes/com/",
+          "BOOT-INF/classes/com/example/App.class",
+          "BOOT-INF/classes/application.yml",
+          "BOOT-INF/lib/a-1.0.jar",
+          "BOOT-INF/lib/b-1.0.jar",
+          "BOOT-INF/lib/c-2.0-SNAPSHOT.jar",
+          "BOOT-INF/classpath.idx");
+
+      assertTrue(JpxFatJar.isFatJar(fat));
+
+      JpxFatJar exploded = JpxFatJar.explode(fat, dir.resolve("out"));
+
+      assertEquals("com.example.App", exploded.startClass());
+
+      assertEquals(
+          Arrays.asList("app-classes.jar true", "b-1.0.jar false", "a-1.0.jar false", "c-2.0-SNAPSHOT.jar true"),
+          exploded.nodes().stream().map(n -> n.get("name").asText() + " " + n.get("changing").asBoolean()).collect(Collectors.toList()));
+
+      // nested JARs are copied out as they are.
+      assertArrayEquals("BOOT-INF/lib/a-1.0.jar".getBytes(UTF_8), Files.readAllBytes(file(exploded.nodes().get(2))));
+
+      List<String> classes;
+
+      try (ZipFile zip = new ZipFile(file(exploded.nodes().get(0)).toFile())) {
+        classes = zip.stream().map(ZipEntry::getName).collect(Collectors.toList());
+      }
+
+      assertEquals(Arrays.asList("application.yml", "com/", "com/example/App.class"), classes);
+
+      // the same classes built at another time make the same JAR.
+      Path other = dir.resolve("other.jar");
+      zip(other, 1_500_000_000_000L,
+          "BOOT-INF/classes/com/",
+          "BOOT-INF/classes/application.yml",
+          "BOOT-INF/classes/com/example/App.class",
+          "BOOT-INF/lib/a-1.0.jar");
+
+      JpxFatJar again = JpxFatJar.explode(other, dir.resolve("again"));
+
+      assertArrayEquals(
+          Files.readAllBytes(file(exploded.nodes().get(0))),
+          Files.readAllBytes(dir.resolve("again").resolve("other-classes.jar")));
+
+      assertEquals(Collections.singletonList("a-1.0.jar"), again.nodes().subList(1, 2).stream().map(n -> n.get("name").asText()).collect(Collectors.toList()));
+
+    }
+    finally {
+      MoreFiles.deleteRecursively(dir, RecursiveDeleteOption.ALLOW_INSECURE);
+    }
+
+  }
+
+  @Test
+  public void testNotFat() throws IOException {
+
+    Path dir = Files.createTempDirectory("fat");
+
+    try {
+
+      Path jar = dir.resolve("plain.jar");
+
+      // only nested JARs directly in the lib directory count.
+      zip(jar, 0, "com/example/App.class", "lib/x.jar", "BOOT-INF/lib/nested/y.jar");
+
+      assertFalse(JpxFatJar.isFatJar(jar));
+      assertFalse(JpxFatJar.isFatJar(dir.resolve("missing.jar")));
+
+    }
+    finally {
+      MoreFiles.deleteRecursively(dir, RecursiveDeleteOption.ALLOW_INSECURE);
+    }
+
+  }
+
+  private static Path file(ObjectNode node) {
+    return Paths.get(node.get("file").asText());
+  }
+
+}
@@ -0,0 +1,120 @@
+package io.zrz.joci.jpx;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.JarInputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Test;
+
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+
+public class JpxJarNormalizerTest {
+
+  private static void jar(Path file, long time, String buildTime, String... entries) throws IOException {
+    try (OutputStream out = Files.newOutputStream(file); ZipOutputStream zip = new ZipOutputStream(out)) {
+      zip.setComment("built at " + time);
+      for (String name : entries) {
+        byte[] content = name.equals("META-INF/MANIFEST.MF")
+            ? ("Manifest-Version: 1.0\r\nBuild-Time: " + buildTime + "\r\nMain-Class: com.example.App\r\n\r\n").getBytes(UTF_8)
+            : name.getBytes(UTF_8);
+        ZipEntry e = new ZipEntry(name);
+        e.setTime(time);
+        if (name.endsWith(".jar")) {
+          CRC32 crc = new CRC32();
+          crc.update(content);
+          e.setMethod(ZipEntry.STORED);
+          e.setSize(content.length);
+          e.setCrc(crc.getValue());
+        }
+        zip.putNextEntry(e);
+        if (!name.endsWith("/")) {
+          zip.write(content);
+        }
+        zip.closeEntry();
+      }
+    }
+  }
+
+  @Test
+  public void testNormalize() throws IOException {
+
+    Path dir = Files.createTempDirectory("normalize");
+
+    try {
+
+      Path a = dir.resolve("a.jar");
+      Path b = dir.resolve("b.jar");
+
+      jar(a, 1_000_000_000_000L, "2001-09-09", "com/example/App.class", "META-INF/MANIFEST.MF", "com/", "lib/x.jar");
+      jar(b, 1_500_000_000_000L, "2017-07-14", "lib/x.jar", "com/", "META-INF/MANIFEST.MF", "com/example/App.class");
+
+      assertTrue(JpxJarNormalizer.normalize(a, dir.resolve("out/a.jar")));
+      assertTrue(JpxJarNormalizer.normalize(b, dir.resolve("out/b.jar")));
+
+      // built at different times and in a different order, but with the same content.
+      assertArrayEquals(Files.readAllBytes(dir.resolve("out/a.jar")), Files.readAllBytes(dir.resolve("out/b.jar")));
+
+      try (ZipFile zip = new ZipFile(dir.resolve("out/a.jar").toFile())) {
+
+        List<String> names = zip.stream().map(ZipEntry::getName).collect(Collectors.toList());
+
+        assertEquals(Arrays.asList("META-INF/MANIFEST.MF", "com/", "com/example/App.class", "lib/x.jar"), names);
+        assertEquals(ZipEntry.STORED, zip.getEntry("lib/x.jar").getMethod());
+        assertNull(zip.getComment());
+
+      }
+
+      try (InputStream in = Files.newInputStream(dir.resolve("out/a.jar")); JarInputStream jar = new JarInputStream(in)) {
+        Manifest manifest = jar.getManifest();
+        assertEquals("com.example.App", manifest.getMainAttributes().getValue("Main-Class"));
+        assertNull(manifest.getMainAttributes().getValue("Build-Time"));
+      }
+
+    }
+    finally {
+      MoreFiles.deleteRecursively(dir, RecursiveDeleteOption.ALLOW_INSECURE);
+    }
+
+  }
+
+  @Test
+  public void testSigned() throws IOException {
+
+    Path dir = Files.createTempDirectory("normalize");
+
+    try {
+
+      Path signed = dir.resolve("signed.jar");
+
+      jar(signed, 0, "now", "META-INF/MANIFEST.MF", "META-INF/X.SF", "META-INF/X.RSA", "com/example/App.class");
+
+      assertFalse(JpxJarNormalizer.normalize(signed, dir.resolve("out/signed.jar")));
+      assertFalse(Files.exists(dir.resolve("out/signed.jar")));
+
+    }
+    finally {
+      MoreFiles.deleteRecursively(dir, RecursiveDeleteOption.ALLOW_INSECURE);
+    }
+
+  }
+
+}
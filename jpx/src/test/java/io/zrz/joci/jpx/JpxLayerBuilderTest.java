@@ -0,0 +1,181 @@
+package io.zrz.joci.jpx;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorInputStream;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+
+public class JpxLayerBuilderTest {
+
+  private static Map<String, byte[]> jars() {
+    final Map<String, byte[]> jars = new LinkedHashMap<>();
+    jars.put("a.jar", Strings.repeat("aaaa", 100_000).getBytes(UTF_8));
+    jars.put("b.jar", "b".getBytes(UTF_8));
+    jars.put(Strings.repeat("long-name-", 20) + ".jar", Strings.repeat("cc", 1234).getBytes(UTF_8));
+    return jars;
+  }
+
+  private static byte[] gunzip(final byte[] compressed) throws IOException {
+    try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+      return ByteStreams.toByteArray(in);
+    }
+  }
+
+  @Test
+  public void testFragments() throws IOException {
+
+    final ByteArrayOutputStream direct = new ByteArrayOutputStream();
+    final JpxLayerBuilder expected = new JpxLayerBuilder();
+    expected.open(direct);
+    jars().forEach((name, content) -> expected.addBlob(name, content.length, new ByteArrayInputStream(content)));
+    expected.addScript("entrypoint", JsonNodeFactory.instance.objectNode());
+    expected.close();
+
+    final ByteArrayOutputStream assembled = new ByteArrayOutputStream();
+    final JpxLayerBuilder actual = new JpxLayerBuilder();
+    actual.open(assembled);
+    jars().forEach((name, content) -> {
+      final ByteArrayOutputStream fragment = new ByteArrayOutputStream();
+      JpxLayerBuilder.fragment(name, content.length, new ByteArrayInputStream(content), fragment, ForkJoinPool.commonPool());
+      actual.addFragment(name, content.length, new ByteArrayInputStream(content), new ByteArrayInputStream(fragment.toByteArray()));
+    });
+    actual.addScript("entrypoint", JsonNodeFactory.instance.objectNode());
+    actual.close();
+
+    assertEquals(expected.classPath(), actual.classPath());
+    assertEquals(expected.uncompressedHash(), actual.uncompressedHash());
+    assertArrayEquals(gunzip(direct.toByteArray()), gunzip(assembled.toByteArray()));
+
+  }
+
+  @Test
+  public void testUncompressed() throws IOException {
+
+    final ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+    final JpxLayerBuilder expected = new JpxLayerBuilder();
+    expected.open(gzipped);
+    jars().forEach((name, content) -> expected.addBlob(name, content.length, new ByteArrayInputStream(content)));
+    expected.close();
+
+    final ByteArrayOutputStream plain = new ByteArrayOutputStream();
+    final JpxLayerBuilder actual = new JpxLayerBuilder(ForkJoinPool.commonPool(), JpxCompression.NONE);
+    actual.open(plain);
+    jars().forEach((name, content) -> actual.addBlob(name, content.length, new ByteArrayInputStream(content)));
+    actual.close();
+
+    assertEquals(expected.uncompressedHash(), actual.uncompressedHash());
+    assertEquals(actual.uncompressedHash(), actual.compressedHash());
+    assertArrayEquals(gunzip(gzipped.toByteArray()), plain.toByteArray());
+
+  }
+
+  @Test
+  public void testZstd() throws IOException {
+
+    final ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+    final JpxLayerBuilder expected = new JpxLayerBuilder();
+    expected.open(gzipped);
+    jars().forEach((name, content) -> expected.addBlob(name, content.length, new ByteArrayInputStream(content)));
+    expected.close();
+
+    final ByteArrayOutputStream zstd = new ByteArrayOutputStream();
+    final JpxLayerBuilder actual = new JpxLayerBuilder(ForkJoinPool.commonPool(), JpxCompression.ZSTD, 9);
+    actual.open(zstd);
+    jars().forEach((name, content) -> actual.addBlob(name, content.length, new ByteArrayInputStream(content)));
+    actual.close();
+
+    assertEquals(expected.uncompressedHash(), actual.uncompressedHash());
+
+    try (ZstdCompressorInputStream in = new ZstdCompressorInputStream(new ByteArrayInputStream(zstd.toByteArray()))) {
+      assertArrayEquals(gunzip(gzipped.toByteArray()), ByteStreams.toByteArray(in));
+    }
+
+  }
+
+  @Test
+  public void testTree() throws IOException {
+
+    final Path dir = Files.createTempDirectory("tree");
+
+    try {
+
+      Files.createDirectories(dir.resolve("bin"));
+      Files.write(dir.resolve("bin/java"), "java".getBytes(UTF_8));
+      dir.resolve("bin/java").toFile().setExecutable(true);
+      Files.write(dir.resolve("release"), "11".getBytes(UTF_8));
+      Files.createSymbolicLink(dir.resolve("link"), Paths.get("release"));
+
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      final JpxLayerBuilder builder = new JpxLayerBuilder(ForkJoinPool.commonPool(), JpxCompression.NONE);
+      builder.open(out);
+      builder.addTree("runtime", dir);
+      builder.close();
+
+      final List<String> entries = new ArrayList<>();
+
+      try (TarArchiveInputStream tar = new TarArchiveInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+        for (TarArchiveEntry e = tar.getNextTarEntry(); e != null; e = tar.getNextTarEntry()) {
+          assertEquals(0, e.getModTime().getTime());
+          entries.add(String.format("%s %o %s", e.getName(), e.getMode() & 0777, e.getLinkName()));
+        }
+      }
+
+      assertEquals(
+          Arrays.asList(
+              "./joci/runtime/ 755 ",
+              "./joci/runtime/bin/ 755 ",
+              "./joci/runtime/bin/java 755 ",
+              "./joci/runtime/link 777 release",
+              "./joci/runtime/release 644 "),
+          entries);
+
+      // nothing goes on the classpath.
+      assertEquals(Collections.emptyList(), builder.classPath());
+
+    }
+    finally {
+      MoreFiles.deleteRecursively(dir, RecursiveDeleteOption.ALLOW_INSECURE);
+    }
+
+  }
+
+  @Test
+  public void testArgfile() {
+
+    assertEquals(
+        "-Xmx1g\n\"-Dx=a b \\\"c\\\" \\\\d\"\n\"\"\n\"#e\"\nx.Main\n",
+        JpxLayerBuilder.argfile(Arrays.asList("-Xmx1g", "-Dx=a b \"c\" \\d", "", "#e", "x.Main")));
+
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testLevelOutOfRange() {
+    new JpxLayerBuilder(ForkJoinPool.commonPool(), JpxCompression.GZIP, 22);
+  }
+
+}
@@ -0,0 +1,73 @@
+package io.zrz.joci.jpx;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+public class ParallelGzipOutputStreamTest {
+
+  private static final int BLOCK_SIZE = 64 * 1024;
+
+  private static byte[] input(final int size) {
+    final Random random = new Random(1234);
+    final StringBuilder sb = new StringBuilder();
+    while (sb.length() < size) {
+      sb.append("class-").append(random.nextInt(5000)).append(".class\n");
+    }
+    return sb.substring(0, size).getBytes(UTF_8);
+  }
+
+  private static byte[] compress(final byte[] input, final int threads, final int chunk) throws IOException {
+    final ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      try (ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(out, pool, Deflater.DEFAULT_COMPRESSION, BLOCK_SIZE)) {
+        for (int i = 0; i < input.length; i += chunk) {
+          gzip.write(input, i, Math.min(chunk, input.length - i));
+        }
+      }
+      return out.toByteArray();
+    }
+    finally {
+      pool.shutdown();
+    }
+  }
+
+  private static byte[] decompress(final byte[] compressed) throws IOException {
+    try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+      return ByteStreams.toByteArray(in);
+    }
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    for (final int size : new int[] { 0, 1, BLOCK_SIZE, BLOCK_SIZE + 1, BLOCK_SIZE * 10 + 12345 }) {
+      final byte[] input = input(size);
+      assertArrayEquals(input, decompress(compress(input, 4, 8192)));
+    }
+  }
+
+  @Test
+  public void testDeterministic() throws IOException {
+
+    final byte[] input = input(BLOCK_SIZE * 20 + 999);
+    final byte[] expected = compress(input, 1, input.length);
+
+    assertArrayEquals(expected, compress(input, 2, 8192));
+    assertArrayEquals(expected, compress(input, 8, 1));
+    assertArrayEquals(expected, compress(input, 3, BLOCK_SIZE + 7));
+
+  }
+
+}
@@ -14,6 +14,7 @@ import java.util.concurrent.TimeUnit;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -96,9 +97,13 @@ public class DefaultLayerApplicator implements LayerApplicator {
       final TarArchiveInputStream tarInput;
 
       if (layer.config().mediaType().equals("application/vnd.docker.image.rootfs.diff.tar.gzip")) {
-        final GzipCompressorInputStream gunzipped = new GzipCompressorInputStream(inputStream);
+        // JPX layers are made of several gzip members, so keep reading past the first.
+        final GzipCompressorInputStream gunzipped = new GzipCompressorInputStream(inputStream, true);
         tarInput = new TarArchiveInputStream(gunzipped);
       }
+      else if (layer.config().mediaType().equals("application/vnd.oci.image.layer.v1.tar+zstd")) {
+        tarInput = new TarArchiveInputStream(new ZstdCompressorInputStream(inputStream));
+      }
       else {
         tarInput = new TarArchiveInputStream(inputStream);
       }
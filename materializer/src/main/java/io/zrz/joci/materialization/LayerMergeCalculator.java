@@ -402,6 +402,8 @@ public class LayerMergeCalculator {
         break;
       case "application/vnd.docker.image.rootfs.diff.tar":
         break;
+      case "application/vnd.oci.image.layer.v1.tar+zstd":
+        break;
       default:
         throw new IllegalArgumentException("unsupported layer type: " + layer.mediaType());
     }
@@ -0,0 +1,254 @@
+package io.zrz.joci.registry;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+
+import org.glassfish.grizzly.CompletionHandler;
+import org.glassfish.grizzly.WriteResult;
+import org.glassfish.grizzly.http.server.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Range;
+import com.google.common.io.ByteStreams;
+
+import io.zrz.joci.spi.RegistryProvider.BlobInfo;
+
+/**
+ * writes blob content (or ranges of it) to the client.
+ *
+ * file backed blobs are handed to grizzly's sendfile support so the kernel copies straight from the page cache to the
+ * socket. if sendfile isn't available (e.g, TLS) we fall back to FileChannel.transferTo, and anything not backed by a
+ * file is streamed as before.
+ *
+ * multipart range responses use positioned channel reads for each part, as grizzly only allows a single sendfile per
+ * response.
+ *
+ * @author theo
+ *
+ */
+
+@javax.ws.rs.ext.Provider
+@Singleton
+@Produces(MediaType.WILDCARD)
+public class BlobMessageBodyWriter implements MessageBodyWriter<Object> {
+
+  private static final Logger log = LoggerFactory.getLogger(BlobMessageBodyWriter.class);
+
+  @Inject
+  private Provider<Response> response;
+
+  @Override
+  public boolean isWriteable(final Class<?> type, final Type genericType, final Annotation[] annotations, final MediaType mediaType) {
+    return BlobInfo.class.isAssignableFrom(type) || BlobRanges.class.isAssignableFrom(type);
+  }
+
+  @Override
+  public long getSize(final Object entity, final Class<?> type, final Type genericType, final Annotation[] annotations, final MediaType mediaType) {
+    if (entity instanceof BlobRanges) {
+      return ((BlobRanges) entity).contentLength();
+    }
+    return ((BlobInfo) entity).size();
+  }
+
+  @Override
+  public void writeTo(
+      final Object entity,
+      final Class<?> type,
+      final Type genericType,
+      final Annotation[] annotations,
+      final MediaType mediaType,
+      final MultivaluedMap<String, Object> httpHeaders,
+      final OutputStream entityStream) throws IOException, WebApplicationException {
+
+    if (entity instanceof BlobInfo) {
+      final BlobInfo blob = (BlobInfo) entity;
+      send(blob, 0, blob.size(), 200, mediaType, httpHeaders, entityStream);
+      return;
+    }
+
+    final BlobRanges ranges = (BlobRanges) entity;
+
+    if (!ranges.isMultipart()) {
+      final Range<Long> range = ranges.ranges().get(0);
+      send(ranges.blob(), range.lowerEndpoint(), BlobRanges.size(range), 206, mediaType, httpHeaders, entityStream);
+      return;
+    }
+
+    for (final Range<Long> range : ranges.ranges()) {
+      entityStream.write(ranges.partHeader(range));
+      copy(ranges.blob(), range.lowerEndpoint(), BlobRanges.size(range), entityStream);
+    }
+
+    entityStream.write(ranges.trailer());
+
+  }
+
+  /**
+   * sends the given region of the blob as the whole response body.
+   */
+
+  private void send(
+      final BlobInfo blob,
+      final long offset,
+      final long length,
+      final int status,
+      final MediaType mediaType,
+      final MultivaluedMap<String, Object> httpHeaders,
+      final OutputStream entityStream) throws IOException {
+
+    final Optional<Path> file = blob.path();
+
+    final Response grizzly = file.isPresent() ? this.response.get() : null;
+
+    if (grizzly != null && grizzly.isSendFileEnabled() && !grizzly.getRequest().isSecure()) {
+      sendfile(grizzly, file.get(), offset, length, status, mediaType, httpHeaders);
+      return;
+    }
+
+    copy(blob, offset, length, entityStream);
+
+  }
+
+  /**
+   * zero-copy path. grizzly writes the headers then the file, so we put the status and headers on the grizzly response
+   * ourselves (jersey only does so once its own stream is written to, which we bypass). when jersey commits afterwards
+   * it's a no-op, as the response is already committed.
+   *
+   * the response is suspended before handing over (if it isn't already, as it is for async requests), so that jersey
+   * resumes it once we return (and not before the transfer is complete).
+   */
+
+  private void sendfile(
+      final Response grizzly,
+      final Path file,
+      final long offset,
+      final long length,
+      final int status,
+      final MediaType mediaType,
+      final MultivaluedMap<String, Object> httpHeaders) throws IOException {
+
+    grizzly.setStatus(status);
+
+    httpHeaders.forEach((name, values) -> values.forEach(value -> grizzly.addHeader(name, value.toString())));
+
+    grizzly.setContentType(mediaType.toString());
+
+    final CompletableFuture<Object> done = new CompletableFuture<>();
+
+    if (!grizzly.isSuspended()) {
+      grizzly.suspend();
+    }
+
+    grizzly.getOutputBuffer().sendfile(file.toFile(), offset, length, completing(done));
+
+    try {
+      done.get();
+    }
+    catch (final InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException(ex);
+    }
+    catch (final ExecutionException ex) {
+      log.warn("sendfile of {} failed: {}", file, ex.getCause().toString());
+      throw new IOException(ex.getCause());
+    }
+
+  }
+
+  /**
+   * a handler which completes the future. grizzly wants a handler of the raw {@link WriteResult}, which this lets us
+   * give it without naming the raw type.
+   */
+
+  private static <R> CompletionHandler<R> completing(final CompletableFuture<? super R> done) {
+
+    return new CompletionHandler<R>() {
+
+      @Override
+      public void cancelled() {
+        done.cancel(false);
+      }
+
+      @Override
+      public void failed(final Throwable throwable) {
+        done.completeExceptionally(throwable);
+      }
+
+      @Override
+      public void completed(final R result) {
+        done.complete(result);
+      }
+
+      @Override
+      public void updated(final R result) {
+      }
+
+    };
+
+  }
+
+  /**
+   * copies the region of the blob to the stream, using a positioned channel read when it's a file.
+   */
+
+  private static void copy(final BlobInfo blob, final long offset, final long length, final OutputStream entityStream) throws IOException {
+
+    final Optional<Path> file = blob.path();
+
+    if (!file.isPresent()) {
+      try (InputStream in = blob.openStream()) {
+        ByteStreams.skipFully(in, offset);
+        if (ByteStreams.copy(ByteStreams.limit(in, length), entityStream) != length) {
+          throw new EOFException("blob " + blob.digest() + " truncated");
+        }
+      }
+      return;
+    }
+
+    try (FileChannel channel = FileChannel.open(file.get(), StandardOpenOption.READ)) {
+
+      final WritableByteChannel out = Channels.newChannel(entityStream);
+
+      final long end = offset + length;
+
+      long position = offset;
+
+      while (position < end) {
+
+        final long written = channel.transferTo(position, end - position, out);
+
+        if (written <= 0) {
+          throw new EOFException("blob " + file.get() + " truncated at " + position + " of " + end + " bytes");
+        }
+
+        position += written;
+
+      }
+
+    }
+
+  }
+
+}
@@ -0,0 +1,107 @@
+package io.zrz.joci.registry;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.util.List;
+import java.util.UUID;
+
+import javax.ws.rs.core.MediaType;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Range;
+
+import io.zrz.joci.spi.RegistryProvider.BlobInfo;
+
+/**
+ * one or more byte ranges of a blob, sent as a 206 partial content response.
+ *
+ * a single range is sent as-is, multiple ranges as multipart/byteranges.
+ *
+ * @author theo
+ *
+ */
+
+public class BlobRanges {
+
+  private final BlobInfo blob;
+  private final long length;
+  private final List<Range<Long>> ranges;
+  private final String boundary;
+
+  public BlobRanges(final BlobInfo blob, final List<Range<Long>> ranges) {
+    if (ranges.isEmpty()) {
+      throw new IllegalArgumentException("no ranges");
+    }
+    this.blob = blob;
+    this.length = blob.size();
+    this.ranges = ImmutableList.copyOf(ranges);
+    this.boundary = UUID.randomUUID().toString().replace("-", "");
+  }
+
+  public BlobInfo blob() {
+    return this.blob;
+  }
+
+  public List<Range<Long>> ranges() {
+    return this.ranges;
+  }
+
+  public boolean isMultipart() {
+    return this.ranges.size() > 1;
+  }
+
+  public MediaType mediaType() {
+    if (isMultipart()) {
+      return new MediaType("multipart", "byteranges", ImmutableMap.of("boundary", this.boundary));
+    }
+    return MediaType.APPLICATION_OCTET_STREAM_TYPE;
+  }
+
+  /**
+   * the Content-Range value for the given range of this blob.
+   */
+
+  public String contentRange(final Range<Long> range) {
+    return "bytes " + range.lowerEndpoint() + "-" + range.upperEndpoint() + "/" + this.length;
+  }
+
+  /**
+   * the header preceding the given part of a multipart response.
+   */
+
+  public byte[] partHeader(final Range<Long> range) {
+    return ("\r\n--" + this.boundary + "\r\n"
+        + "Content-Type: " + MediaType.APPLICATION_OCTET_STREAM + "\r\n"
+        + "Content-Range: " + contentRange(range) + "\r\n"
+        + "\r\n").getBytes(US_ASCII);
+  }
+
+  /**
+   * the closing delimiter of a multipart response.
+   */
+
+  public byte[] trailer() {
+    return ("\r\n--" + this.boundary + "--\r\n").getBytes(US_ASCII);
+  }
+
+  /**
+   * the number of bytes in the response body.
+   */
+
+  public long contentLength() {
+    if (!isMultipart()) {
+      return size(this.ranges.get(0));
+    }
+    long total = trailer().length;
+    for (final Range<Long> range : this.ranges) {
+      total += partHeader(range).length + size(range);
+    }
+    return total;
+  }
+
+  static long size(final Range<Long> range) {
+    return range.upperEndpoint() - range.lowerEndpoint() + 1;
+  }
+
+}
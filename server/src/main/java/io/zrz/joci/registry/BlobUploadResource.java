@@ -3,14 +3,18 @@ package io.zrz.joci.registry;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
-import java.nio.file.StandardOpenOption;
 
+import javax.ws.rs.DELETE;
+import javax.ws.rs.GET;
 import javax.ws.rs.HeaderParam;
 import javax.ws.rs.PATCH;
 import javax.ws.rs.PUT;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.UriBuilder;
 import javax.ws.rs.core.UriInfo;
 
@@ -18,12 +22,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.Range;
-import com.google.common.io.ByteSink;
-import com.google.common.io.MoreFiles;
 
 import io.zrz.joci.core.Digest;
 import io.zrz.joci.spi.RegistryProvider;
 import io.zrz.joci.spi.RegistryProvider.BlobInfo;
+import io.zrz.joci.spi.RegistryUploadSession;
 
 public class BlobUploadResource {
 
@@ -34,6 +37,8 @@ public class BlobUploadResource {
 
   private RegistryProvider registry;
 
+  private RegistryExecutors executors;
+
   private String uploadId;
 
   /**
@@ -41,8 +46,9 @@ public class BlobUploadResource {
    * @param registry
    */
 
-  public BlobUploadResource(final RegistryProvider registry, final String uploadId) {
+  public BlobUploadResource(final RegistryProvider registry, final RegistryExecutors executors, final String uploadId) {
     this.registry = registry;
+    this.executors = executors;
     this.uploadId = uploadId;
   }
 
@@ -55,35 +61,109 @@ public class BlobUploadResource {
   }
 
   /**
+   * the current progress of the upload, so a client can pick up where it left off.
+   */
+
+  @GET
+  public Response status() {
+
+    final RegistryUploadSession session = registry.resumeUpload(uploadId);
+
+    if (session == null) {
+      return unknown();
+    }
+
+    return progress(Response.noContent(), session).build();
+
+  }
+
+  /**
+   * appends a chunk to the upload. the chunk must start at the current offset; if it doesn't, the client is told where
+   * we're up to with a 416.
    *
-   * @param req
-   * @param registry
-   * @param uploadId
+   * @param contentRange
    * @param content
-   * @return
-   * @throws IOException
+   * @param async
    */
 
   @PATCH
-  public Response patch(@HeaderParam("Range") final RangeHeader range, final InputStream content) throws IOException {
+  public void patch(
+      @HeaderParam("Content-Range") final String contentRange,
+      final InputStream content,
+      @Suspended final AsyncResponse async) {
+    // reading the chunk waits on the client, so is done on the transfer pool.
+    this.executors.transfer(async, () -> this.append(contentRange, content));
+  }
 
-    log.info("PATCH:  reg=" + registry + ", uploadId=" + uploadId);
+  private Response append(final String contentRange, final InputStream content) throws IOException {
 
-    registry.resumeUpload(uploadId).patch(range == null ? Range.all() : range.getRange(), content);
+    log.info("PATCH:  reg=" + registry + ", uploadId=" + uploadId + ", range=" + contentRange);
 
-    final java.nio.file.Path file = this.registry.resolve(uploadId);
+    final RegistryUploadSession session = registry.resumeUpload(uploadId);
 
-    final ByteSink stream = MoreFiles.asByteSink(file, StandardOpenOption.CREATE);
+    if (session == null) {
+      return unknown();
+    }
+
+    final Range<Long> range;
+
+    try {
+      range = RangeHeader.fromContentRange(contentRange);
+    }
+    catch (final IllegalArgumentException ex) {
+      return progress(Response.status(400), session).build();
+    }
 
-    final long len = stream.writeFrom(content);
+    try {
+
+      final long len = session.patch(range == null ? Range.all() : range, content);
+
+      log.debug("wrote {} bytes to {}", len, uploadId);
+
+    }
+    catch (final IllegalArgumentException ex) {
+      log.info("rejecting chunk: {}", ex.getMessage());
+      return progress(Response.status(416), session).build();
+    }
 
-    System.err.println("wrote: " + len + " to " + file);
+    return progress(Response.status(202), session).build();
 
-    return Response.status(202)
+  }
+
+  /**
+   * abandons the upload.
+   */
+
+  @DELETE
+  public Response cancel() throws IOException {
+
+    if (!registry.cancelUpload(uploadId)) {
+      return unknown();
+    }
+
+    return Response.noContent()
+        .header("Docker-Distribution-Api-Version", DockerRegistry.API_VERSION)
+        .build();
+
+  }
+
+  /**
+   * adds the headers which tell the client how much of the upload we have.
+   */
+
+  private ResponseBuilder progress(final ResponseBuilder response, final RegistryUploadSession session) {
+    return response
         .header("Docker-Upload-Uuid", uploadId)
         .header("Docker-Distribution-Api-Version", DockerRegistry.API_VERSION)
         .location(uploadEndpoint(uploadId))
-        .header("Range", "0-" + (len - 1))
+        .header("Range", "0-" + Math.max(0, session.offset() - 1))
+        .header("Content-Length", 0);
+  }
+
+  private Response unknown() {
+    return Response.status(404).header("Content-Type", "application/json; charset=utf-8")
+        .header("Docker-Distribution-Api-Version", DockerRegistry.API_VERSION)
+        .header("Content-Length", Long.valueOf(0))
         .build();
   }
 
@@ -91,26 +171,33 @@ public class BlobUploadResource {
    * the upload is complete.
    *
    * @param digest
-   * @return
+   * @param async
    */
 
   @PUT
-  public Response put(@QueryParam("digest") final String hash, final InputStream content) {
+  public void put(@QueryParam("digest") final String hash, final InputStream content, @Suspended final AsyncResponse async) {
+    this.executors.transfer(async, () -> this.complete(hash, content));
+  }
+
+  private Response complete(final String hash, final InputStream content) {
 
     final Digest digest = new Digest(hash);
 
     log.info("PUT: reg=" + registry + ", id=" + uploadId + ", digest=" + digest);
     try {
 
-      if (content != null) {
+      final RegistryUploadSession session = registry.resumeUpload(uploadId);
 
-        final java.nio.file.Path file = this.registry.resolve(uploadId);
+      if (session == null) {
+        return unknown();
+      }
 
-        final ByteSink stream = MoreFiles.asByteSink(file, StandardOpenOption.CREATE);
+      if (content != null) {
 
-        final long len = stream.writeFrom(content);
+        // the final chunk (or the whole blob, for a monolithic upload) is hashed as it is written.
+        final long len = session.patch(Range.all(), content);
 
-        System.err.println("wrote: " + len + " bytes to " + file);
+        log.debug("wrote {} bytes to {}", len, uploadId);
 
       }
 
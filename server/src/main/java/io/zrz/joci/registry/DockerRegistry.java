@@ -3,19 +3,22 @@ package io.zrz.joci.registry;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
 
 import javax.inject.Singleton;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
 import javax.ws.rs.HEAD;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.HttpHeaders;
@@ -32,12 +35,15 @@ import org.slf4j.LoggerFactory;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import com.google.common.hash.Hashing;
+import com.google.common.collect.Range;
 import com.google.common.io.ByteStreams;
-import com.google.common.io.MoreFiles;
+import com.google.common.io.CountingInputStream;
 
 import io.zrz.joci.core.Digest;
+import io.zrz.joci.registry.ManifestCache.Manifest;
 import io.zrz.joci.registry.jpx.JpxBuilder;
+import io.zrz.joci.registry.jpx.JpxBuilders;
+import io.zrz.joci.registry.jpx.JpxCache;
 import io.zrz.joci.spi.RegistryProvider;
 import io.zrz.joci.spi.RegistryProvider.BlobInfo;
 import io.zrz.joci.spi.RegistryUploadSession;
@@ -57,13 +63,69 @@ public class DockerRegistry {
 
   static final String API_VERSION = "registry/2.0";
 
+  static final String ACCEPT_RANGES = "Accept-Ranges";
+
+  static final String CONTENT_RANGE = "Content-Range";
+
+  /**
+   * where the JPX layer cache is kept in the store, unless configured otherwise.
+   */
+
+  public static final String JPX_CACHE = "_cache";
+
+  /**
+   * where the variants of layers are recorded in the store.
+   */
+
+  public static final String VARIANTS = "_variants";
+
+  /**
+   * the largest JPX manifest accepted, as it's parsed into memory. this is many thousands of classpath entries.
+   */
+
+  static final long MAX_JPX_MANIFEST_SIZE = 16 * 1024 * 1024;
+
   private final RegistryProvider registry;
 
+  private final ManifestCache manifests;
+
   @Context
   UriInfo uri;
 
+  private final RegistryExecutors executors;
+
+  private final JpxBuilders jpx;
+
+  private final ManifestVariants variants;
+
   public DockerRegistry(final RegistryProvider registry) {
+    this(
+        registry,
+        new ManifestCache(ManifestCache.DEFAULT_MAX_BYTES),
+        new RegistryExecutors(),
+        new JpxBuilders(registry, new JpxCache(registry.resolve(JPX_CACHE))),
+        null);
+  }
+
+  /**
+   * @param jpx
+   *          builds the images for JPX manifests.
+   * @param variants
+   *          rewrites manifests to use transcoded layers when the client asks for them, or null to always serve them as
+   *          pushed.
+   */
+
+  public DockerRegistry(
+      final RegistryProvider registry,
+      final ManifestCache manifests,
+      final RegistryExecutors executors,
+      final JpxBuilders jpx,
+      final ManifestVariants variants) {
     this.registry = registry;
+    this.manifests = manifests;
+    this.executors = executors;
+    this.jpx = jpx;
+    this.variants = variants;
   }
 
   @GET
@@ -72,6 +134,34 @@ public class DockerRegistry {
     return Response.status(200).entity("{}").header("Docker-Distribution-Api-Version", API_VERSION).build();
   }
 
+  private static void layer(final ObjectNode node, final JpxBuilder.Layer layer) {
+    node.put("mediaType", layer.compression().mediaType())
+        .put("size", layer.size())
+        .put("digest", new Digest(layer.compressedHash()).toString())
+        .put("contentDigest", new Digest(layer.uncompressedHash()).toString());
+  }
+
+  /**
+   * how well JPX layers are being reused.
+   */
+
+  @GET
+  @Path("/_jpx/cache")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response jpxCacheStats() {
+
+    final JpxCache.Stats stats = this.jpx.cache().stats();
+
+    final ObjectNode res = JsonNodeFactory.instance.objectNode()
+        .put("hits", stats.hits)
+        .put("misses", stats.misses)
+        .put("evictions", stats.evictions)
+        .put("entries", stats.entries);
+
+    return Response.ok(res.toString()).header("Docker-Distribution-Api-Version", API_VERSION).build();
+
+  }
+
   /**
    * start a new upload.
    *
@@ -114,7 +204,7 @@ public class DockerRegistry {
 
   @Path("/uploads/{id:[^/]+}")
   public BlobUploadResource upload(@PathParam("id") final String uploadId) {
-    return new BlobUploadResource(this.registry, uploadId);
+    return new BlobUploadResource(this.registry, this.executors, uploadId);
   }
 
   /**
@@ -141,71 +231,59 @@ public class DockerRegistry {
           .build();
     }
 
-    try {
-
-      final java.nio.file.Path tempFile = Files.createTempFile("manifest", ".json");
-
-      try {
-
-        MoreFiles.asByteSink(tempFile, StandardOpenOption.TRUNCATE_EXISTING).writeFrom(manifest);
-
-        final Digest hash = new Digest(MoreFiles.asByteSource(tempFile).hash(Hashing.sha256()));
+    // hashed as it's read, and kept in memory unless it's unusually large.
+    try (ManifestBody body = ManifestBody.read(manifest)) {
 
-        log.debug("hash is {}", hash.toString());
+      final Digest hash = body.digest();
 
-        final java.nio.file.Path file = this.registry.resolve(registry, version);
+      log.debug("hash is {}", hash.toString());
 
-        if (Files.exists(file) && !Files.isSymbolicLink(file)) {
-          log.warn("ignoring attempt to overwrite content digest");
-          return Response.status(403)
-              .header("Docker-Content-Digest", hash.toString())
-              .build();
-        }
+      final java.nio.file.Path file = this.registry.resolve(registry, version);
 
-        Files.createDirectories(file.getParent());
+      if (Files.exists(file) && !Files.isSymbolicLink(file)) {
+        log.warn("ignoring attempt to overwrite content digest");
+        return Response.status(403)
+            .header("Docker-Content-Digest", hash.toString())
+            .build();
+      }
 
-        // the target file based on the hash.
-        final java.nio.file.Path real = file.getParent().resolve(hash.toString());
+      Files.createDirectories(file.getParent());
 
-        // the real target already exists, so nothing to do.
-        if (Files.exists(real)) {
+      // the target file based on the hash.
+      final java.nio.file.Path real = file.getParent().resolve(hash.toString());
 
-          return Response.notModified().header("Docker-Distribution-Api-Version", API_VERSION)
-              .header("Docker-Content-Digest", hash.toString()).build();
+      // the real target already exists, so nothing to do.
+      if (Files.exists(real)) {
 
-        }
+        return Response.notModified().header("Docker-Distribution-Api-Version", API_VERSION)
+            .header("Docker-Content-Digest", hash.toString()).build();
 
-        // real is repo/manifests/{hash}
-        // tempFile is uploaded content
-        // file is the repo/manifests/{tag}
+      }
 
-        // move from tempfile to the hash
-        Files.move(tempFile, real);
+      // real is repo/manifests/{hash}
+      // body is uploaded content
+      // file is the repo/manifests/{tag}
 
-        // create link from the tagged path to the actual file.
+      // write the content out under its hash
+      body.writeTo(real);
 
-        Files.deleteIfExists(file);
+      // create link from the tagged path to the actual file. it's relative, so the repository can be moved.
 
-        Files.createSymbolicLink(file, real);
+      Files.deleteIfExists(file);
 
-        log.debug(MoreFiles.asCharSource(real, StandardCharsets.UTF_8).read());
+      Files.createSymbolicLink(file, real.getFileName());
 
-        //
-        return Response
-            .created(UriBuilder
-                .fromResource(DockerRegistry.class)
-                .path(registry)
-                .path("manifests")
-                .path(version).build())
-            .header("Docker-Distribution-Api-Version", API_VERSION)
-            .header("Docker-Content-Digest", hash.toString()).build();
+      this.manifests.invalidate(file);
 
-      }
-      finally {
-
-        Files.deleteIfExists(tempFile);
-
-      }
+      //
+      return Response
+          .created(UriBuilder
+              .fromResource(DockerRegistry.class)
+              .path(registry)
+              .path("manifests")
+              .path(version).build())
+          .header("Docker-Distribution-Api-Version", API_VERSION)
+          .header("Docker-Content-Digest", hash.toString()).build();
 
     }
     catch (final Throwable ex) {
@@ -229,109 +307,132 @@ public class DockerRegistry {
   @Path("/{registry:[^_].*}/manifests/{version:.+}")
   @Consumes("application/vnd.jpx.app.manifest.v1+json")
   @Produces("application/json;charset=UTF-8")
-  public Response putJpxManifest(@Context final UriInfo req,
+  public void putJpxManifest(@Context final UriInfo req,
       @PathParam("registry") final String registry,
       @PathParam("version") final String version,
-      final InputStream manifest) {
+      final InputStream manifest,
+      @Suspended final AsyncResponse async) {
 
     log.info("PUT JPX MANIFEST: registry={} version={}", registry, version);
 
     if (version.startsWith("sha256:")) {
-      return Response.status(400)
-          .build();
+      async.resume(Response.status(400)
+          .build());
+      return;
     }
 
-    try {
-
-      final java.nio.file.Path tempFile = Files.createTempFile("manifest", ".json");
-
-      try {
-
-        MoreFiles.asByteSink(tempFile, StandardOpenOption.TRUNCATE_EXISTING).writeFrom(manifest);
+    // layer builds can take a while, so are run on their own (bounded) pool.
+    this.executors.build(async, () -> this.buildJpx(registry, version, manifest));
 
-        JpxBuilder b = new JpxBuilder(this.registry, tempFile);
+  }
 
-        if (!b.missingBlobs().isEmpty()) {
+  private Response buildJpx(final String registry, final String version, final InputStream manifest) {
 
-          ObjectNode res = JsonNodeFactory.instance.objectNode();
+    try {
 
-          res.put("status", "missingBlobs");
-          ArrayNode missing = res.putArray("missing");
+      // parsed straight off the request, the JPX manifest itself is never stored.
+      final CountingInputStream bounded = new CountingInputStream(ByteStreams.limit(manifest, MAX_JPX_MANIFEST_SIZE + 1));
 
-          b.missingBlobs()
-              .forEach(e -> {
-                missing.add(e);
-              });
+      final JpxBuilder b;
 
-          return Response.status(424)
+      try {
+        b = this.jpx.create(bounded);
+      }
+      catch (final RuntimeException ex) {
+        // cut off at the limit, so it failed to parse.
+        if (bounded.getCount() > MAX_JPX_MANIFEST_SIZE) {
+          log.warn("JPX manifest for {}:{} is larger than {} bytes", registry, version, MAX_JPX_MANIFEST_SIZE);
+          return Response.status(413)
               .header("Docker-Distribution-Api-Version", API_VERSION)
-              .entity(res.toString())
               .build();
-
         }
+        throw ex;
+      }
 
-        Digest hash = b.put(registry, version);
+      final List<ObjectNode> missingBlobs = b.missingBlobs();
+
+      if (!missingBlobs.isEmpty()) {
 
         ObjectNode res = JsonNodeFactory.instance.objectNode();
 
-        if (b.previousTagTarget().isPresent()) {
+        res.put("status", "missingBlobs");
+        ArrayNode missing = res.putArray("missing");
 
-          Digest prev = b.previousTagTarget().get();
+        missingBlobs
+            .forEach(e -> {
+              missing.add(e);
+            });
 
-          if (!prev.hash().equals(hash.hash())) {
+        return Response.status(424)
+            .header("Docker-Distribution-Api-Version", API_VERSION)
+            .entity(res.toString())
+            .build();
 
-            res.put("status", "replaced");
-            res.put("previous", prev.toString());
+      }
 
-          }
-          else {
+      Digest hash = b.put(registry, version);
 
-            res.put("status", "unchanged");
+      this.manifests.invalidate(this.registry.resolve(registry, version));
 
-          }
+      ObjectNode res = JsonNodeFactory.instance.objectNode();
+
+      if (b.previousTagTarget().isPresent()) {
+
+        Digest prev = b.previousTagTarget().get();
+
+        if (!prev.hash().equals(hash.hash())) {
+
+          res.put("status", "replaced");
+          res.put("previous", prev.toString());
 
         }
         else {
 
-          res.put("status", "created");
+          res.put("status", "unchanged");
 
         }
 
-        res.put("target", hash.toString());
-
-        res.put("virtualSize", b.virtualSize());
-
-        res.putObject("stableLayer")
-            .put("size", b.stableLayer().size())
-            .put("digest", new Digest(b.stableLayer().compressedHash()).toString())
-            .put("contentDigest", new Digest(b.stableLayer().uncompressedHash()).toString());
-
-        res.putObject("changingLayer")
-            .put("size", b.changingLayer().size())
-            .put("digest", new Digest(b.changingLayer().compressedHash()).toString())
-            .put("contentDigest", new Digest(b.changingLayer().uncompressedHash()).toString());
-
-        //
-        return Response
-            .created(
-                UriBuilder
-                    .fromResource(DockerRegistry.class)
-                    .path(registry)
-                    .path("manifests")
-                    .path(version)
-                    .build())
-            .header("Docker-Distribution-Api-Version", API_VERSION)
-            .header("Docker-Content-Digest", hash.toString())
-            .entity(res.toString())
-            .build();
+      }
+      else {
+
+        res.put("status", "created");
 
       }
-      finally {
 
-        Files.deleteIfExists(tempFile);
+      res.put("target", hash.toString());
 
+      res.put("virtualSize", b.virtualSize());
+
+      layer(res.putObject("stableLayer"), b.stableLayer());
+
+      final ArrayNode stableLayers = res.putArray("stableLayers");
+
+      for (final JpxBuilder.Layer layer : b.stableLayers()) {
+        layer(stableLayers.addObject(), layer);
       }
 
+      b.runtimeLayer().ifPresent(layer -> layer(res.putObject("runtimeLayer"), layer));
+
+      b.runtimeModules().ifPresent(modules -> modules.forEach(res.putArray("runtimeModules")::add));
+
+      b.cdsLayer().ifPresent(layer -> layer(res.putObject("cdsLayer"), layer));
+
+      layer(res.putObject("changingLayer"), b.changingLayer());
+
+      //
+      return Response
+          .created(
+              UriBuilder
+                  .fromResource(DockerRegistry.class)
+                  .path(registry)
+                  .path("manifests")
+                  .path(version)
+                  .build())
+          .header("Docker-Distribution-Api-Version", API_VERSION)
+          .header("Docker-Content-Digest", hash.toString())
+          .entity(res.toString())
+          .build();
+
     }
     catch (final Throwable ex) {
       ex.printStackTrace();
@@ -356,19 +457,30 @@ public class DockerRegistry {
   @Path("/{registry:[^_].*}/manifests/{version:.+}")
   @Produces("application/vnd.docker.distribution.manifest.v2+json")
   public Response statManifest(@Context final UriInfo req, @PathParam("registry") final String registry,
-      @PathParam("version") final String version) throws IOException {
+      @PathParam("version") final String version,
+      @HeaderParam(HttpHeaders.IF_NONE_MATCH) final String ifNoneMatch,
+      @Context final HttpHeaders headers) throws IOException {
 
     final java.nio.file.Path file = this.registry.resolve(registry, version);
 
     log.info("HEAD MANIFEST: registry={} version={} at={}", registry, version, file);
 
-    if (!Files.exists(file)) {
+    final Manifest manifest = this.select(file, version, this.manifests.get(file), headers);
+
+    if (manifest == null) {
       return Response.status(404).header("Docker-Distribution-Api-Version", API_VERSION)
           .header("Content-Length", Long.valueOf(0)).build();
     }
 
-    return Response.ok().header("Docker-Distribution-Api-Version", API_VERSION).header("Docker-Content-Digest",
-        "sha256:" + MoreFiles.asByteSource(file).hash(Hashing.sha256()).toString()).build();
+    if (manifest.matches(ifNoneMatch)) {
+      return notModified(manifest);
+    }
+
+    return this.vary(Response.ok().header("Docker-Distribution-Api-Version", API_VERSION)
+        .header("Docker-Content-Digest", manifest.digest().toString())
+        .tag(manifest.etag())
+        .header("Content-Length", Long.valueOf(manifest.content().length)))
+        .build();
 
   }
 
@@ -376,46 +488,104 @@ public class DockerRegistry {
   @Path("/{registry:[^_].*}/manifests/{version:.+}")
   @Produces("application/vnd.docker.distribution.manifest.v2+json")
   public Response getManifest(@PathParam("registry") final String registry,
-      @PathParam("version") final String version) throws IOException {
+      @PathParam("version") final String version,
+      @HeaderParam(HttpHeaders.IF_NONE_MATCH) final String ifNoneMatch,
+      @Context final HttpHeaders headers) throws IOException {
 
     final java.nio.file.Path file = this.registry.resolve(registry, version);
 
     log.info("GET MANIFEST: registry={} version={} at={}", registry, version, file);
 
-    if (!Files.exists(file)) {
+    final Manifest manifest = this.select(file, version, this.manifests.get(file), headers);
+
+    if (manifest == null) {
       return Response.status(404).header("Docker-Distribution-Api-Version", API_VERSION)
           .header("Content-Length", Long.valueOf(0)).build();
     }
 
-    return Response.ok(file.toFile()).header("Docker-Distribution-Api-Version", API_VERSION)
-        .header("Docker-Content-Digest",
-            "sha256:" + MoreFiles.asByteSource(file).hash(Hashing.sha256()).toString())
+    if (manifest.matches(ifNoneMatch)) {
+      return notModified(manifest);
+    }
+
+    return this.vary(Response.ok(manifest.content()).header("Docker-Distribution-Api-Version", API_VERSION)
+        .header("Docker-Content-Digest", manifest.digest().toString())
+        .tag(manifest.etag()))
         .build();
 
   }
 
+  /**
+   * the manifest to serve, which for a tag may have its layers swapped for ones the client has asked for. a digest
+   * always gives exactly what it names.
+   */
+
+  private Manifest select(
+      final java.nio.file.Path file,
+      final String version,
+      final Manifest manifest,
+      final HttpHeaders headers) throws IOException {
+
+    if (manifest == null || this.variants == null) {
+      return manifest;
+    }
+
+    final List<MediaType> accept = version.startsWith("sha256:")
+        ? Collections.emptyList()
+        : headers.getAcceptableMediaTypes();
+
+    return this.variants.select(file, manifest, accept);
+
+  }
+
+  /**
+   * what's served for a tag depends on the Accept header once layers have variants, so caches need to know.
+   */
+
+  private Response.ResponseBuilder vary(final Response.ResponseBuilder res) {
+    return (this.variants == null) ? res : res.header(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+  }
+
   @GET
   @Path("/{registry:[^_].*}/manifests/{version:.+}")
   @Produces("text/plain")
   public Response getPlainManifest(@PathParam("registry") final String registry,
-      @PathParam("version") final String version) throws IOException {
+      @PathParam("version") final String version,
+      @HeaderParam(HttpHeaders.IF_NONE_MATCH) final String ifNoneMatch) throws IOException {
 
     final java.nio.file.Path file = this.registry.resolve(registry, version);
 
     log.info("GET MANIFEST: registry={} version={} at={}", registry, version, file);
 
-    if (!Files.exists(file)) {
+    final Manifest manifest = this.manifests.get(file);
+
+    if (manifest == null) {
       return Response.status(404).header("Docker-Distribution-Api-Version", API_VERSION)
           .header("Content-Length", Long.valueOf(0)).build();
     }
 
-    return Response.ok("sha256:" + MoreFiles.asByteSource(file).hash(Hashing.sha256()).toString())
-        .header("Docker-Distribution-Api-Version", API_VERSION).header("Docker-Content-Digest",
-            "sha256:" + MoreFiles.asByteSource(file).hash(Hashing.sha256()).toString())
+    if (manifest.matches(ifNoneMatch)) {
+      return notModified(manifest);
+    }
+
+    return Response.ok(manifest.digest().toString())
+        .header("Docker-Distribution-Api-Version", API_VERSION)
+        .header("Docker-Content-Digest", manifest.digest().toString())
+        .tag(manifest.etag())
         .build();
 
   }
 
+  /**
+   * the client already has this manifest (e.g, a deploy controller polling a tag), so nothing to send.
+   */
+
+  private static Response notModified(final Manifest manifest) {
+    return Response.notModified(manifest.etag())
+        .header("Docker-Distribution-Api-Version", API_VERSION)
+        .header("Docker-Content-Digest", manifest.digest().toString())
+        .build();
+  }
+
   //
 
   /**
@@ -435,7 +605,7 @@ public class DockerRegistry {
 
     final Digest digest = new Digest("sha256", hash);
 
-    System.err.println("HEAD: reg=" + this.registry + ", hash=" + digest);
+    log.debug("HEAD: reg={}, hash={}", this.registry, digest);
 
     final BlobInfo blob = this.registry.stat(digest);
 
@@ -445,16 +615,23 @@ public class DockerRegistry {
           .build();
     }
 
-    return Response.ok(blob.openStream(), MediaType.APPLICATION_OCTET_STREAM_TYPE)
+    // only metadata, the blob itself is never opened.
+    return Response.ok()
         .type(MediaType.APPLICATION_OCTET_STREAM_TYPE).header("Docker-Distribution-Api-Version", API_VERSION)
         .header("Docker-Content-Digest", digest.toString()).header(HttpHeaders.ETAG, digest.toString())
+        .header(ACCEPT_RANGES, "bytes")
         .header("Content-Length", Long.valueOf(blob.size())).build();
 
   }
 
   @GET
   @Path("/{registry:[^_].*}/blobs/sha256:{hash:[a-f0-9]+}")
-  public Response getBlobRedirect(@PathParam("registry") final String registry, @PathParam("hash") final String hash)
+  public void getBlobRedirect(
+      @PathParam("registry") final String registry,
+      @PathParam("hash") final String hash,
+      @HeaderParam("Range") final RangeHeader range,
+      @HeaderParam("If-Range") final String ifRange,
+      @Suspended final AsyncResponse async)
       throws IOException, UriBuilderException, IOException {
 
     final Digest digest = new Digest("sha256", hash);
@@ -462,12 +639,13 @@ public class DockerRegistry {
     final BlobInfo blob = this.registry.stat(digest);
 
     if (blob == null) {
-      return Response.status(404).header("Docker-Distribution-Api-Version", API_VERSION)
+      async.resume(Response.status(404).header("Docker-Distribution-Api-Version", API_VERSION)
           .header("X-Registry", registry).header("X-Digest", hash).header("Content-Length", Long.valueOf(0))
-          .build();
+          .build());
+      return;
     }
 
-    return sendBlob(blob, digest);
+    this.executors.transfer(async, () -> sendBlob(blob, digest, range, ifRange));
 
     // return Response
     // .temporaryRedirect(
@@ -499,6 +677,7 @@ public class DockerRegistry {
         .type(MediaType.APPLICATION_OCTET_STREAM_TYPE).header("Docker-Distribution-Api-Version", API_VERSION)
         .header("Docker-Content-Digest", digest.toString())
         .header(HttpHeaders.ETAG, new EntityTag(digest.toString()).getValue())
+        .header(ACCEPT_RANGES, "bytes")
         .header("Content-Length", Long.valueOf(blob.size())).build();
 
   }
@@ -516,7 +695,11 @@ public class DockerRegistry {
 
   @GET
   @Path("/_blobs/sha256:{hash:[a-f0-9]+}")
-  public Response getBlob(@PathParam("hash") final String hash) throws IOException {
+  public void getBlob(
+      @PathParam("hash") final String hash,
+      @HeaderParam("Range") final RangeHeader range,
+      @HeaderParam("If-Range") final String ifRange,
+      @Suspended final AsyncResponse async) throws IOException {
 
     final Digest digest = new Digest("sha256", hash);
 
@@ -525,25 +708,86 @@ public class DockerRegistry {
     final BlobInfo blob = this.registry.stat(digest);
 
     if (blob == null) {
-      return Response.status(404).header("Docker-Distribution-Api-Version", API_VERSION)
-          .header("Content-Length", Long.valueOf(0)).build();
+      async.resume(Response.status(404).header("Docker-Distribution-Api-Version", API_VERSION)
+          .header("Content-Length", Long.valueOf(0)).build());
+      return;
     }
 
-    return Response.ok(blob.openStream(), MediaType.APPLICATION_OCTET_STREAM_TYPE)
-        .header("Docker-Distribution-Api-Version", API_VERSION)
-        .header("Docker-Content-Digest", digest.toString()).header(HttpHeaders.ETAG, digest.toString())
-        .header("Content-Length", Long.valueOf(blob.size())).build();
+    // the body is written when the response is resumed, so on the transfer pool rather than a grizzly worker.
+    this.executors.transfer(async, () -> sendBlob(blob, digest, range, ifRange));
 
   }
 
-  Response sendBlob(BlobInfo blob, Digest digest) throws IOException {
+  /**
+   * the entity is the blob itself, which {@link BlobMessageBodyWriter} sends without copying it through the heap when
+   * it is backed by a file.
+   *
+   * if a range was requested (and any If-Range matches the digest ETag) only the requested ranges are sent, as a 206.
+   */
+
+  Response sendBlob(BlobInfo blob, Digest digest, RangeHeader range, String ifRange) throws IOException {
+
+    final long size = blob.size();
+
+    if (range == null || range.getUnit() != RangeHeader.Unit.BYTES || !ifRangeMatches(ifRange, digest)) {
+
+      return Response.ok(blob, MediaType.APPLICATION_OCTET_STREAM_TYPE)
+          .header("Docker-Distribution-Api-Version", API_VERSION)
+          .header("Docker-Content-Digest", digest.toString())
+          .header(HttpHeaders.ETAG, digest.toString())
+          .header(ACCEPT_RANGES, "bytes")
+          .header("Content-Length", Long.valueOf(size)).build();
+
+    }
+
+    final List<Range<Long>> ranges = range.resolve(size);
 
-    return Response.ok(blob.openStream(), MediaType.APPLICATION_OCTET_STREAM_TYPE)
+    if (ranges.isEmpty()) {
+
+      return Response.status(416)
+          .header("Docker-Distribution-Api-Version", API_VERSION)
+          .header("Docker-Content-Digest", digest.toString())
+          .header(ACCEPT_RANGES, "bytes")
+          .header(CONTENT_RANGE, "bytes */" + size)
+          .header("Content-Length", Long.valueOf(0)).build();
+
+    }
+
+    final BlobRanges partial = new BlobRanges(blob, ranges);
+
+    log.debug("sending {} of {}", ranges, digest);
+
+    final Response.ResponseBuilder res = Response.status(206)
+        .entity(partial)
+        .type(partial.mediaType())
         .header("Docker-Distribution-Api-Version", API_VERSION)
-        .header(HttpHeaders.ETAG, new EntityTag(digest.toString()).getValue())
-        .header("Docker-Content-Digest", digest.toString()).header(HttpHeaders.ETAG, digest.toString())
-        .header("Content-Length", Long.valueOf(blob.size())).build();
+        .header("Docker-Content-Digest", digest.toString())
+        .header(HttpHeaders.ETAG, digest.toString())
+        .header(ACCEPT_RANGES, "bytes")
+        .header("Content-Length", Long.valueOf(partial.contentLength()));
 
+    if (!partial.isMultipart()) {
+      res.header(CONTENT_RANGE, partial.contentRange(ranges.get(0)));
+    }
+
+    return res.build();
+
+  }
+
+  /**
+   * an If-Range only matches when it is a strong entity tag equal to the digest. anything else (a date, a weak tag)
+   * means the full blob is sent.
+   */
+
+  private static boolean ifRangeMatches(final String ifRange, final Digest digest) {
+    if (ifRange == null) {
+      return true;
+    }
+    final String value = ifRange.trim();
+    if (value.startsWith("W/")) {
+      return false;
+    }
+    return value.replace("\"", "").equals(digest.toString());
   }
 
 }
@@ -5,13 +5,34 @@ import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.NetworkListener;
+import org.glassfish.grizzly.threadpool.ThreadPoolConfig;
 import org.glassfish.jersey.grizzly2.httpserver.GrizzlyHttpServerFactory;
 import org.glassfish.jersey.server.ResourceConfig;
 import org.glassfish.jersey.server.ServerProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import io.zrz.joci.core.BlobIndex;
 import io.zrz.joci.core.FilesystemRegistry;
+import io.zrz.joci.jpx.JpxCompression;
+import io.zrz.joci.jpx.JpxEntrypoint;
+import io.zrz.joci.registry.jpx.JpxBaseImages;
+import io.zrz.joci.registry.jpx.JpxBuilders;
+import io.zrz.joci.registry.jpx.JpxCache;
+import io.zrz.joci.registry.jpx.JpxCds;
+import io.zrz.joci.registry.jpx.JpxLayering;
+import io.zrz.joci.registry.jpx.JpxRuntime;
+import io.zrz.joci.registry.variants.LayerTranscoder;
+import io.zrz.joci.registry.variants.LayerVariants;
 
 /**
  * example launcher for registry, using local path for images.
@@ -21,6 +42,8 @@ import io.zrz.joci.core.FilesystemRegistry;
  */
 public class Main {
 
+  private static final Logger log = LoggerFactory.getLogger(Main.class);
+
   public static void main(final String[] args) {
 
     if (args.length != 2) {
@@ -36,22 +59,185 @@ public class Main {
 
     final URI baseUri = URI.create(args[1]);
 
-    FilesystemRegistry registry = new FilesystemRegistry(path);
+    // uploads which see no activity for this long are dropped, e.g -Djoci.upload.ttl=PT30M
+    final Duration uploadTtl = Duration.parse(System.getProperty("joci.upload.ttl", FilesystemRegistry.DEFAULT_UPLOAD_TTL.toString()));
+
+    // sizing of the in-memory blob index, see BlobIndex.
+    final BlobIndex index = new BlobIndex(
+        Long.getLong("joci.index.expected", FilesystemRegistry.DEFAULT_EXPECTED_BLOBS),
+        Long.getLong("joci.index.cached", FilesystemRegistry.DEFAULT_CACHED_SIZES));
+
+    FilesystemRegistry registry = new FilesystemRegistry(path, uploadTtl, index);
+
+    final ScheduledExecutorService housekeeping = Executors.newSingleThreadScheduledExecutor(r -> {
+      final Thread thread = new Thread(r, "housekeeping");
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    housekeeping.scheduleWithFixedDelay(() -> {
+      try {
+        registry.uploads().expire();
+      }
+      catch (final Exception ex) {
+        log.warn("failed to expire uploads", ex);
+      }
+    }, 1, 1, TimeUnit.MINUTES);
+
+    // until the index is filled, lookups of missing blobs go to disk.
+    housekeeping.execute(() -> {
+      try {
+        registry.indexBlobs();
+      }
+      catch (final Exception ex) {
+        log.warn("failed to index blobs", ex);
+      }
+    });
+
+    // a store in the old flat layout is converted in the background, lookups fall back to it until done.
+    if (registry.hasLegacyLayout() && Boolean.parseBoolean(System.getProperty("joci.migrate", "true"))) {
+      housekeeping.execute(() -> {
+        try {
+          registry.migrate();
+        }
+        catch (final Exception ex) {
+          log.warn("failed to migrate the store", ex);
+        }
+      });
+    }
 
     try {
 
       ///
 
-      ResourceConfig config = create(registry);
+      // long running requests (blob transfers, JPX builds) are handed off to these, see RegistryExecutors.
+      final RegistryExecutors executors = new RegistryExecutors(
+          Integer.getInteger("joci.transfers", RegistryExecutors.DEFAULT_TRANSFERS),
+          Integer.getInteger("joci.builds", RegistryExecutors.DEFAULT_BUILDS));
+
+      // how JPX layers are stored when the manifest doesn't say, e.g -Djoci.jpx.compression=zstd -Djoci.jpx.level=9
+      final JpxCompression compression = JpxCompression.fromId(System.getProperty("joci.jpx.compression", JpxCompression.GZIP.id()));
+      final int level = Integer.getInteger("joci.jpx.level", compression.defaultLevel());
+
+      // built layers and precompressed JARs, shared by every JPX build. in the store unless set, e.g -Djoci.jpx.cache=/cache
+      final String cache = System.getProperty("joci.jpx.cache", path.resolve(DockerRegistry.JPX_CACHE).toString());
+
+      // entries held in memory, and kept at all, e.g -Djoci.jpx.cache.entries=100000 -Djoci.jpx.cache.age=P30D
+      final JpxCache jpxCache = new JpxCache(
+          Paths.get(cache),
+          Long.getLong("joci.jpx.cache.memory", JpxCache.DEFAULT_MEMORY_ENTRIES),
+          Long.getLong("joci.jpx.cache.entries", JpxCache.DEFAULT_MAX_ENTRIES),
+          Duration.parse(System.getProperty("joci.jpx.cache.age", JpxCache.DEFAULT_MAX_AGE.toString())));
+
+      housekeeping.scheduleWithFixedDelay(() -> {
+        try {
+          jpxCache.compact();
+          log.info("JPX cache: {}", jpxCache.stats());
+        }
+        catch (final Exception ex) {
+          log.warn("failed to compact the JPX cache", ex);
+        }
+      }, 10, 10, TimeUnit.MINUTES);
+
+      // the most layers stable JARs are split into, by Maven group and size, e.g -Djoci.jpx.layers=8. one unless set.
+      // with -Djoci.jpx.tiers=true, JARs which have changed in recent pushes of the repository get layers of their own.
+      final JpxLayering layering = new JpxLayering(
+          Integer.getInteger("joci.jpx.layers", 1),
+          Long.getLong("joci.jpx.layers.big", JpxLayering.DEFAULT_BIG_JAR),
+          Long.getLong("joci.jpx.layers.group", JpxLayering.DEFAULT_MIN_GROUP),
+          Boolean.getBoolean("joci.jpx.tiers"));
+
+      // the image JPX images are built on, unless the JPX manifest gives one, e.g -Djoci.jpx.base=jre:11. it needs to
+      // have been pushed here. the built in JRE image unless set.
+      final JpxBaseImages bases = new JpxBaseImages(registry, System.getProperty("joci.jpx.base"));
+
+      // a JDK to dump CDS archives with for manifests which ask for one, which must be the same build as the base image's,
+      // e.g -Djoci.jpx.cds.java=/usr/lib/jvm/java-11/bin/java. images are built without them unless set.
+      final String cdsJava = System.getProperty("joci.jpx.cds.java");
+      final JpxCds cds = (cdsJava == null) ? null : new JpxCds(Paths.get(cdsJava));
+
+      // a JDK (with its jmods) to link runtimes with just the modules used for manifests which ask for one, and the image
+      // they go on, which shouldn't have a JRE, e.g -Djoci.jpx.runtime.jdk=/usr/lib/jvm/java-11
+      // -Djoci.jpx.runtime.base=debian:stretch-slim. images use the base image's JRE unless both are set.
+      final String runtimeJdk = System.getProperty("joci.jpx.runtime.jdk");
+      final String runtimeBase = System.getProperty("joci.jpx.runtime.base");
+      final JpxRuntime runtime;
+      if (runtimeJdk == null) {
+        runtime = null;
+      }
+      else if (runtimeBase == null) {
+        // on the default image, it would be a second JRE rather than in place of the one there.
+        log.warn("joci.jpx.runtime.jdk is set without joci.jpx.runtime.base, runtimes won't be linked");
+        runtime = null;
+      }
+      else {
+        runtime = new JpxRuntime(Paths.get(runtimeJdk), runtimeBase);
+      }
+
+      // how images start the JVM when the manifest doesn't say, e.g -Djoci.jpx.entrypoint=argfile to run java directly
+      // with a JVM argument file. the shell script unless set.
+      final JpxEntrypoint entrypoint = JpxEntrypoint.fromId(System.getProperty("joci.jpx.entrypoint", JpxEntrypoint.SCRIPT.id()));
+
+      final JpxBuilders jpx = new JpxBuilders(registry, jpxCache, compression, level, layering, bases, cds, runtime, entrypoint);
+
+      // gzip layers which are pulled get converted to these in the background, e.g -Djoci.transcode=zstd,none. clients
+      // which list the layer media type in their Accept header then get them instead. off unless set.
+      final Set<JpxCompression> transcode = EnumSet.noneOf(JpxCompression.class);
+
+      for (final String id : System.getProperty("joci.transcode", "").split(",")) {
+        if (!id.trim().isEmpty()) {
+          transcode.add(JpxCompression.fromId(id.trim()));
+        }
+      }
+
+      final LayerTranscoder transcoder = new LayerTranscoder(
+          registry,
+          new LayerVariants(path.resolve(DockerRegistry.VARIANTS)),
+          transcode,
+          Integer.getInteger("joci.transcode.level", JpxCompression.ZSTD.defaultLevel()),
+          Long.getLong("joci.transcode.rate", LayerTranscoder.DEFAULT_RATE),
+          executors::activeTransfers);
+
+      ResourceConfig config = create(registry, executors, jpx, transcoder);
 
       final HttpServer server = GrizzlyHttpServerFactory.createHttpServer(baseUri, config, false);
 
-      server.getListeners().iterator().next().registerAddOn(new FixupBrokenContentTypeHeaderAddOn());
+      final NetworkListener listener = server.getListeners().iterator().next();
+
+      // grizzly's own pools, left at grizzly's defaults unless set.
+      final Integer workers = Integer.getInteger("joci.workers");
+
+      if (workers != null) {
+        listener.getTransport().setWorkerThreadPoolConfig(ThreadPoolConfig.defaultConfig()
+            .setPoolName("grizzly-worker")
+            .setCorePoolSize(workers)
+            .setMaxPoolSize(workers));
+      }
+
+      final Integer selectors = Integer.getInteger("joci.selectors");
+
+      if (selectors != null) {
+        listener.getTransport().setSelectorRunnersCount(selectors);
+      }
+
+      listener.registerAddOn(new FixupBrokenContentTypeHeaderAddOn());
+
+      // blobs are sent with sendfile(2) where possible, see BlobMessageBodyWriter.
+      listener.setSendFileEnabled(true);
 
       Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
         @Override
         public void run() {
           server.shutdownNow();
+          executors.shutdown();
+          transcoder.shutdown();
+          try {
+            // so the next start doesn't have to read the log.
+            jpxCache.compact();
+          }
+          catch (final IOException ex) {
+            log.warn("failed to compact the JPX cache", ex);
+          }
         }
       }));
       server.start();
@@ -65,12 +251,42 @@ public class Main {
   }
 
   public static ResourceConfig create(FilesystemRegistry registry) {
+    return create(registry, new RegistryExecutors());
+  }
+
+  public static ResourceConfig create(FilesystemRegistry registry, RegistryExecutors executors) {
+    return create(
+        registry,
+        executors,
+        new JpxBuilders(registry, new JpxCache(registry.resolve(DockerRegistry.JPX_CACHE))),
+        null);
+  }
+
+  /**
+   * @param transcoder
+   *          makes the layer variants served to clients which ask for them, or null for none.
+   */
+
+  public static ResourceConfig create(
+      FilesystemRegistry registry,
+      RegistryExecutors executors,
+      JpxBuilders jpx,
+      LayerTranscoder transcoder) {
+    final ManifestVariants variants = (transcoder == null || transcoder.targets().isEmpty())
+        ? null
+        : new ManifestVariants(registry, transcoder);
     final ResourceConfig resourceConfig = new ResourceConfig()
         .property(ServerProperties.WADL_FEATURE_DISABLE, true)
         .property(ServerProperties.MOXY_JSON_FEATURE_DISABLE, true)
         .property(ServerProperties.FEATURE_AUTO_DISCOVERY_DISABLE, true)
         .register(RangeHeaderConverter.class)
-        .register(new DockerRegistry(registry));
+        .register(BlobMessageBodyWriter.class)
+        .register(new DockerRegistry(
+            registry,
+            new ManifestCache(ManifestCache.DEFAULT_MAX_BYTES),
+            executors,
+            jpx,
+            variants));
 
     return resourceConfig;
   }
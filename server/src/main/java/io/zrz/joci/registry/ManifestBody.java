@@ -0,0 +1,106 @@
+package io.zrz.joci.registry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.ByteStreams;
+
+import io.zrz.joci.core.Digest;
+
+/**
+ * a manifest upload, read and hashed in a single pass.
+ *
+ * manifests are small, so they're kept in memory. only one larger than the limit is spilled to a temp file, which is
+ * then moved into place rather than copied.
+ *
+ * @author theo
+ *
+ */
+
+public class ManifestBody implements Closeable {
+
+  /**
+   * the largest manifest kept in memory.
+   */
+
+  public static final int MEMORY_LIMIT = 1024 * 1024;
+
+  private final Digest digest;
+  private final long size;
+  private final byte[] content;
+  private final Path spilled;
+
+  private ManifestBody(final Digest digest, final long size, final byte[] content, final Path spilled) {
+    this.digest = digest;
+    this.size = size;
+    this.content = content;
+    this.spilled = spilled;
+  }
+
+  public static ManifestBody read(final InputStream in) throws IOException {
+    return read(in, MEMORY_LIMIT);
+  }
+
+  public static ManifestBody read(final InputStream in, final int limit) throws IOException {
+
+    final HashingInputStream hashing = new HashingInputStream(Hashing.sha256(), in);
+
+    final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    final long buffered = ByteStreams.copy(ByteStreams.limit(hashing, limit + 1), buffer);
+
+    if (buffered <= limit) {
+      return new ManifestBody(new Digest(hashing.hash()), buffered, buffer.toByteArray(), null);
+    }
+
+    final Path spilled = Files.createTempFile("manifest", ".json");
+
+    try (OutputStream out = Files.newOutputStream(spilled, StandardOpenOption.TRUNCATE_EXISTING)) {
+      buffer.writeTo(out);
+      final long size = buffered + ByteStreams.copy(hashing, out);
+      return new ManifestBody(new Digest(hashing.hash()), size, null, spilled);
+    }
+    catch (final IOException | RuntimeException ex) {
+      Files.deleteIfExists(spilled);
+      throw ex;
+    }
+
+  }
+
+  public Digest digest() {
+    return this.digest;
+  }
+
+  public long size() {
+    return this.size;
+  }
+
+  /**
+   * writes the manifest to its (new) file.
+   */
+
+  public void writeTo(final Path target) throws IOException {
+    if (this.spilled != null) {
+      Files.move(this.spilled, target);
+    }
+    else {
+      Files.write(target, this.content, StandardOpenOption.CREATE_NEW);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (this.spilled != null) {
+      Files.deleteIfExists(this.spilled);
+    }
+  }
+
+}
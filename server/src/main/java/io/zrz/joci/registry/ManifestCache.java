@@ -0,0 +1,171 @@
+package io.zrz.joci.registry;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.regex.Pattern;
+
+import javax.ws.rs.core.EntityTag;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+
+import io.zrz.joci.core.Digest;
+
+/**
+ * manifests (content and digest) by the path they were resolved from, so polling a tag doesn't touch the disk.
+ *
+ * digest paths never change. tag paths must be invalidated whenever the tag is moved, which is done by whoever moves it
+ * once the link has been replaced. a load which races with an invalidation isn't stored, so a tag can't get stuck on
+ * the manifest it pointed to before.
+ *
+ * @author theo
+ *
+ */
+
+public class ManifestCache {
+
+  private static final Logger log = LoggerFactory.getLogger(ManifestCache.class);
+
+  private static final Pattern MANIFEST_DIGEST = Pattern.compile("sha256:[0-9a-f]{64}");
+
+  public static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+
+  public static class Manifest {
+
+    private final Digest digest;
+    private final byte[] content;
+
+    Manifest(final Digest digest, final byte[] content) {
+      this.digest = digest;
+      this.content = content;
+    }
+
+    public Digest digest() {
+      return this.digest;
+    }
+
+    public byte[] content() {
+      return this.content;
+    }
+
+    public EntityTag etag() {
+      return new EntityTag(this.digest.toString());
+    }
+
+    /**
+     * true if the If-None-Match header includes this manifest.
+     */
+
+    public boolean matches(final String ifNoneMatch) {
+      if (ifNoneMatch == null) {
+        return false;
+      }
+      for (String tag : ifNoneMatch.split(",")) {
+        tag = tag.trim();
+        if (tag.equals("*")) {
+          return true;
+        }
+        if (tag.startsWith("W/")) {
+          tag = tag.substring(2);
+        }
+        if (tag.replace("\"", "").equals(this.digest.toString())) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+  }
+
+  private final Cache<Path, Manifest> manifests;
+
+  /**
+   * bumped on every invalidation, so a load which started before one can tell.
+   */
+
+  private long generation;
+
+  public ManifestCache(final long maxBytes) {
+    this.manifests = CacheBuilder.newBuilder()
+        .maximumWeight(maxBytes)
+        .weigher((final Path path, final Manifest manifest) -> manifest.content.length)
+        .build();
+  }
+
+  /**
+   * the manifest at the given path, or null if there isn't one.
+   */
+
+  public Manifest get(final Path file) throws IOException {
+
+    final Manifest cached = this.manifests.getIfPresent(file);
+
+    if (cached != null) {
+      return cached;
+    }
+
+    final long generation;
+
+    synchronized (this) {
+      generation = this.generation;
+    }
+
+    final Manifest manifest;
+
+    try {
+      manifest = load(file);
+    }
+    catch (final NoSuchFileException ex) {
+      return null;
+    }
+
+    synchronized (this) {
+      if (generation == this.generation) {
+        this.manifests.put(file, manifest);
+      }
+    }
+
+    return manifest;
+
+  }
+
+  /**
+   * drops the manifest at the given path. call after the tag has been moved.
+   */
+
+  public synchronized void invalidate(final Path file) {
+    this.generation++;
+    this.manifests.invalidate(file);
+  }
+
+  /**
+   * manifests are written under their digest, and tags are links to them, so the name gives the digest. anything not
+   * laid out that way (e.g, copied in by hand) is hashed.
+   */
+
+  private static Manifest load(final Path file) throws IOException {
+
+    // read through the link target, so the content and digest agree even if the tag moves while we're at it.
+    final Path target = Files.isSymbolicLink(file) ? file.resolveSibling(Files.readSymbolicLink(file)) : file;
+
+    final byte[] content = Files.readAllBytes(target);
+
+    final String name = target.getFileName().toString();
+
+    if (MANIFEST_DIGEST.matcher(name).matches()) {
+      return new Manifest(new Digest(name), content);
+    }
+
+    log.debug("hashing manifest {}", file);
+
+    return new Manifest(new Digest(Hashing.sha256().hashBytes(content)), content);
+
+  }
+
+}
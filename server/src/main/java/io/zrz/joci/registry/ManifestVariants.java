@@ -0,0 +1,302 @@
+package io.zrz.joci.registry;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import javax.ws.rs.core.MediaType;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hashing;
+
+import io.zrz.joci.core.Digest;
+import io.zrz.joci.jpx.JpxCompression;
+import io.zrz.joci.registry.ManifestCache.Manifest;
+import io.zrz.joci.registry.variants.LayerTranscoder;
+import io.zrz.joci.registry.variants.LayerVariants;
+import io.zrz.joci.registry.variants.LayerVariants.Variant;
+import io.zrz.joci.spi.RegistryProvider;
+import io.zrz.joci.spi.RegistryProvider.BlobInfo;
+
+/**
+ * serves a manifest with its gzip layers swapped for the variants made by {@link LayerTranscoder}, when the client
+ * asks for them by listing the layer media type (e.g, application/vnd.oci.image.layer.v1.tar+zstd) in its Accept
+ * header. wildcards don't count, so clients which haven't asked always get the manifest as it was pushed.
+ *
+ * layers are matched up with their diff_id through the image config. a rewritten manifest is stored alongside the
+ * original, so it can then be fetched by its own digest. the gzip layers of every manifest served are queued for
+ * transcoding, so the most pulled layers are the first to have variants.
+ *
+ * @author theo
+ *
+ */
+
+public class ManifestVariants {
+
+  private static final Logger log = LoggerFactory.getLogger(ManifestVariants.class);
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private static final Set<String> GZIP_LAYERS = ImmutableSet.of(
+      JpxCompression.GZIP.mediaType(),
+      "application/vnd.oci.image.layer.v1.tar+gzip");
+
+  private static final String OCI_LAYER = "application/vnd.oci.image.layer.v1.tar";
+
+  private static final long CACHED_MANIFESTS = 10_000;
+
+  /**
+   * a gzip layer in a manifest.
+   */
+
+  private static class Layer {
+
+    final int index;
+    final Digest digest;
+    final Digest diffId;
+    final boolean oci;
+
+    Layer(final int index, final Digest digest, final Digest diffId, final boolean oci) {
+      this.index = index;
+      this.digest = digest;
+      this.diffId = diffId;
+      this.oci = oci;
+    }
+
+  }
+
+  /**
+   * a manifest with some number of its layers swapped.
+   */
+
+  private static class Rewritten {
+
+    final Manifest manifest;
+    final int replaced;
+
+    Rewritten(final Manifest manifest, final int replaced) {
+      this.manifest = manifest;
+      this.replaced = replaced;
+    }
+
+  }
+
+  private final RegistryProvider registry;
+  private final LayerVariants variants;
+  private final LayerTranscoder transcoder;
+
+  /**
+   * the gzip layers of each manifest, by its digest.
+   */
+
+  private final Cache<Digest, List<Layer>> layers;
+
+  /**
+   * rewritten manifests, by the directory they're in, the original digest and variant. replaced when more layers have a
+   * variant.
+   */
+
+  private final Cache<String, Rewritten> rewritten;
+
+  public ManifestVariants(final RegistryProvider registry, final LayerTranscoder transcoder) {
+    this.registry = registry;
+    this.variants = transcoder.variants();
+    this.transcoder = transcoder;
+    this.layers = CacheBuilder.newBuilder().maximumSize(CACHED_MANIFESTS).build();
+    this.rewritten = CacheBuilder.newBuilder().maximumSize(CACHED_MANIFESTS).build();
+  }
+
+  /**
+   * the manifest to serve for the tag at the given path.
+   *
+   * @param accept
+   *          the acceptable media types, best first.
+   */
+
+  public Manifest select(final Path file, final Manifest manifest, final List<MediaType> accept) throws IOException {
+
+    if (this.transcoder.targets().isEmpty()) {
+      return manifest;
+    }
+
+    final List<Layer> layers = layers(manifest);
+
+    for (final Layer layer : layers) {
+      this.transcoder.submit(layer.digest, layer.diffId);
+    }
+
+    final JpxCompression wanted = preferred(accept);
+
+    if (wanted == null || layers.isEmpty()) {
+      return manifest;
+    }
+
+    int available = 0;
+
+    for (final Layer layer : layers) {
+      if (this.variants.get(layer.diffId, wanted) != null) {
+        available++;
+      }
+    }
+
+    if (available == 0) {
+      return manifest;
+    }
+
+    // each repository has its own copy.
+    final String key = file.getParent() + "/" + manifest.digest() + "/" + wanted.id();
+
+    final Rewritten cached = this.rewritten.getIfPresent(key);
+
+    if (cached != null && cached.replaced == available) {
+      return cached.manifest;
+    }
+
+    final Rewritten rewritten = rewrite(file, manifest, layers, wanted);
+
+    this.rewritten.put(key, rewritten);
+
+    return rewritten.manifest;
+
+  }
+
+  /**
+   * the first of the acceptable media types which is a layer type we make, if any.
+   */
+
+  private JpxCompression preferred(final List<MediaType> accept) {
+    for (final MediaType type : accept) {
+      if (type.isWildcardType() || type.isWildcardSubtype()) {
+        continue;
+      }
+      final String name = type.getType() + "/" + type.getSubtype();
+      for (final JpxCompression target : this.transcoder.targets()) {
+        if (target.mediaType().equals(name) || (target == JpxCompression.NONE && name.equals(OCI_LAYER))) {
+          return target;
+        }
+      }
+    }
+    return null;
+  }
+
+  private List<Layer> layers(final Manifest manifest) throws IOException {
+    try {
+      return this.layers.get(manifest.digest(), () -> this.load(manifest));
+    }
+    catch (final ExecutionException ex) {
+      throw new IOException(ex.getCause());
+    }
+  }
+
+  /**
+   * the gzip layers and their diff_ids, or none if it's not an image manifest we understand.
+   */
+
+  private List<Layer> load(final Manifest manifest) throws IOException {
+
+    final JsonNode root = MAPPER.readTree(manifest.content());
+
+    final JsonNode layers = root.get("layers");
+    final JsonNode config = root.path("config").get("digest");
+
+    if (layers == null || !layers.isArray() || config == null) {
+      return Collections.emptyList();
+    }
+
+    final BlobInfo blob = this.registry.stat(new Digest(config.asText()));
+
+    if (blob == null) {
+      return Collections.emptyList();
+    }
+
+    final JsonNode diffIds;
+
+    try (InputStream in = blob.openStream()) {
+      diffIds = MAPPER.readTree(in).path("rootfs").path("diff_ids");
+    }
+
+    if (diffIds.size() != layers.size()) {
+      log.debug("{} has {} layers but {} diff_ids", manifest.digest(), layers.size(), diffIds.size());
+      return Collections.emptyList();
+    }
+
+    final List<Layer> gzipped = new ArrayList<>();
+
+    for (int i = 0; i < layers.size(); ++i) {
+      final String mediaType = layers.get(i).path("mediaType").asText();
+      if (GZIP_LAYERS.contains(mediaType)) {
+        gzipped.add(new Layer(
+            i,
+            new Digest(layers.get(i).get("digest").asText()),
+            new Digest(diffIds.get(i).asText()),
+            mediaType.startsWith("application/vnd.oci.")));
+      }
+    }
+
+    return Collections.unmodifiableList(gzipped);
+
+  }
+
+  private Rewritten rewrite(final Path file, final Manifest manifest, final List<Layer> layers, final JpxCompression wanted)
+      throws IOException {
+
+    final JsonNode root = MAPPER.readTree(manifest.content());
+
+    int replaced = 0;
+
+    for (final Layer layer : layers) {
+
+      final Variant variant = this.variants.get(layer.diffId, wanted);
+
+      if (variant == null) {
+        continue;
+      }
+
+      ((ObjectNode) root.get("layers").get(layer.index))
+          .put("mediaType", (wanted == JpxCompression.NONE && layer.oci) ? OCI_LAYER : wanted.mediaType())
+          .put("digest", variant.digest().toString())
+          .put("size", variant.size());
+
+      replaced++;
+
+    }
+
+    final byte[] content = MAPPER.writeValueAsBytes(root);
+
+    final Digest digest = new Digest(Hashing.sha256().hashBytes(content));
+
+    // alongside the original, so it can be fetched by digest like any other.
+    final Path target = file.resolveSibling(digest.toString());
+
+    if (!Files.exists(target)) {
+      final Path temp = Files.createTempFile(target.getParent(), ".", ".tmp");
+      try {
+        Files.write(temp, content);
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      }
+      finally {
+        Files.deleteIfExists(temp);
+      }
+      log.debug("rewrote {} with {} {} layers as {}", manifest.digest(), replaced, wanted.id(), digest);
+    }
+
+    return new Rewritten(new Manifest(digest, content), replaced);
+
+  }
+
+}
@@ -1,56 +1,217 @@
 package io.zrz.joci.registry;
 
+import java.util.List;
+import java.util.stream.Collectors;
+
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Range;
 
+/**
+ * a parsed (possibly multi-part) range header, e.g "bytes=0-99", "bytes=100-", "bytes=-500", or "bytes=0-0,-1".
+ *
+ * used for both upload PATCH requests and partial content GETs of blobs.
+ *
+ */
+
 public class RangeHeader {
 
   public static enum Unit {
     BYTES;
   }
 
-  private Unit unit;
+  /**
+   * a single range spec. either end may be open (-1). when first is open, last is the length of the suffix.
+   */
+
+  public static class Spec {
+
+    private final long first;
+    private final long last;
+
+    public Spec(final long first, final long last) {
+      if (first < 0 && last < 0) {
+        throw new IllegalArgumentException("invalid range spec");
+      }
+      if (first >= 0 && last >= 0 && last < first) {
+        throw new IllegalArgumentException("invalid range spec " + first + "-" + last);
+      }
+      this.first = first;
+      this.last = last;
+    }
+
+    public long first() {
+      return this.first;
+    }
+
+    public long last() {
+      return this.last;
+    }
+
+    public boolean isSuffix() {
+      return this.first < 0;
+    }
 
-  private long from;
+    /**
+     * the closed range of bytes this spec selects from content of the given length, or null if it isn't satisfiable.
+     */
 
-  private long to;
+    public Range<Long> resolve(final long length) {
+
+      if (isSuffix()) {
+        if (this.last == 0 || length == 0) {
+          return null;
+        }
+        return Range.closed(Math.max(0, length - this.last), length - 1);
+      }
+
+      if (this.first >= length) {
+        return null;
+      }
+
+      return Range.closed(this.first, (this.last < 0 || this.last >= length) ? length - 1 : this.last);
+
+    }
+
+    @Override
+    public String toString() {
+      return (this.first < 0 ? "" : Long.toString(this.first)) + "-" + (this.last < 0 ? "" : Long.toString(this.last));
+    }
+
+  }
+
+  private Unit unit;
+
+  private List<Spec> specs;
 
   public RangeHeader(final Unit unit, final long from, final long to) {
+    this(unit, ImmutableList.of(new Spec(from, to)));
+  }
+
+  public RangeHeader(final Unit unit, final List<Spec> specs) {
+    if (specs.isEmpty()) {
+      throw new IllegalArgumentException("empty range");
+    }
     this.unit = unit;
-    this.from = from;
-    this.to = to;
+    this.specs = ImmutableList.copyOf(specs);
   }
 
   public Unit getUnit() {
     return unit;
   }
 
+  /**
+   * the start of the first range.
+   */
+
   public long getFrom() {
-    return from;
+    return specs.get(0).first();
   }
 
+  /**
+   * the end of the first range.
+   */
+
   public long getTo() {
-    return to;
+    return specs.get(0).last();
   }
 
+  public List<Spec> specs() {
+    return this.specs;
+  }
+
+  /**
+   * parses a Range header, returning null if there isn't one or it's not valid (or not in bytes), as it's then ignored
+   * and the whole content sent (RFC 7233 3.1).
+   */
+
   public static RangeHeader fromValue(final String range) {
     if (range == null) {
       return null;
     }
-    final String[] tokens = range.replace("Range: ", "").split("=");
-    final Unit unit = Unit.valueOf(tokens[0].toUpperCase());
-    final String[] fromTo = tokens[1].split("-");
-    final long from = Long.valueOf(fromTo[0]);
-    final long to = Long.valueOf(fromTo[1]);
-    return new RangeHeader(unit, from, to);
+    try {
+      return parse(range);
+    }
+    catch (final IllegalArgumentException ex) {
+      return null;
+    }
+  }
+
+  private static RangeHeader parse(final String range) {
+    final String[] tokens = range.replace("Range: ", "").split("=", 2);
+    if (tokens.length != 2) {
+      throw new IllegalArgumentException("invalid range: " + range);
+    }
+    final Unit unit = Unit.valueOf(tokens[0].trim().toUpperCase());
+    final ImmutableList.Builder<Spec> specs = ImmutableList.builder();
+    for (final String spec : tokens[1].split(",")) {
+      final String[] fromTo = spec.trim().split("-", -1);
+      if (fromTo.length != 2) {
+        throw new IllegalArgumentException("invalid range: " + range);
+      }
+      final long from = fromTo[0].isEmpty() ? -1 : Long.parseLong(fromTo[0]);
+      final long to = fromTo[1].isEmpty() ? -1 : Long.parseLong(fromTo[1]);
+      specs.add(new Spec(from, to));
+    }
+    return new RangeHeader(unit, specs.build());
+  }
+
+  /**
+   * parses the Content-Range of an upload chunk. docker sends "0-99", but we also take "bytes 0-99/1000" (and "bytes=0-99"
+   * from clients which confuse it with Range).
+   *
+   * @return the closed range of bytes in the chunk, or null if there wasn't one.
+   */
+
+  public static Range<Long> fromContentRange(final String value) {
+    if (value == null || value.trim().isEmpty()) {
+      return null;
+    }
+    String spec = value.trim();
+    if (spec.startsWith("bytes")) {
+      spec = spec.substring(5).replaceFirst("^[ =]", "");
+    }
+    final int slash = spec.indexOf('/');
+    if (slash != -1) {
+      spec = spec.substring(0, slash);
+    }
+    final String[] fromTo = spec.trim().split("-", -1);
+    try {
+      if (fromTo.length != 2) {
+        throw new IllegalArgumentException("invalid content range: " + value);
+      }
+      final long from = Long.parseLong(fromTo[0].trim());
+      final long to = Long.parseLong(fromTo[1].trim());
+      if (from < 0 || to < from) {
+        throw new IllegalArgumentException("invalid content range: " + value);
+      }
+      return Range.closed(from, to);
+    }
+    catch (final NumberFormatException ex) {
+      throw new IllegalArgumentException("invalid content range: " + value, ex);
+    }
   }
 
   @Override
   public String toString() {
-    return String.format("Range: %s=%d-%d", unit.name().toLowerCase(), from, to);
+    return String.format(
+        "Range: %s=%s",
+        unit.name().toLowerCase(),
+        specs.stream().map(Spec::toString).collect(Collectors.joining(",")));
   }
 
   public Range<Long> getRange() {
     return Range.closed(getFrom(), getTo());
   }
 
+  /**
+   * the satisfiable ranges for content of the given length, in request order. empty if none are.
+   */
+
+  public List<Range<Long>> resolve(final long length) {
+    return specs.stream()
+        .map(spec -> spec.resolve(length))
+        .filter(r -> r != null)
+        .collect(ImmutableList.toImmutableList());
+  }
+
 }
@@ -0,0 +1,150 @@
+package io.zrz.joci.registry;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.Response;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * the pools which long running requests are handed off to, so they don't tie up the grizzly workers which serve HEAD
+ * and manifest traffic.
+ *
+ * transfers are blob downloads and upload chunks, which mostly wait on the network. builds are JPX layer builds, which
+ * are CPU and disk heavy. both are bounded, and when the queue is full the client gets a 503 to retry later rather than
+ * piling up more work.
+ *
+ * the number of tasks running in each is tracked, so background work (e.g, transcoding) can keep out of their way.
+ *
+ * @author theo
+ *
+ */
+
+public class RegistryExecutors {
+
+  private static final Logger log = LoggerFactory.getLogger(RegistryExecutors.class);
+
+  public static final int DEFAULT_TRANSFERS = 64;
+  public static final int DEFAULT_BUILDS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+  private final ExecutorService transfers;
+  private final ExecutorService builds;
+  private final AtomicInteger activeTransfers = new AtomicInteger();
+  private final AtomicInteger activeBuilds = new AtomicInteger();
+
+  public RegistryExecutors() {
+    this(DEFAULT_TRANSFERS, DEFAULT_BUILDS);
+  }
+
+  public RegistryExecutors(final int transfers, final int builds) {
+    this.transfers = bounded("transfer", transfers, transfers * 4);
+    this.builds = bounded("build", builds, builds * 16);
+  }
+
+  private static ExecutorService bounded(final String name, final int threads, final int queue) {
+
+    final AtomicInteger count = new AtomicInteger();
+
+    final ThreadFactory factory = r -> {
+      final Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+        threads,
+        threads,
+        60,
+        TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(queue),
+        factory);
+
+    executor.allowCoreThreadTimeOut(true);
+
+    return executor;
+
+  }
+
+  /**
+   * runs a blob transfer, resuming the request with its response.
+   */
+
+  public void transfer(final AsyncResponse async, final Callable<Response> task) {
+    submit(this.transfers, this.activeTransfers, async, task);
+  }
+
+  /**
+   * runs a layer build, resuming the request with its response.
+   */
+
+  public void build(final AsyncResponse async, final Callable<Response> task) {
+    submit(this.builds, this.activeBuilds, async, task);
+  }
+
+  /**
+   * the number of blob transfers currently running, including writing out their response.
+   */
+
+  public int activeTransfers() {
+    return this.activeTransfers.get();
+  }
+
+  /**
+   * the number of layer builds currently running.
+   */
+
+  public int activeBuilds() {
+    return this.activeBuilds.get();
+  }
+
+  private static void submit(
+      final ExecutorService executor,
+      final AtomicInteger active,
+      final AsyncResponse async,
+      final Callable<Response> task) {
+
+    try {
+
+      executor.execute(() -> {
+        // the response is written as part of resuming, so that's counted too.
+        active.incrementAndGet();
+        try {
+          async.resume(task.call());
+        }
+        catch (final Throwable ex) {
+          async.resume(ex);
+        }
+        finally {
+          active.decrementAndGet();
+        }
+      });
+
+    }
+    catch (final RejectedExecutionException ex) {
+
+      log.warn("rejecting request, too busy");
+
+      async.resume(Response.status(Response.Status.SERVICE_UNAVAILABLE)
+          .header("Retry-After", 5)
+          .header("Docker-Distribution-Api-Version", DockerRegistry.API_VERSION)
+          .build());
+
+    }
+
+  }
+
+  public void shutdown() {
+    this.transfers.shutdownNow();
+    this.builds.shutdownNow();
+  }
+
+}
@@ -0,0 +1,288 @@
+package io.zrz.joci.registry.jpx;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.zrz.joci.core.Digest;
+import io.zrz.joci.spi.RegistryProvider;
+import io.zrz.joci.spi.RegistryProvider.BlobInfo;
+
+/**
+ * the images JPX images are built on, given as "repository:tag" (or "repository@sha256:...") of an image in this
+ * registry by the JPX manifest ("base") or the server.
+ *
+ * the layers, diff_ids and environment of each are read once and kept, so a push doesn't stat every base layer. a tag
+ * is checked against the manifest it links to each time, which is a single readlink, and read again once it's moved.
+ *
+ * without one, the JRE image JPX has always used is the base.
+ *
+ * @author theo
+ *
+ */
+
+public class JpxBaseImages {
+
+  private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(JpxBaseImages.class);
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private static final String LAYER = "application/vnd.docker.image.rootfs.diff.tar.gzip";
+
+  private static final List<String> BUILTIN_LAYERS = Arrays.asList(
+      "cca8b8cf2f157d13678401181406e5baf05ab424a04fb8190f9e3816c5db1e29",
+      "13cf705e89452ccf724ae251641ad26bc6e8162141b3a88b688c959d8872f905",
+      "66f6961c9eb5dddcc3a449439adc5c4a03e716794daec2a41900f7fda4fb492a",
+      "805a6a4d0333bf4fa32e15672a04b71ef96caa25e163e085b4bd72831d2792b0",
+      "340a18e6e5438fb1757d6b5f31c95377976254ddb669be89513895b05fb04647");
+
+  private static final List<String> BUILTIN_DIFF_IDS = Arrays.asList(
+      "sha256:e93af51b6155a8dd97f6dbbc700e94635dc9a0bd245e140c7c373d8305f8ff35",
+      "sha256:fb3486253dd2f38167fba17942b51a2341b8f0de4334c74965e04bc13f684fe0",
+      "sha256:11c651819169bfcb22239d1c0021c73870dca874570d56ca8f17071fdb58c961",
+      "sha256:04924db0e17d8830859f1b1ce3de15933809185fcdb8f75c70ea3e36eb270f02",
+      "sha256:949fb6408aace446c61014ff2d4bb0467703c2f149d57a5fd060b30bd48d09ed");
+
+  private static final List<String> BUILTIN_ENV = Arrays.asList(
+      "PATH=/usr/local/sbin:/usr/local/bin:/usr/sbin:/usr/bin:/sbin:/bin",
+      "LANG=C.UTF-8",
+      "JAVA_HOME=/docker-java-home",
+      "JAVA_VERSION=11.0.1",
+      "LANG=C.UTF-8");
+
+  /**
+   * a base image.
+   */
+
+  public static class Base {
+
+    private final String target;
+    private final List<ObjectNode> layers;
+    private final List<String> diffIds;
+    private final List<String> env;
+    private final String architecture;
+    private final String os;
+
+    Base(String target, List<ObjectNode> layers, List<String> diffIds, List<String> env, String architecture, String os) {
+      this.target = target;
+      this.layers = Collections.unmodifiableList(layers);
+      this.diffIds = Collections.unmodifiableList(diffIds);
+      this.env = Collections.unmodifiableList(env);
+      this.architecture = architecture;
+      this.os = os;
+    }
+
+    /**
+     * the layers, as they go in the image manifest. they mustn't be changed.
+     */
+
+    public List<ObjectNode> layers() {
+      return this.layers;
+    }
+
+    public List<String> diffIds() {
+      return this.diffIds;
+    }
+
+    /**
+     * the environment the image starts with, e.g JAVA_HOME.
+     */
+
+    public List<String> env() {
+      return this.env;
+    }
+
+    public String architecture() {
+      return this.architecture;
+    }
+
+    public String os() {
+      return this.os;
+    }
+
+  }
+
+  private final RegistryProvider registry;
+  private final String defaultBase;
+  private final ConcurrentMap<String, Base> bases = new ConcurrentHashMap<>();
+  private volatile Base builtin;
+
+  public JpxBaseImages(RegistryProvider registry) {
+    this(registry, null);
+  }
+
+  /**
+   * @param defaultBase
+   *          the base of images which don't give one, or null for the built in one.
+   */
+
+  public JpxBaseImages(RegistryProvider registry, String defaultBase) {
+    this.registry = registry;
+    this.defaultBase = defaultBase;
+  }
+
+  /**
+   * the base image with the given name, or the default if null.
+   */
+
+  public Base get(String name) throws IOException {
+
+    if (name == null) {
+      name = this.defaultBase;
+    }
+
+    if (name == null) {
+      return builtin();
+    }
+
+    int at = name.indexOf('@');
+    int colon = name.lastIndexOf(':');
+
+    String repository;
+    String version;
+
+    if (at != -1) {
+      repository = name.substring(0, at);
+      version = name.substring(at + 1);
+    }
+    else if (colon > name.lastIndexOf('/')) {
+      repository = name.substring(0, colon);
+      version = name.substring(colon + 1);
+    }
+    else {
+      repository = name;
+      version = "latest";
+    }
+
+    Path file = this.registry.resolve(repository, version);
+
+    String target;
+
+    try {
+      target = Files.isSymbolicLink(file) ? Files.readSymbolicLink(file).getFileName().toString() : file.getFileName().toString();
+    }
+    catch (NoSuchFileException ex) {
+      throw new IllegalArgumentException("base image " + name + " not found");
+    }
+
+    Base cached = this.bases.get(name);
+
+    if (cached != null && cached.target.equals(target)) {
+      return cached;
+    }
+
+    Base base = load(name, file.resolveSibling(target), target);
+
+    this.bases.put(name, base);
+
+    return base;
+
+  }
+
+  private Base load(String name, Path file, String target) throws IOException {
+
+    JsonNode manifest;
+
+    try {
+      manifest = mapper.readTree(Files.readAllBytes(file));
+    }
+    catch (NoSuchFileException ex) {
+      throw new IllegalArgumentException("base image " + name + " not found");
+    }
+
+    JsonNode config = manifest.path("config").get("digest");
+
+    if (manifest.path("schemaVersion").asInt() != 2 || config == null || !manifest.path("layers").isArray()) {
+      throw new IllegalArgumentException("base image " + name + " must be a v2 image manifest");
+    }
+
+    BlobInfo configBlob = this.registry.stat(new Digest(config.asText()));
+
+    if (configBlob == null) {
+      throw new IllegalArgumentException("base image " + name + " is missing its config");
+    }
+
+    JsonNode spec;
+
+    try (InputStream in = configBlob.openStream()) {
+      spec = mapper.readTree(in);
+    }
+
+    List<ObjectNode> layers = new ArrayList<>();
+
+    for (JsonNode layer : manifest.get("layers")) {
+      if (!this.registry.containsBlob(new Digest(layer.get("digest").asText()))) {
+        throw new IllegalArgumentException("base image " + name + " is missing layer " + layer.get("digest").asText());
+      }
+      layers.add((ObjectNode) layer.deepCopy());
+    }
+
+    List<String> diffIds = new ArrayList<>();
+
+    spec.path("rootfs").path("diff_ids").forEach(diffId -> diffIds.add(diffId.asText()));
+
+    if (diffIds.size() != layers.size()) {
+      throw new IllegalArgumentException("base image " + name + " has " + layers.size() + " layers but " + diffIds.size() + " diff_ids");
+    }
+
+    List<String> env = new ArrayList<>();
+
+    spec.path("config").path("Env").forEach(e -> env.add(e.asText()));
+
+    log.info("base image {} is {} with {} layers", name, target, layers.size());
+
+    return new Base(target, layers, diffIds, env, spec.path("architecture").asText("amd64"), spec.path("os").asText("linux"));
+
+  }
+
+  /**
+   * the JRE image, which needs to have been pushed. the sizes are only looked up once they're all there.
+   */
+
+  private Base builtin() {
+
+    Base base = this.builtin;
+
+    if (base != null) {
+      return base;
+    }
+
+    List<ObjectNode> layers = new ArrayList<>();
+
+    for (String hash : BUILTIN_LAYERS) {
+
+      BlobInfo blob = this.registry.stat(new Digest("sha256", hash));
+
+      if (blob == null) {
+        throw new IllegalArgumentException("base image layer sha256:" + hash + " is missing");
+      }
+
+      layers.add(JsonNodeFactory.instance.objectNode()
+          .put("mediaType", LAYER)
+          .put("digest", blob.digest().toString())
+          .put("size", blob.size()));
+
+    }
+
+    base = new Base(null, layers, BUILTIN_DIFF_IDS, BUILTIN_ENV, "amd64", "linux");
+
+    this.builtin = base;
+
+    return base;
+
+  }
+
+}
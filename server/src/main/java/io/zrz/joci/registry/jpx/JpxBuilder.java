@@ -7,16 +7,23 @@ import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.SortedSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.tuple.Pair;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
@@ -26,8 +33,11 @@ import com.google.common.hash.HashCode;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
 
 import io.zrz.joci.core.Digest;
+import io.zrz.joci.jpx.JpxCompression;
+import io.zrz.joci.jpx.JpxEntrypoint;
 import io.zrz.joci.jpx.JpxLayerBuilder;
 import io.zrz.joci.spi.RegistryProvider;
 import io.zrz.joci.spi.RegistryProvider.BlobInfo;
@@ -45,17 +55,119 @@ public class JpxBuilder {
   private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(JpxBuilder.class);
   private RegistryProvider registry;
   private ObjectNode manifest;
+  private List<Layer> stableLayers;
   private Layer stable;
   private Layer changing;
   private Path previousTagTarget;
   private JpxCache cache;
+  private JpxCompression compression;
+  private int level;
+  private JpxLayering layering;
+  private JpxBaseImages bases;
+  private JpxCds cds;
+  private Layer cdsLayer;
+  private JpxRuntime runtime;
+  private Layer runtimeLayer;
+  private SortedSet<String> runtimeModules;
+  private JpxEntrypoint entrypoint;
   private List<String> accumulatedClasspath = new LinkedList<>();
+  private List<Pair<BlobInfo, String>> stableJars = new LinkedList<>();
 
-  public JpxBuilder(RegistryProvider registry, Path manifest) {
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  /**
+   * the most layers docker will run an image with.
+   */
+
+  private static final int MAX_LAYERS = 127;
+
+  /**
+   * the JVM argument file in the changing layer, with the argfile entrypoint.
+   */
+
+  private static final String ARGS = "jvm.args";
+
+  /**
+   * the version at the end of a JAR file name, e.g "-1.2.3.jar".
+   */
+
+  private static final Pattern VERSION_SUFFIX = Pattern.compile("-\\d[^/]*\\.jar$");
+
+  public JpxBuilder(RegistryProvider registry, JpxCache cache, InputStream manifest) {
+    this(
+        registry,
+        cache,
+        manifest,
+        JpxCompression.GZIP,
+        JpxCompression.GZIP.defaultLevel(),
+        JpxLayering.SINGLE,
+        new JpxBaseImages(registry),
+        null,
+        null,
+        JpxEntrypoint.SCRIPT);
+  }
+
+  /**
+   * reads the JPX manifest from the stream into memory, without writing it out. the caller bounds how much is read.
+   *
+   * @param cache
+   *          the layers already built, which is shared with every other builder.
+   * @param compression
+   *          how layers are stored, unless the manifest says otherwise.
+   * @param level
+   *          the compression level, unless the manifest gives a compression or level of its own.
+   * @param layering
+   *          how the stable JARs are split into layers, unless the manifest gives "stableLayers".
+   * @param bases
+   *          the image to build on, which is the default unless the manifest gives one as "base".
+   * @param cds
+   *          dumps a CDS archive of the stable JARs when the manifest asks for one with "cds", or null if it can't.
+   * @param runtime
+   *          links a runtime with just the modules used when the manifest asks for one with "runtime", or null if it
+   *          can't.
+   * @param entrypoint
+   *          how the image starts the JVM, unless the manifest gives "entrypoint".
+   */
+
+  public JpxBuilder(
+      RegistryProvider registry,
+      JpxCache cache,
+      InputStream manifest,
+      JpxCompression compression,
+      int level,
+      JpxLayering layering,
+      JpxBaseImages bases,
+      JpxCds cds,
+      JpxRuntime runtime,
+      JpxEntrypoint entrypoint) {
     this.registry = registry;
-    this.cache = new JpxCache(Paths.get("/mnt/blobs/_cache/"));
-    try {
-      this.manifest = (ObjectNode) new ObjectMapper().readTree(manifest.toFile());
+    this.cache = cache;
+    this.bases = bases;
+    this.cds = cds;
+    this.runtime = runtime;
+    try (JsonParser parser = mapper.getFactory().createParser(manifest)) {
+      final JsonNode node = mapper.readTree(parser);
+      if (node == null || !node.isObject()) {
+        throw new IllegalArgumentException("JPX manifest must be an object");
+      }
+      this.manifest = (ObjectNode) node;
+      if (node.has("compression")) {
+        this.compression = JpxCompression.fromId(node.get("compression").asText());
+        this.level = this.compression.defaultLevel();
+      }
+      else {
+        this.compression = compression;
+        this.level = level;
+      }
+      if (node.has("compressionLevel")) {
+        this.level = node.get("compressionLevel").asInt();
+      }
+      this.compression.checkLevel(this.level);
+      this.layering = node.has("stableLayers") ? layering.withLayers(node.get("stableLayers").asInt()) : layering;
+      this.entrypoint = node.has("entrypoint") ? JpxEntrypoint.fromId(node.get("entrypoint").asText()) : entrypoint;
+      if (this.entrypoint == JpxEntrypoint.ARGFILE && !node.path("mainClass").isTextual()) {
+        throw new IllegalArgumentException("an argfile entrypoint needs a mainClass");
+      }
     }
     catch (IOException e) {
       throw new RuntimeException(e);
@@ -70,16 +182,50 @@ public class JpxBuilder {
 
       ObjectNode mf = this.manifest;
 
-      this.stable = createStableLayer(mf);
+      this.runtimeLayer = createRuntimeLayer(mf);
+
+      // a linked runtime goes on an image without one.
+      JpxBaseImages.Base base = this.bases.get(mf.hasNonNull("base") || this.runtimeLayer == null
+          ? mf.path("base").textValue()
+          : this.runtime.base());
+
+      this.stableLayers = createStableLayers(mf, registry);
+      this.cdsLayer = createCdsLayer(mf);
+
+      if (this.cdsLayer == null) {
+        this.stable = this.layering.keepsOrder() ? this.stableLayers.get(0) : combined(this.stableLayers);
+      }
+      else {
+        List<Layer> parents = new ArrayList<>(this.stableLayers);
+        parents.add(this.cdsLayer);
+        this.stable = combined(parents);
+        if (this.entrypoint == JpxEntrypoint.ARGFILE) {
+          // the archive's classpath is relative, which the script only uses when started in /.
+          log.debug("using the script entrypoint for an image with a CDS archive");
+          this.entrypoint = JpxEntrypoint.SCRIPT;
+        }
+      }
+
       this.changing = createChangingLayer(mf, stable);
 
+      int extra = (this.runtimeLayer == null ? 0 : 1) + (this.cdsLayer == null ? 0 : 1);
+
+      if (base.layers().size() + this.stableLayers.size() + extra + 1 > MAX_LAYERS) {
+        throw new IllegalArgumentException(String.format(
+            "image would have %d base and %d stable layers, more than the %d allowed",
+            base.layers().size(), this.stableLayers.size(), MAX_LAYERS - extra - 1));
+      }
+
+      // what changed since the last push, which places JARs in later ones.
+      this.cache.churn().record(registry, churnIds(mf));
+
       final BlobInfo configBlob;
 
       {
 
         ObjectNode spec = JsonNodeFactory.instance.objectNode();
 
-        spec.put("architecture", "amd64");
+        spec.put("architecture", base.architecture());
         ObjectNode cfg = spec.putObject("config");
 
         cfg.put("Hostname", "");
@@ -119,11 +265,12 @@ public class JpxBuilder {
 
         ArrayNode env = cfg.putArray("Env");
 
-        env.add("PATH=/usr/local/sbin:/usr/local/bin:/usr/sbin:/usr/bin:/sbin:/bin");
-        env.add("LANG=C.UTF-8");
-        env.add("JAVA_HOME=/docker-java-home");
-        env.add("JAVA_VERSION=11.0.1");
-        env.add("LANG=C.UTF-8");
+        if (this.runtimeLayer == null) {
+          base.env().forEach(env::add);
+        }
+        else {
+          runtimeEnv(base.env()).forEach(env::add);
+        }
 
         if (mf.has("mainClass")) {
           env.add("MAIN_CLASS=" + mf.get("mainClass").textValue());
@@ -143,28 +290,42 @@ public class JpxBuilder {
 
         cfg.put("WorkingDir", "/");
 
-        cfg.putArray("Entrypoint")
-            .add("/joci/entrypoint");
+        if (this.entrypoint == JpxEntrypoint.ARGFILE) {
+          cfg.putArray("Entrypoint")
+              .add(java(base))
+              .add("@/joci/" + ARGS);
+        }
+        else {
+          cfg.putArray("Entrypoint")
+              .add("/joci/entrypoint");
+        }
 
         cfg.putArray("OnBuild");
 
         cfg.putObject("Labels")
             .put("maintainer", "root");
 
-        spec.put("os", "linux");
+        spec.put("os", base.os());
 
         ArrayNode diffs = spec.putObject("rootfs")
             .put("type", "layers")
             .putArray("diff_ids");
 
         // java runtime ...
-        diffs.add("sha256:e93af51b6155a8dd97f6dbbc700e94635dc9a0bd245e140c7c373d8305f8ff35");
-        diffs.add("sha256:fb3486253dd2f38167fba17942b51a2341b8f0de4334c74965e04bc13f684fe0");
-        diffs.add("sha256:11c651819169bfcb22239d1c0021c73870dca874570d56ca8f17071fdb58c961");
-        diffs.add("sha256:04924db0e17d8830859f1b1ce3de15933809185fcdb8f75c70ea3e36eb270f02");
-        diffs.add("sha256:949fb6408aace446c61014ff2d4bb0467703c2f149d57a5fd060b30bd48d09ed");
+        base.diffIds().forEach(diffs::add);
+
+        if (this.runtimeLayer != null) {
+          diffs.add(new Digest(this.runtimeLayer.uncompressedHash).toString());
+        }
+
+        for (Layer layer : this.stableLayers) {
+          diffs.add(new Digest(layer.uncompressedHash).toString());
+        }
+
+        if (this.cdsLayer != null) {
+          diffs.add(new Digest(this.cdsLayer.uncompressedHash).toString());
+        }
 
-        diffs.add(new Digest(stable.uncompressedHash).toString());
         diffs.add(new Digest(changing.uncompressedHash).toString());
 
         String json = spec.toString();
@@ -184,19 +345,31 @@ public class JpxBuilder {
 
         ArrayNode layers = spec.putArray("layers");
 
-        add(layers, "cca8b8cf2f157d13678401181406e5baf05ab424a04fb8190f9e3816c5db1e29");
-        add(layers, "13cf705e89452ccf724ae251641ad26bc6e8162141b3a88b688c959d8872f905");
-        add(layers, "66f6961c9eb5dddcc3a449439adc5c4a03e716794daec2a41900f7fda4fb492a");
-        add(layers, "805a6a4d0333bf4fa32e15672a04b71ef96caa25e163e085b4bd72831d2792b0");
-        add(layers, "340a18e6e5438fb1757d6b5f31c95377976254ddb669be89513895b05fb04647");
+        base.layers().forEach(layer -> layers.add(layer.deepCopy()));
 
-        layers.addObject()
-            .put("mediaType", "application/vnd.docker.image.rootfs.diff.tar.gzip")
-            .put("digest", new Digest(stable.compressedHash).toString())
-            .put("size", stable.size());
+        if (this.runtimeLayer != null) {
+          layers.addObject()
+              .put("mediaType", this.runtimeLayer.compression().mediaType())
+              .put("digest", new Digest(this.runtimeLayer.compressedHash).toString())
+              .put("size", this.runtimeLayer.size());
+        }
+
+        for (Layer layer : this.stableLayers) {
+          layers.addObject()
+              .put("mediaType", layer.compression().mediaType())
+              .put("digest", new Digest(layer.compressedHash).toString())
+              .put("size", layer.size());
+        }
+
+        if (this.cdsLayer != null) {
+          layers.addObject()
+              .put("mediaType", this.cdsLayer.compression().mediaType())
+              .put("digest", new Digest(this.cdsLayer.compressedHash).toString())
+              .put("size", this.cdsLayer.size());
+        }
 
         layers.addObject()
-            .put("mediaType", "application/vnd.docker.image.rootfs.diff.tar.gzip")
+            .put("mediaType", changing.compression().mediaType())
             .put("digest", new Digest(changing.compressedHash).toString())
             .put("size", changing.size());
 
@@ -212,8 +385,10 @@ public class JpxBuilder {
 
         log.debug("manifest hash is {}", mannifestHash);
 
-        // the new target.
-        Path manifestPath = this.registry.resolve(registry, mannifestHash.toString());
+        final java.nio.file.Path file = this.registry.resolve(registry, tag);
+
+        // the new target, which sits alongside the tag so the link can be relative.
+        Path manifestPath = file.resolveSibling(mannifestHash.toString());
 
         Files.createDirectories(manifestPath.getParent());
 
@@ -235,8 +410,6 @@ public class JpxBuilder {
 
         }
 
-        final java.nio.file.Path file = this.registry.resolve(registry, tag);
-
         if (Files.exists(file, LinkOption.NOFOLLOW_LINKS)) {
 
           // this tag is already present.
@@ -264,7 +437,7 @@ public class JpxBuilder {
 
         log.debug("linkingn from {} to {}", file, manifestPath);
 
-        Files.createSymbolicLink(file, manifestPath);
+        Files.createSymbolicLink(file, manifestPath.getFileName());
 
         return mannifestHash;
 
@@ -291,9 +464,9 @@ public class JpxBuilder {
     return Optional.of(new Digest(this.previousTagTarget.getFileName().toString()));
   }
 
-  private Layer createStableLayer(ObjectNode mf) throws IOException {
+  private List<Layer> createStableLayers(ObjectNode mf, String repository) throws IOException {
 
-    List<Pair<BlobInfo, String>> blobs = new LinkedList<>();
+    List<JpxLayering.Jar> jars = new LinkedList<>();
 
     for (JsonNode node : mf.get("classpath")) {
 
@@ -307,67 +480,280 @@ public class JpxBuilder {
         throw new IllegalArgumentException("invalid classpath entry");
       }
 
-      if (!this.registry.containsBlob(new Digest(jar))) {
+      BlobInfo blob = this.registry.stat(new Digest(jar));
+
+      if (blob == null) {
         throw new IllegalArgumentException("missing blob: " + jar);
       }
 
-      BlobInfo blob = this.registry.stat(new Digest(jar));
+      jars.add(new JpxLayering.Jar(blob, node.get("name").textValue(), group(node), churnId(node)));
+      this.stableJars.add(Pair.of(blob, node.get("name").textValue()));
 
-      blobs.add(Pair.of(blob, node.get("name").textValue()));
+      // add the classpath to the acumulation, so it is written in the child layer, in the order given.
+      this.accumulatedClasspath.add("/joci/" + node.get("name").textValue());
 
     }
 
-    //
-    Layer cache = this.cache.inCache(blobs);
+    List<Layer> layers = new ArrayList<>();
+
+    Map<String, JpxChurn.Tier> tiers = this.layering.tiered()
+        ? this.cache.churn().tiers(repository, jars.stream().map(JpxLayering.Jar::id).collect(Collectors.toList()))
+        : Collections.emptyMap();
 
-    if (cache != null) {
-      log.debug("got cache hit for stable: {}", blobs);
-      // add the classpath to the acumulation, so it is written in the child layer.
-      this.accumulatedClasspath.addAll(blobs.stream()
-          .map(e -> "/joci/" + e.getValue())
-          .collect(Collectors.toList()));
-      return cache;
+    for (List<Pair<BlobInfo, String>> blobs : this.layering.split(jars, tiers)) {
+      layers.add(createStableLayer(blobs));
     }
 
-    log.debug("no cache hit for stable layer.");
+    return layers;
 
-    JpxLayerBuilder n = new JpxLayerBuilder();
+  }
 
-    RegistryUploadSession session = this.registry.startUpload();
-    Path layer = this.registry.resolve(session.uploadId());
-    n.open(layer);
+  /**
+   * a stable layer has no parent, so the same JARs make the same layer whatever else is in the image.
+   */
 
-    for (Pair<BlobInfo, String> e : blobs) {
+  private Layer createStableLayer(List<Pair<BlobInfo, String>> blobs) throws IOException {
 
-      try (InputStream strm = e.getKey().openStream()) {
+    return this.cache.get(blobs, Optional.empty(), this.compression, this.level, () -> {
 
-        BlobInfo blob = e.getKey();
+      log.debug("no cache hit for stable layer.");
 
-        // add it.
-        n.addBlob(
-            e.getValue(),
-            blob.size(),
-            blob.openStream());
+      JpxLayerBuilder n = new JpxLayerBuilder(ForkJoinPool.commonPool(), this.compression, this.level);
 
-        strm.close();
+      RegistryUploadSession session = this.registry.startUpload();
+      n.open(session.openStream());
 
+      addJars(n, blobs);
+
+      // add it.
+
+      n.close();
+
+      HashCode compressedHash = n.compressedHash();
+      HashCode uncompressedHash = n.uncompressedHash();
+
+      BlobInfo bi = this.registry.completeUpload(session.uploadId(), new Digest(compressedHash));
+
+      return new Layer(bi, blobs, compressedHash, uncompressedHash, null, this.compression, this.level);
+
+    });
+
+  }
+
+  /**
+   * the CDS archive of the stable JARs, in a layer of its own keyed by them and the JDK which dumped it. if it can't be
+   * dumped the image is built without it, as it would have been before.
+   */
+
+  private Layer createCdsLayer(ObjectNode mf) {
+
+    JsonNode spec = mf.path("cds");
+
+    if (!enabled(spec) || this.stableJars.isEmpty()) {
+      return null;
+    }
+
+    if (this.cds == null) {
+      log.warn("JPX manifest asks for CDS, but there's no JDK to dump it with");
+      return null;
+    }
+
+    if (this.runtimeLayer != null) {
+      // it would need dumping with the linked runtime, as it's only used by the JVM which made it.
+      log.info("not creating CDS archive for an image with a linked runtime");
+      return null;
+    }
+
+    BlobInfo classList = null;
+
+    if (spec.hasNonNull("classList")) {
+      classList = this.registry.stat(new Digest(spec.get("classList").asText()));
+      if (classList == null) {
+        throw new IllegalArgumentException("missing blob: " + spec.get("classList").asText());
       }
+    }
+
+    try {
+
+      List<Pair<BlobInfo, String>> keys = new ArrayList<>(this.stableJars);
+
+      keys.add(this.cds.key(this.registry));
+
+      if (classList != null) {
+        keys.add(Pair.of(classList, "cds/classlist"));
+      }
+
+      BlobInfo classes = classList;
+
+      return this.cache.get(keys, Optional.empty(), this.compression, this.level, () -> {
+
+        log.debug("no cache hit for CDS layer.");
+
+        Path archive = this.cds.dump(this.stableJars, classes);
+
+        try {
+
+          JpxLayerBuilder n = new JpxLayerBuilder(ForkJoinPool.commonPool(), this.compression, this.level);
+
+          RegistryUploadSession session = this.registry.startUpload();
+          n.open(session.openStream());
 
+          try (InputStream in = Files.newInputStream(archive)) {
+            n.addFile(JpxCds.ARCHIVE, Files.size(archive), in);
+          }
+
+          n.close();
+
+          HashCode compressedHash = n.compressedHash();
+          HashCode uncompressedHash = n.uncompressedHash();
+
+          BlobInfo bi = this.registry.completeUpload(session.uploadId(), new Digest(compressedHash));
+
+          return new Layer(bi, keys, compressedHash, uncompressedHash, null, this.compression, this.level);
+
+        }
+        finally {
+          Files.deleteIfExists(archive);
+        }
+
+      });
+
+    }
+    catch (IOException ex) {
+      log.warn("unable to create CDS archive, continuing without it: {}", ex.getMessage());
+      return null;
     }
 
-    this.accumulatedClasspath.addAll(n.classPath());
+  }
 
-    // add it.
+  /**
+   * a runtime with just the modules the classpath uses (and any the manifest adds with "addModules", e.g for services
+   * found at runtime such as jdk.crypto.ec), shared by every image using the same modules. if it can't be linked the
+   * image is built on the usual base instead.
+   */
+
+  private Layer createRuntimeLayer(ObjectNode mf) throws IOException {
 
-    n.close();
+    JsonNode spec = mf.path("runtime");
 
-    HashCode compressedHash = n.compressedHash();
-    HashCode uncompressedHash = n.uncompressedHash();
+    if (!enabled(spec)) {
+      return null;
+    }
 
-    BlobInfo bi = this.registry.completeUpload(session.uploadId(), new Digest(compressedHash));
+    if (this.runtime == null) {
+      log.warn("JPX manifest asks for a linked runtime, but there's no JDK to link it with");
+      return null;
+    }
 
-    return this.cache.add(new Layer(bi, blobs, compressedHash, uncompressedHash));
+    List<String> extra = new ArrayList<>();
 
+    spec.path("addModules").forEach(module -> extra.add(module.asText()));
+
+    try {
+
+      this.runtimeModules = this.runtime.modules(classpath(mf), extra);
+
+      List<Pair<BlobInfo, String>> keys = Collections.singletonList(this.runtime.key(this.registry, this.runtimeModules));
+
+      return this.cache.get(keys, Optional.empty(), this.compression, this.level, () -> {
+
+        log.debug("no cache hit for runtime layer.");
+
+        Path dir = this.runtime.link(this.runtimeModules);
+
+        try {
+
+          JpxLayerBuilder n = new JpxLayerBuilder(ForkJoinPool.commonPool(), this.compression, this.level);
+
+          RegistryUploadSession session = this.registry.startUpload();
+          n.open(session.openStream());
+
+          n.addTree(JpxRuntime.PATH, dir.resolve(JpxRuntime.PATH));
+
+          n.close();
+
+          HashCode compressedHash = n.compressedHash();
+          HashCode uncompressedHash = n.uncompressedHash();
+
+          BlobInfo bi = this.registry.completeUpload(session.uploadId(), new Digest(compressedHash));
+
+          return new Layer(bi, keys, compressedHash, uncompressedHash, null, this.compression, this.level);
+
+        }
+        finally {
+          MoreFiles.deleteRecursively(dir, RecursiveDeleteOption.ALLOW_INSECURE);
+        }
+
+      });
+
+    }
+    catch (IOException ex) {
+      log.warn("unable to link runtime, using the base image's: {}", ex.getMessage());
+      this.runtimeModules = null;
+      return null;
+    }
+
+  }
+
+  /**
+   * the base image's environment, with the linked runtime in place of its JRE.
+   */
+
+  private List<String> runtimeEnv(List<String> env) throws IOException {
+
+    List<String> result = new ArrayList<>();
+
+    String path = "/usr/local/sbin:/usr/local/bin:/usr/sbin:/usr/bin:/sbin:/bin";
+
+    for (String e : env) {
+      if (e.startsWith("PATH=")) {
+        path = e.substring("PATH=".length());
+      }
+      else if (!e.startsWith("JAVA_HOME=") && !e.startsWith("JAVA_VERSION=")) {
+        result.add(e);
+      }
+    }
+
+    result.add(0, "PATH=" + JpxRuntime.HOME + "/bin:" + path);
+    result.add("JAVA_HOME=" + JpxRuntime.HOME);
+    result.add("JAVA_VERSION=" + this.runtime.version());
+
+    return result;
+
+  }
+
+  /**
+   * every JAR on the classpath, in order.
+   */
+
+  private List<Pair<BlobInfo, String>> classpath(ObjectNode mf) {
+
+    List<Pair<BlobInfo, String>> jars = new ArrayList<>();
+
+    for (JsonNode node : mf.get("classpath")) {
+
+      String jar = node.get("integrity").asText();
+
+      BlobInfo blob = this.registry.stat(new Digest(jar));
+
+      if (blob == null) {
+        throw new IllegalArgumentException("missing blob: " + jar);
+      }
+
+      jars.add(Pair.of(blob, node.get("name").textValue()));
+
+    }
+
+    return jars;
+
+  }
+
+  /**
+   * whether an optional part of the image is asked for, with true or an object of options.
+   */
+
+  private static boolean enabled(JsonNode spec) {
+    return !spec.isMissingNode() && !spec.isNull() && !(spec.isBoolean() && !spec.booleanValue());
   }
 
   private Layer createChangingLayer(ObjectNode mf, Layer stable) throws IOException {
@@ -386,12 +772,12 @@ public class JpxBuilder {
         throw new IllegalArgumentException("invalid classpath entry");
       }
 
-      if (!this.registry.containsBlob(new Digest(jar))) {
+      BlobInfo blob = this.registry.stat(new Digest(jar));
+
+      if (blob == null) {
         throw new IllegalArgumentException("missing blob: " + jar);
       }
 
-      BlobInfo blob = this.registry.stat(new Digest(jar));
-
       blobs.add(Pair.of(blob, node.get("name").textValue()));
 
     }
@@ -400,59 +786,154 @@ public class JpxBuilder {
 
     blobs.forEach(blob -> log.debug(" -> {}", blob));
 
-    Layer cache = this.cache.inCache(blobs, Optional.of(stable));
+    // the argument file has the java options and main class in it, so the layer changes with them.
+    List<Pair<BlobInfo, String>> keys = new ArrayList<>(blobs);
 
-    if (cache != null) {
-      log.debug("found changing layer cache for {}", blobs);
-      return cache;
+    List<String> javaOptions = javaOptionList(mf);
+
+    if (this.entrypoint == JpxEntrypoint.ARGFILE) {
+      List<String> args = new ArrayList<>(javaOptions);
+      args.add(mf.get("mainClass").textValue());
+      keys.add(Pair.of(this.registry.putBlob(JpxLayerBuilder.argfile(args)), ARGS));
     }
 
-    log.debug("no cache hit for changing layer.");
+    return this.cache.get(keys, Optional.of(stable), this.compression, this.level, () -> {
 
-    ///
+      log.debug("no cache hit for changing layer.");
 
-    JpxLayerBuilder n = new JpxLayerBuilder();
+      JpxLayerBuilder n = new JpxLayerBuilder(ForkJoinPool.commonPool(), this.compression, this.level);
 
-    RegistryUploadSession session = this.registry.startUpload();
+      RegistryUploadSession session = this.registry.startUpload();
 
-    Path layer = this.registry.resolve(session.uploadId());
+      n.open(session.openStream());
 
-    n.open(layer);
+      addJars(n, blobs);
 
-    for (Pair<BlobInfo, String> e : blobs) {
+      n.addClasspath(this.accumulatedClasspath);
 
-      try (InputStream strm = e.getKey().openStream()) {
+      if (this.cdsLayer != null) {
+        n.setSharedArchive(
+            "/joci/" + JpxCds.ARCHIVE,
+            this.stableJars.stream().map(jar -> JpxCds.relative(jar.getValue())).collect(Collectors.toList()));
+      }
+
+      // add it.
+      if (this.entrypoint == JpxEntrypoint.ARGFILE) {
+        n.addArgs(ARGS, javaOptions, mf.get("mainClass").textValue());
+      }
+      else {
+        n.addScript("entrypoint", mf);
+      }
 
-        BlobInfo blob = e.getKey();
+      n.close();
 
-        // add it.
-        n.addBlob(
-            e.getValue(),
-            blob.size(),
-            blob.openStream());
+      HashCode compressedHash = n.compressedHash();
+      HashCode uncompressedHash = n.uncompressedHash();
 
-        strm.close();
+      BlobInfo bi = this.registry.completeUpload(session.uploadId(), new Digest(compressedHash));
 
+      log.debug("created {} / {}", bi, compressedHash.toString());
+
+      return new Layer(bi, keys, compressedHash, uncompressedHash, stable, this.compression, this.level);
+
+    });
+
+  }
+
+  /**
+   * the java binary of the image: the linked runtime's, the base image's JAVA_HOME, or whichever is on the PATH.
+   */
+
+  private String java(JpxBaseImages.Base base) {
+    if (this.runtimeLayer != null) {
+      return JpxRuntime.HOME + "/bin/java";
+    }
+    return base.env().stream()
+        .filter(e -> e.startsWith("JAVA_HOME="))
+        .reduce((first, second) -> second)
+        .map(e -> e.substring("JAVA_HOME=".length()) + "/bin/java")
+        .orElse("java");
+  }
+
+  /**
+   * copies in the precompressed fragment of each JAR, so only the ones we haven't seen before get compressed. fragments
+   * are gzip members, so zstd and plain tar layers write the JARs out as usual.
+   */
+
+  private void addJars(JpxLayerBuilder n, List<Pair<BlobInfo, String>> blobs) throws IOException {
+
+    for (Pair<BlobInfo, String> e : blobs) {
+
+      BlobInfo blob = e.getKey();
+
+      if (n.compression() != JpxCompression.GZIP) {
+        n.addBlob(e.getValue(), blob.size(), blob.openStream());
+        continue;
+      }
+
+      Path fragment = this.cache.fragments().get(blob, e.getValue(), n.level());
+
+      try (InputStream content = blob.openStream(); InputStream in = Files.newInputStream(fragment)) {
+        n.addFragment(e.getValue(), blob.size(), content, in);
       }
 
     }
 
-    n.addClasspath(this.accumulatedClasspath);
+  }
 
-    // add it.
-    n.addScript("entrypoint", mf);
+  /**
+   * the parent of the changing layer when the stable JARs are split, so its cache key covers every stable layer and
+   * the order of the classpath it writes, which the (sorted) layers don't.
+   */
 
-    n.close();
+  private Layer combined(List<Layer> layers) {
+    Hasher blobs = Hashing.sha256().newHasher();
+    Hasher compressed = Hashing.sha256().newHasher();
+    Hasher uncompressed = Hashing.sha256().newHasher();
+    long size = 0;
+    for (Layer layer : layers) {
+      blobs.putBytes(layer.blobHash().asBytes());
+      compressed.putBytes(layer.compressedHash().asBytes());
+      uncompressed.putBytes(layer.uncompressedHash().asBytes());
+      size += layer.size();
+    }
+    for (String path : this.accumulatedClasspath) {
+      compressed.putInt(0);
+      compressed.putBytes(path.getBytes(UTF_8));
+    }
+    return new Layer(size, blobs.hash(), compressed.hash(), uncompressed.hash(), Optional.empty(), this.compression, this.level);
+  }
 
-    HashCode compressedHash = n.compressedHash();
-    HashCode uncompressedHash = n.uncompressedHash();
+  /**
+   * what a classpath entry's changes are tracked by, which stays the same when its version changes: the Maven
+   * coordinates without the version if given, otherwise the file name without a version on the end.
+   */
 
-    BlobInfo bi = this.registry.completeUpload(session.uploadId(), new Digest(compressedHash));
+  private static String churnId(JsonNode node) {
+    JsonNode id = node.path("moduleVersion").path("id");
+    if (id.hasNonNull("group") && id.hasNonNull("name")) {
+      String classifier = node.path("classifier").asText("");
+      return id.get("group").asText() + ":" + id.get("name").asText() + (classifier.isEmpty() ? "" : ":" + classifier);
+    }
+    String name = node.get("name").textValue();
+    return VERSION_SUFFIX.matcher(name.substring(name.lastIndexOf('/') + 1)).replaceFirst("");
+  }
 
-    log.debug("created {} / {}", bi, compressedHash.toString());
+  private static Map<String, String> churnIds(ObjectNode mf) {
+    Map<String, String> classpath = new LinkedHashMap<>();
+    for (JsonNode node : mf.get("classpath")) {
+      classpath.putIfAbsent(churnId(node), node.get("integrity").asText());
+    }
+    return classpath;
+  }
 
-    return this.cache.add(new Layer(bi, blobs, compressedHash, uncompressedHash, stable));
+  /**
+   * the Maven group of a classpath entry, if it has one.
+   */
 
+  private static String group(JsonNode node) {
+    JsonNode group = node.path("moduleVersion").path("id").get("group");
+    return (group == null || !group.isTextual()) ? null : group.textValue();
   }
 
   private boolean isChanging(JsonNode node) {
@@ -490,6 +971,8 @@ public class JpxBuilder {
     private Layer parent;
     private HashCode blobHash;
     private long blobSize;
+    private JpxCompression compression;
+    private int level;
 
     public Layer(
         long size,
@@ -497,11 +980,35 @@ public class JpxBuilder {
         HashCode compressedHash,
         HashCode uncompressedHash,
         Optional<Layer> parent) {
+      this(size, blobsHash, compressedHash, uncompressedHash, parent, JpxCompression.GZIP, JpxCompression.GZIP.defaultLevel());
+    }
+
+    public Layer(
+        long size,
+        HashCode blobsHash,
+        HashCode compressedHash,
+        HashCode uncompressedHash,
+        Optional<Layer> parent,
+        JpxCompression compression,
+        int level) {
       this.blobSize = size;
       this.blobHash = blobsHash;
       this.compressedHash = compressedHash;
       this.uncompressedHash = uncompressedHash;
       this.parent = parent.orElse(null);
+      this.compression = compression;
+      this.level = level;
+    }
+
+    public Layer(
+        BlobInfo bi,
+        List<Pair<BlobInfo, String>> blobs,
+        HashCode compressedHash,
+        HashCode uncompressedHash,
+        Layer parent,
+        JpxCompression compression,
+        int level) {
+      this(bi.size(), JpxCache.hash(blobs), compressedHash, uncompressedHash, Optional.ofNullable(parent), compression, level);
     }
 
     public Layer(
@@ -510,7 +1017,7 @@ public class JpxBuilder {
         HashCode compressedHash,
         HashCode uncompressedHash,
         Layer parent) {
-      this(bi.size(), JpxCache.hash(blobs), compressedHash, uncompressedHash, Optional.ofNullable(parent));
+      this(bi, blobs, compressedHash, uncompressedHash, parent, JpxCompression.GZIP, JpxCompression.GZIP.defaultLevel());
     }
 
     public Layer(BlobInfo bi, List<Pair<BlobInfo, String>> blobs, HashCode compressedHash, HashCode uncompressedHash) {
@@ -529,6 +1036,18 @@ public class JpxBuilder {
       return Optional.ofNullable(this.parent);
     }
 
+    /**
+     * how the blob is stored. for {@link JpxCompression#NONE} the compressed and uncompressed hash are the same.
+     */
+
+    public JpxCompression compression() {
+      return this.compression;
+    }
+
+    public int level() {
+      return this.level;
+    }
+
     public long size() {
       return this.blobSize;
     }
@@ -552,10 +1071,14 @@ public class JpxBuilder {
   }
 
   private String javaOptions(JsonNode mf) {
+    return javaOptionList(mf).stream().sequential().collect(Collectors.joining(" "));
+  }
+
+  private List<String> javaOptionList(JsonNode mf) {
 
     List<String> entries = new LinkedList<>();
 
-    for (JsonNode val : mf.get("javaOptions")) {
+    for (JsonNode val : mf.path("javaOptions")) {
 
       if (val.isTextual()) {
         String text = val.textValue();
@@ -570,17 +1093,10 @@ public class JpxBuilder {
 
     }
 
-    return entries.stream().sequential().collect(Collectors.joining(" "));
+    return entries;
 
   }
 
-  private void add(ArrayNode layers, String hash) {
-    BlobInfo blob = this.registry.stat(new Digest("sha256", hash));
-    layers.addObject()
-        .put("mediaType", "application/vnd.docker.image.rootfs.diff.tar.gzip")
-        .put("digest", blob.digest().toString())
-        .put("size", blob.size());
-  }
 
   public List<ObjectNode> missingBlobs() {
 
@@ -607,8 +1123,40 @@ public class JpxBuilder {
     return this.changing;
   }
 
+  /**
+   * the first of the stable layers.
+   */
+
   public Layer stableLayer() {
-    return this.stable;
+    return this.stableLayers.get(0);
+  }
+
+  public List<Layer> stableLayers() {
+    return this.stableLayers;
+  }
+
+  /**
+   * the layer with the linked runtime, if there is one.
+   */
+
+  public Optional<Layer> runtimeLayer() {
+    return Optional.ofNullable(this.runtimeLayer);
+  }
+
+  /**
+   * the modules the linked runtime has, if there is one.
+   */
+
+  public Optional<SortedSet<String>> runtimeModules() {
+    return Optional.ofNullable(this.runtimeLayer == null ? null : this.runtimeModules);
+  }
+
+  /**
+   * the layer with the CDS archive, if there is one.
+   */
+
+  public Optional<Layer> cdsLayer() {
+    return Optional.ofNullable(this.cdsLayer);
   }
 
   // virtual size of the
@@ -0,0 +1,98 @@
+package io.zrz.joci.registry.jpx;
+
+import java.io.InputStream;
+
+import io.zrz.joci.jpx.JpxCompression;
+import io.zrz.joci.jpx.JpxEntrypoint;
+import io.zrz.joci.spi.RegistryProvider;
+
+/**
+ * makes the {@link JpxBuilder} for each JPX manifest pushed, which all share the one {@link JpxCache} and the default
+ * compression, layering, base image, CDS, runtime and entrypoint.
+ *
+ * @author theo
+ *
+ */
+
+public class JpxBuilders {
+
+  private final RegistryProvider registry;
+  private final JpxCache cache;
+  private final JpxCompression compression;
+  private final int level;
+  private final JpxLayering layering;
+  private final JpxBaseImages bases;
+  private final JpxCds cds;
+  private final JpxRuntime runtime;
+  private final JpxEntrypoint entrypoint;
+
+  public JpxBuilders(RegistryProvider registry, JpxCache cache) {
+    this(
+        registry,
+        cache,
+        JpxCompression.GZIP,
+        JpxCompression.GZIP.defaultLevel(),
+        JpxLayering.SINGLE,
+        new JpxBaseImages(registry),
+        null,
+        null,
+        JpxEntrypoint.SCRIPT);
+  }
+
+  /**
+   * @param compression
+   *          how layers are stored, unless the JPX manifest says otherwise.
+   * @param level
+   *          the level they're compressed at.
+   * @param layering
+   *          how stable JARs are split into layers, unless the JPX manifest says otherwise.
+   * @param bases
+   *          the base images, which are shared so each is only read once.
+   * @param cds
+   *          dumps CDS archives for manifests which ask for them, or null to build without.
+   * @param runtime
+   *          links runtimes for manifests which ask for them, or null to build on the base image's.
+   * @param entrypoint
+   *          how images start the JVM, unless the JPX manifest says otherwise.
+   */
+
+  public JpxBuilders(
+      RegistryProvider registry,
+      JpxCache cache,
+      JpxCompression compression,
+      int level,
+      JpxLayering layering,
+      JpxBaseImages bases,
+      JpxCds cds,
+      JpxRuntime runtime,
+      JpxEntrypoint entrypoint) {
+    this.registry = registry;
+    this.cache = cache;
+    this.compression = compression;
+    this.level = compression.checkLevel(level);
+    this.layering = layering;
+    this.bases = bases;
+    this.cds = cds;
+    this.runtime = runtime;
+    this.entrypoint = entrypoint;
+  }
+
+  public JpxBuilder create(InputStream manifest) {
+    return new JpxBuilder(
+        this.registry,
+        this.cache,
+        manifest,
+        this.compression,
+        this.level,
+        this.layering,
+        this.bases,
+        this.cds,
+        this.runtime,
+        this.entrypoint);
+  }
+
+  public JpxCache cache() {
+    return this.cache;
+  }
+
+}
@@ -3,43 +3,166 @@ package io.zrz.joci.registry.jpx;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang3.tuple.Pair;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 
 import io.zrz.joci.core.Digest;
+import io.zrz.joci.jpx.JpxCompression;
 import io.zrz.joci.registry.jpx.JpxBuilder.Layer;
 import io.zrz.joci.spi.RegistryProvider.BlobInfo;
 
+/**
+ * the JPX layers we've already built, by a key made from the JARs in them (and their parent, and how they're
+ * compressed), so the same set of JARs is only ever built once.
+ *
+ * a single instance is shared by every request. entries are appended to {@code layers.log} by a {@link JpxCacheLog},
+ * which drops a partial append left by a crash, and requests which want a layer that's already being built wait for
+ * that build rather than starting their own.
+ *
+ * the most recently used entries are also held in memory. {@link #compact()}
+ * (which is run periodically) evicts the ones which haven't been used for a while, or the oldest beyond the max count,
+ * along with the fragments which haven't been used for as long.
+ *
+ * @author theo
+ *
+ */
+
 public class JpxCache {
 
   private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(JpxCache.class);
 
-  private Path base;
+  public static final long DEFAULT_MEMORY_ENTRIES = 10_000;
+
+  public static final long DEFAULT_MAX_ENTRIES = 100_000;
+
+  public static final Duration DEFAULT_MAX_AGE = Duration.ofDays(30);
+
+  private final JpxFragments fragments;
+
+  private final JpxChurn churn;
+
+  private final JpxCacheLog store;
+
+  private final Duration maxAge;
+  private final Clock clock;
+
+  /**
+   * the most recently used entries, by cache key.
+   */
+
+  private final Cache<String, CacheKey> memory;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * the builds in progress, by cache key.
+   */
+
+  private final ConcurrentMap<String, CompletableFuture<Layer>> building = new ConcurrentHashMap<>();
+
+  /**
+   * builds a layer which isn't in the cache.
+   */
+
+  @FunctionalInterface
+  public interface LayerBuild {
+
+    Layer build() throws IOException;
+
+  }
+
+  /**
+   * how often layers have been found in the cache, so it's possible to tell whether they're being reused.
+   */
+
+  public static class Stats {
+
+    public long hits;
+    public long misses;
+    public long evictions;
+    public long entries;
+
+    @Override
+    public String toString() {
+      return String.format("hits=%d, misses=%d, evictions=%d, entries=%d", this.hits, this.misses, this.evictions, this.entries);
+    }
+
+  }
 
   public JpxCache(Path base) {
-    if (!Files.exists(base)) {
-      try {
-        Files.createDirectories(base);
-      }
-      catch (IOException e) {
-        // TODO Auto-generated catch block
-        throw new RuntimeException(e);
-      }
+    this(base, DEFAULT_MEMORY_ENTRIES, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_AGE);
+  }
+
+  /**
+   * @param memoryEntries
+   *          how many entries to keep in memory.
+   * @param maxEntries
+   *          how many entries to keep at all.
+   * @param maxAge
+   *          how long an entry is kept without being used.
+   */
+
+  public JpxCache(Path base, long memoryEntries, long maxEntries, Duration maxAge) {
+    this(base, memoryEntries, maxEntries, maxAge, Clock.systemUTC());
+  }
+
+  JpxCache(Path base, long memoryEntries, long maxEntries, Duration maxAge, Clock clock) {
+    try {
+      Files.createDirectories(base);
+      this.store = new JpxCacheLog(base, maxEntries, maxAge, clock);
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
     }
-    this.base = base;
+    this.maxAge = maxAge;
+    this.clock = clock;
+    this.fragments = new JpxFragments(base.resolve("fragments"));
+    this.churn = new JpxChurn(base.resolve("history"));
+    this.memory = CacheBuilder.newBuilder().maximumSize(memoryEntries).build();
+  }
+
+  /**
+   * the precompressed JARs, which are kept alongside the layers.
+   */
+
+  public JpxFragments fragments() {
+    return this.fragments;
+  }
+
+  /**
+   * how often the JARs of each repository have changed.
+   */
+
+  public JpxChurn churn() {
+    return this.churn;
   }
 
-  private static Hasher cacheKey(List<Pair<BlobInfo, String>> keys, Optional<Layer> parentLayer) {
-    return cacheKey(hash(keys), parentLayer);
+  private static Hasher cacheKey(
+      List<Pair<BlobInfo, String>> keys,
+      Optional<Layer> parentLayer,
+      JpxCompression compression,
+      int level) {
+    return cacheKey(hash(keys), parentLayer, compression, level);
   }
 
   public static final HashCode hash(List<Pair<BlobInfo, String>> blobs) {
@@ -55,13 +178,19 @@ public class JpxCache {
     return hasher.hash();
   }
 
-  private static Hasher cacheKey(HashCode keys, Optional<Layer> parentLayer) {
+  private static Hasher cacheKey(HashCode keys, Optional<Layer> parentLayer, JpxCompression compression, int level) {
     Hasher hasher = Hashing.sha256().newHasher();
     hasher.putBytes(keys.asBytes());
     parentLayer.ifPresent(parent -> {
       hasher.putInt(0);
       hasher.putBytes(parent.compressedHash().asBytes());
     });
+    // gzip layers at the default level keep the keys they had before there was a choice.
+    if (compression != JpxCompression.GZIP || level != compression.defaultLevel()) {
+      hasher.putInt(1);
+      hasher.putBytes(compression.id().getBytes(UTF_8));
+      hasher.putInt(level);
+    }
     return hasher;
   }
 
@@ -75,9 +204,92 @@ public class JpxCache {
    */
 
   public Layer inCache(List<Pair<BlobInfo, String>> blobs, Optional<Layer> parentLayer) {
-    Hasher hasher = cacheKey(blobs, parentLayer);
+    return inCache(blobs, parentLayer, JpxCompression.GZIP, JpxCompression.GZIP.defaultLevel());
+  }
+
+  public Layer inCache(List<Pair<BlobInfo, String>> blobs, Optional<Layer> parentLayer, JpxCompression compression, int level) {
+    Hasher hasher = cacheKey(blobs, parentLayer, compression, level);
     String key = hasher.hash().toString();
-    return get(key, blobs, parentLayer);
+    return count(get(key, blobs, parentLayer));
+  }
+
+  /**
+   * the cached layer, or the one made by the given build (which is then added) if there isn't one. if the same layer
+   * is already being built, waits for that instead.
+   */
+
+  public Layer get(
+      List<Pair<BlobInfo, String>> blobs,
+      Optional<Layer> parentLayer,
+      JpxCompression compression,
+      int level,
+      LayerBuild build) throws IOException {
+
+    String key = cacheKey(blobs, parentLayer, compression, level).hash().toString();
+
+    Layer cached = count(get(key, blobs, parentLayer));
+
+    if (cached != null) {
+      return cached;
+    }
+
+    CompletableFuture<Layer> mine = new CompletableFuture<>();
+
+    CompletableFuture<Layer> running = this.building.putIfAbsent(key, mine);
+
+    if (running != null) {
+      log.info("waiting for build of {}", key);
+      return await(running);
+    }
+
+    try {
+
+      // may have been added between the lookup and getting here.
+      Layer layer = get(key, blobs, parentLayer);
+
+      if (layer == null) {
+        layer = add(build.build());
+      }
+
+      mine.complete(layer);
+
+      return layer;
+
+    }
+    catch (IOException | RuntimeException | Error ex) {
+      mine.completeExceptionally(ex);
+      throw ex;
+    }
+    finally {
+      this.building.remove(key, mine);
+    }
+
+  }
+
+  private Layer count(Layer layer) {
+    if (layer != null) {
+      this.hits.incrementAndGet();
+    }
+    else {
+      this.misses.incrementAndGet();
+    }
+    return layer;
+  }
+
+  private static Layer await(CompletableFuture<Layer> build) throws IOException {
+    try {
+      return build.get();
+    }
+    catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+    catch (ExecutionException ex) {
+      if (ex.getCause() instanceof IOException) {
+        throw new IOException(ex.getCause());
+      }
+      throw new RuntimeException(ex.getCause());
+    }
   }
 
   public Layer inCache(List<Pair<BlobInfo, String>> blobs, Layer parentLayer) {
@@ -97,13 +309,18 @@ public class JpxCache {
    * @return
    */
 
-  @SuppressWarnings("null")
   private Layer get(String key, List<Pair<BlobInfo, String>> blobs, Optional<Layer> parentLayer) {
     try {
-      log.info("cache key is {}", key);
-      Path path = base.resolve(key);
-      if (Files.exists(path)) {
-        return mapper.readValue(path.toFile(), CacheKey.class).asLayer(parentLayer);
+      log.debug("cache key is {}", key);
+      CacheKey entry = this.memory.getIfPresent(key);
+      if (entry != null) {
+        this.store.touch(key);
+        return entry.asLayer(parentLayer);
+      }
+      entry = this.store.get(key);
+      if (entry != null) {
+        this.memory.put(key, entry);
+        return entry.asLayer(parentLayer);
       }
     }
     catch (Exception e) {
@@ -113,6 +330,30 @@ public class JpxCache {
     return null;
   }
 
+  /**
+   * evicts old entries and fragments, and rewrites the index so it doesn't need to be rebuilt from the log on startup.
+   */
+
+  public void compact() throws IOException {
+    List<String> evicted = this.store.compact();
+    this.memory.invalidateAll(evicted);
+    this.evictions.addAndGet(evicted.size());
+    this.fragments.evict(this.clock.instant().minus(this.maxAge));
+  }
+
+  public Stats stats() {
+    Stats stats = new Stats();
+    stats.hits = this.hits.get();
+    stats.misses = this.misses.get();
+    stats.evictions = this.evictions.get();
+    stats.entries = this.store.size();
+    return stats;
+  }
+
+  public void close() throws IOException {
+    this.store.close();
+  }
+
   /**
    * 
    * @author theo
@@ -125,11 +366,15 @@ public class JpxCache {
     public String compressedHash;
     public String blobsHash;
     public long blobsSize;
+    public String compression;
+    public Integer level;
 
     public CacheKey() {
     }
 
     public CacheKey(Layer layer) {
+      this.compression = layer.compression().id();
+      this.level = layer.level();
       this.blobsSize = layer.size();
       this.blobsHash = layer.blobHash().toString();
       this.compressedHash = layer.compressedHash().toString();
@@ -137,18 +382,20 @@ public class JpxCache {
     }
 
     public Layer asLayer(Optional<Layer> parentLayer) {
+      // entries written before there was a choice are gzip at the default level.
+      JpxCompression compression = (this.compression == null) ? JpxCompression.GZIP : JpxCompression.fromId(this.compression);
       return new Layer(
           this.blobsSize,
           HashCode.fromString(this.blobsHash),
           HashCode.fromString(this.compressedHash),
           HashCode.fromString(this.uncompressedHash),
-          parentLayer);
+          parentLayer,
+          compression,
+          (this.level == null) ? compression.defaultLevel() : this.level);
     }
 
   }
 
-  private static final ObjectMapper mapper = new ObjectMapper();
-
   /**
    * add this layer to the cache.
    * 
@@ -163,15 +410,16 @@ public class JpxCache {
   public Layer add(Layer layer) {
     try {
 
-      Hasher hasher = cacheKey(layer.blobHash(), layer.parent());
+      Hasher hasher = cacheKey(layer.blobHash(), layer.parent(), layer.compression(), layer.level());
 
       String key = hasher.hash().toString();
 
       log.info("adding cache key {}", key);
 
-      if (!Files.exists(base.resolve(key))) {
-        mapper.writeValue(base.resolve(key).toFile(), new CacheKey(layer));
-      }
+      CacheKey entry = new CacheKey(layer);
+
+      this.store.add(key, entry);
+      this.memory.put(key, entry);
 
     }
     catch (IOException e) {
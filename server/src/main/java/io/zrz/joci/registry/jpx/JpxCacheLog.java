@@ -0,0 +1,509 @@
+package io.zrz.joci.registry.jpx;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.HashCode;
+
+import io.zrz.joci.registry.jpx.JpxCache.CacheKey;
+
+/**
+ * the on disk part of {@link JpxCache}: every entry is a line of JSON appended to a single log, and an index gives
+ * where each one is, and when it was last used.
+ *
+ * the index is only rewritten by {@link #compact()}, along with the log length it covers. on open it is loaded, and
+ * anything appended to the log since is read from the end of it. compacting also evicts the entries which haven't been
+ * used for the longest, by age and count, and rewrites the log without them; the index is removed before the new log
+ * replaces the old, so one never describes the other. if the log still doesn't read as the index says, it's all read
+ * again without it.
+ *
+ * <pre>
+ * layers.log   {"key":"abcd...","entry":{...}}\n ...
+ * layers.idx   version, log length, count, then (key, offset, length, last used) for each
+ * </pre>
+ *
+ * @author theo
+ *
+ */
+
+class JpxCacheLog implements Closeable {
+
+  private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(JpxCacheLog.class);
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private static final int VERSION = 1;
+
+  private static final Pattern KEY = Pattern.compile("[0-9a-f]{64}");
+
+  static final String LOG = "layers.log";
+  static final String INDEX = "layers.idx";
+
+  /**
+   * where an entry is in the log.
+   */
+
+  private static class Location {
+
+    final long offset;
+    final int length;
+    volatile long used;
+
+    Location(long offset, int length, long used) {
+      this.offset = offset;
+      this.length = length;
+      this.used = used;
+    }
+
+  }
+
+  /**
+   * a line in the log.
+   */
+
+  public static class Record {
+
+    public String key;
+    public CacheKey entry;
+
+    public Record() {
+    }
+
+    Record(String key, CacheKey entry) {
+      this.key = key;
+      this.entry = entry;
+    }
+
+  }
+
+  private final Path base;
+  private final long maxEntries;
+  private final Duration maxAge;
+  private final Clock clock;
+
+  private final Map<String, Location> index = new ConcurrentHashMap<>();
+
+  /**
+   * appends and compaction (which replaces the log) hold the write lock, reads the read one.
+   */
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private FileChannel channel;
+
+  JpxCacheLog(Path base, long maxEntries, Duration maxAge, Clock clock) throws IOException {
+    this.base = base;
+    this.maxEntries = maxEntries;
+    this.maxAge = maxAge;
+    this.clock = clock;
+    this.channel = FileChannel.open(base.resolve(LOG), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    long indexed = this.loadIndex();
+    if (!this.replay(indexed)) {
+      log.warn("JPX cache index doesn't match the log, reading all of it");
+      this.replay(0);
+    }
+    this.importFiles();
+  }
+
+  public int size() {
+    return this.index.size();
+  }
+
+  /**
+   * the entry, or null if there isn't one. counts as a use.
+   */
+
+  public CacheKey get(String key) throws IOException {
+    this.lock.readLock().lock();
+    try {
+      Location location = this.index.get(key);
+      if (location == null) {
+        return null;
+      }
+      Record record = this.read(location);
+      if (record == null || !key.equals(record.key)) {
+        // the index is wrong about where it is, so it's as good as not there.
+        log.warn("JPX cache entry {} isn't where the index says, dropping it", key);
+        this.index.remove(key, location);
+        return null;
+      }
+      location.used = this.clock.millis();
+      return record.entry;
+    }
+    finally {
+      this.lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * marks the entry as used, without reading it.
+   */
+
+  public void touch(String key) {
+    Location location = this.index.get(key);
+    if (location != null) {
+      location.used = this.clock.millis();
+    }
+  }
+
+  /**
+   * appends the entry, unless there already is one.
+   */
+
+  public void add(String key, CacheKey entry) throws IOException {
+    this.lock.writeLock().lock();
+    try {
+      if (this.index.containsKey(key)) {
+        return;
+      }
+      byte[] line = this.line(new Record(key, entry));
+      long offset = this.channel.size();
+      this.write(this.channel, ByteBuffer.wrap(line), offset);
+      this.index.put(key, new Location(offset, line.length, this.clock.millis()));
+    }
+    finally {
+      this.lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * evicts entries not used within the max age, then the least recently used beyond the max count, rewrites the log
+   * if anything was removed, and writes out the index.
+   *
+   * @return the keys which were evicted.
+   */
+
+  public List<String> compact() throws IOException {
+
+    this.lock.writeLock().lock();
+
+    try {
+
+      long oldest = this.clock.millis() - this.maxAge.toMillis();
+
+      List<Map.Entry<String, Location>> live = new ArrayList<>(this.index.entrySet());
+
+      live.sort(Comparator.comparingLong((Map.Entry<String, Location> e) -> e.getValue().used).reversed());
+
+      List<String> evicted = new ArrayList<>();
+
+      for (int i = 0; i < live.size(); ++i) {
+        if (i >= this.maxEntries || live.get(i).getValue().used < oldest) {
+          evicted.add(live.get(i).getKey());
+        }
+      }
+
+      live = live.subList(0, live.size() - evicted.size());
+
+      long used = live.stream().mapToLong(e -> e.getValue().length).sum();
+
+      // nothing is ever replaced, so the log only has dead space once something has been evicted.
+      if (used < this.channel.size()) {
+        this.rewrite(live);
+      }
+
+      this.writeIndex();
+
+      if (!evicted.isEmpty()) {
+        log.info("evicted {} JPX cache entries, {} left", evicted.size(), this.index.size());
+      }
+
+      return evicted;
+
+    }
+    finally {
+      this.lock.writeLock().unlock();
+    }
+
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.lock.writeLock().lock();
+    try {
+      this.channel.close();
+    }
+    finally {
+      this.lock.writeLock().unlock();
+    }
+  }
+
+  private byte[] line(Record record) throws IOException {
+    byte[] json = mapper.writeValueAsBytes(record);
+    byte[] line = new byte[json.length + 1];
+    System.arraycopy(json, 0, line, 0, json.length);
+    line[json.length] = '\n';
+    return line;
+  }
+
+  /**
+   * the record at the location, an empty one if the log ends before it, or null if what's there isn't one.
+   */
+
+  private Record read(Location location) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(location.length);
+    while (buffer.hasRemaining()) {
+      if (this.channel.read(buffer, location.offset + buffer.position()) < 0) {
+        return new Record();
+      }
+    }
+    return parse(buffer.array(), location.length);
+  }
+
+  /**
+   * the line as a record, or null if it isn't one.
+   */
+
+  private static Record parse(byte[] line, int length) {
+    try {
+      Record record = mapper.readValue(line, 0, length, Record.class);
+      return record.key == null ? null : record;
+    }
+    catch (IOException ex) {
+      return null;
+    }
+  }
+
+  private void write(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer, offset + buffer.position());
+    }
+  }
+
+  /**
+   * copies the live entries into a new log, which replaces the old one.
+   */
+
+  private void rewrite(List<Map.Entry<String, Location>> live) throws IOException {
+
+    Path temp = Files.createTempFile(this.base, ".", ".tmp");
+
+    try {
+
+      Map<String, Location> moved = new ConcurrentHashMap<>();
+
+      try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+        long offset = 0;
+        for (Map.Entry<String, Location> e : live) {
+          Location from = e.getValue();
+          ByteBuffer buffer = ByteBuffer.allocate(from.length);
+          while (buffer.hasRemaining()) {
+            if (this.channel.read(buffer, from.offset + buffer.position()) < 0) {
+              throw new IOException("JPX cache log truncated");
+            }
+          }
+          buffer.flip();
+          this.write(out, buffer, offset);
+          moved.put(e.getKey(), new Location(offset, from.length, from.used));
+          offset += from.length;
+        }
+        out.force(true);
+      }
+
+      // the index has the old offsets, and must not be found alongside the new log if we don't get to write another.
+      Files.deleteIfExists(this.base.resolve(INDEX));
+
+      Files.move(temp, this.base.resolve(LOG), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+      this.channel.close();
+      this.channel = FileChannel.open(this.base.resolve(LOG), StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+      this.index.clear();
+      this.index.putAll(moved);
+
+    }
+    finally {
+      Files.deleteIfExists(temp);
+    }
+
+  }
+
+  private void writeIndex() throws IOException {
+
+    Path temp = Files.createTempFile(this.base, ".", ".tmp");
+
+    try {
+
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+        out.writeInt(VERSION);
+        out.writeLong(this.channel.size());
+        out.writeInt(this.index.size());
+        for (Map.Entry<String, Location> e : this.index.entrySet()) {
+          out.write(HashCode.fromString(e.getKey()).asBytes());
+          out.writeLong(e.getValue().offset);
+          out.writeInt(e.getValue().length);
+          out.writeLong(e.getValue().used);
+        }
+      }
+
+      Files.move(temp, this.base.resolve(INDEX), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+    }
+    finally {
+      Files.deleteIfExists(temp);
+    }
+
+  }
+
+  /**
+   * loads the index, returning the length of the log it covers. an index which doesn't match the log is ignored, and
+   * the whole log is read instead.
+   */
+
+  private long loadIndex() throws IOException {
+
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(this.base.resolve(INDEX))))) {
+
+      if (in.readInt() != VERSION) {
+        return 0;
+      }
+
+      long length = in.readLong();
+
+      if (length > this.channel.size()) {
+        log.warn("JPX cache index is ahead of the log, ignoring it");
+        return 0;
+      }
+
+      int count = in.readInt();
+
+      byte[] key = new byte[32];
+
+      String last = null;
+
+      for (int i = 0; i < count; ++i) {
+        in.readFully(key);
+        String name = HashCode.fromBytes(key).toString();
+        Location location = new Location(in.readLong(), in.readInt(), in.readLong());
+        this.index.put(name, location);
+        if (last == null || location.offset > this.index.get(last).offset) {
+          last = name;
+        }
+      }
+
+      // an index from before the log was last rewritten won't find its entries where it says.
+      if (last != null) {
+        Record record = this.read(this.index.get(last));
+        if (record == null || !last.equals(record.key)) {
+          log.warn("JPX cache index is from another log, ignoring it");
+          return 0;
+        }
+      }
+
+      return length;
+
+    }
+    catch (NoSuchFileException ex) {
+      return 0;
+    }
+
+  }
+
+  /**
+   * indexes the entries appended to the log after the given offset. when reading from an index, a line which isn't an
+   * entry means the index doesn't match the log, and false is returned. when reading all of it, those lines are
+   * skipped, and left for compacting to remove.
+   */
+
+  private boolean replay(long from) throws IOException {
+
+    if (from == 0) {
+      this.index.clear();
+    }
+
+    long now = this.clock.millis();
+    long offset = from;
+
+    this.channel.position(from);
+
+    InputStream in = new BufferedInputStream(Channels.newInputStream(this.channel));
+
+    byte[] buffer = new byte[4096];
+    int length = 0;
+
+    for (int b = in.read(); b != -1; b = in.read()) {
+
+      if (length == buffer.length) {
+        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+      }
+
+      buffer[length++] = (byte) b;
+
+      if (b == '\n') {
+        Record record = parse(buffer, length);
+        if (record != null) {
+          this.index.putIfAbsent(record.key, new Location(offset, length, now));
+        }
+        else if (from > 0) {
+          return false;
+        }
+        else {
+          log.warn("skipping unreadable JPX cache entry at {}", offset);
+        }
+        offset += length;
+        length = 0;
+      }
+
+    }
+
+    if (length > 0) {
+      // a partial append from a crash, which is dropped.
+      log.warn("truncating partial JPX cache entry at {}", offset);
+      this.channel.truncate(offset);
+    }
+
+    return true;
+
+  }
+
+  /**
+   * moves entries from when each was a file of its own into the log.
+   */
+
+  private void importFiles() throws IOException {
+
+    int imported = 0;
+
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(this.base, p -> KEY.matcher(p.getFileName().toString()).matches())) {
+      for (Path file : files) {
+        if (Files.isRegularFile(file)) {
+          this.add(file.getFileName().toString(), mapper.readValue(file.toFile(), CacheKey.class));
+          Files.delete(file);
+          imported++;
+        }
+      }
+    }
+
+    if (imported > 0) {
+      log.info("imported {} JPX cache entries into the log", imported);
+    }
+
+  }
+
+}
@@ -0,0 +1,208 @@
+package io.zrz.joci.registry.jpx;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+
+import io.zrz.joci.spi.RegistryProvider;
+import io.zrz.joci.spi.RegistryProvider.BlobInfo;
+
+/**
+ * dumps an AppCDS archive for the stable JARs of a JPX image, which is shipped as a layer of its own so the JVM doesn't
+ * have to load and verify those classes from scratch each time a container starts.
+ *
+ * an archive is only used by exactly the JVM which dumped it, so the JDK given here must be the same build as the one
+ * in the base image. if it isn't, the JVM ignores the archive and starts as it would have without it.
+ *
+ * the classes to archive are either a class list from a training run (-XX:DumpLoadedClassList) pushed as a blob, or
+ * every class in the JARs along with the JDK's own default list. the JARs are dumped at the paths they have in the
+ * image, relative to /, with the modified time they have there.
+ *
+ * @author theo
+ *
+ */
+
+public class JpxCds {
+
+  private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(JpxCds.class);
+
+  /**
+   * where the archive is in the image.
+   */
+
+  public static final String ARCHIVE = "app.jsa";
+
+  public static final Duration DEFAULT_TIMEOUT = Duration.ofMinutes(10);
+
+  private final Path java;
+  private final Duration timeout;
+  private volatile String version;
+
+  /**
+   * @param java
+   *          the java binary of a JDK which matches the base image.
+   */
+
+  public JpxCds(Path java) {
+    this(java, DEFAULT_TIMEOUT);
+  }
+
+  public JpxCds(Path java, Duration timeout) {
+    this.java = java;
+    this.timeout = timeout;
+  }
+
+  /**
+   * the version the JDK gives, which archives are only good for.
+   */
+
+  public String version() throws IOException {
+    if (this.version == null) {
+      Path out = Files.createTempFile("joci-cds", ".txt");
+      try {
+        JpxProcesses.run(out.getParent(), out, this.timeout, this.java.toString(), "-version");
+        this.version = new String(Files.readAllBytes(out), UTF_8).trim();
+      }
+      finally {
+        Files.deleteIfExists(out);
+      }
+    }
+    return this.version;
+  }
+
+  /**
+   * a blob with the version of the JDK, for the cache key of the archive so it changes along with the JDK.
+   */
+
+  public Pair<BlobInfo, String> key(RegistryProvider registry) throws IOException {
+    return Pair.of(registry.putBlob(version()), "cds/java.version");
+  }
+
+  /**
+   * dumps the archive for the JARs, in classpath order, which must be deleted once done with.
+   *
+   * @param classList
+   *          the classes to archive, or null for all of them.
+   */
+
+  public Path dump(List<Pair<BlobInfo, String>> jars, BlobInfo classList) throws IOException {
+
+    Path dir = Files.createTempDirectory("joci-cds");
+
+    try {
+
+      List<String> classpath = new ArrayList<>();
+
+      for (Pair<BlobInfo, String> jar : jars) {
+        Path path = dir.resolve("joci").resolve(jar.getValue());
+        Files.createDirectories(path.getParent());
+        try (InputStream in = jar.getKey().openStream()) {
+          Files.copy(in, path);
+        }
+        // as it is in the layer, which the JVM checks.
+        Files.setLastModifiedTime(path, FileTime.fromMillis(0));
+        classpath.add(relative(jar.getValue()));
+      }
+
+      Path list = dir.resolve("classlist");
+
+      if (classList != null) {
+        try (InputStream in = classList.openStream()) {
+          Files.copy(in, list);
+        }
+      }
+      else {
+        Files.write(list, classes(jars), UTF_8);
+      }
+
+      Path archive = Files.createTempFile("joci-cds", ".jsa");
+
+      try {
+
+        long started = System.nanoTime();
+
+        JpxProcesses.run(dir, dir.resolve("dump.log"), this.timeout,
+            this.java.toString(),
+            "-Xshare:dump",
+            "-XX:SharedClassListFile=" + list,
+            "-XX:SharedArchiveFile=" + archive,
+            "-cp",
+            String.join(":", classpath));
+
+        log.info("dumped {} byte CDS archive for {} JARs in {}ms",
+            Files.size(archive),
+            jars.size(),
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+
+        return archive;
+
+      }
+      catch (IOException | RuntimeException ex) {
+        // it's outside the directory, so isn't deleted along with it.
+        Files.deleteIfExists(archive);
+        throw ex;
+      }
+
+    }
+    finally {
+      MoreFiles.deleteRecursively(dir, RecursiveDeleteOption.ALLOW_INSECURE);
+    }
+
+  }
+
+  /**
+   * every class in the JARs, after the JDK's own default list which would otherwise be lost as there's only one
+   * archive.
+   */
+
+  private Set<String> classes(List<Pair<BlobInfo, String>> jars) throws IOException {
+
+    Set<String> classes = new LinkedHashSet<>();
+
+    Path jdk = this.java.toAbsolutePath().getParent().getParent().resolve("lib").resolve("classlist");
+
+    if (Files.exists(jdk)) {
+      classes.addAll(Files.readAllLines(jdk, UTF_8));
+    }
+
+    for (Pair<BlobInfo, String> jar : jars) {
+      try (ZipInputStream zip = new ZipInputStream(jar.getKey().openStream())) {
+        for (ZipEntry e = zip.getNextEntry(); e != null; e = zip.getNextEntry()) {
+          String name = e.getName();
+          if (name.endsWith(".class") && !name.startsWith("META-INF/") && !name.endsWith("module-info.class")) {
+            classes.add(name.substring(0, name.length() - ".class".length()));
+          }
+        }
+      }
+    }
+
+    return classes;
+
+  }
+
+  /**
+   * the path of a JAR in the image relative to /, as it is on the classpath of the archive.
+   */
+
+  public static String relative(String name) {
+    return "joci/" + name;
+  }
+
+}
@@ -0,0 +1,195 @@
+package io.zrz.joci.registry.jpx;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.Hashing;
+
+/**
+ * how often each JAR on a repository's classpath has changed over its recent JPX pushes, so ones which are bumped
+ * often (e.g, internal libraries) can be kept out of the big stable layer even though they're releases.
+ *
+ * JARs are tracked by an id which doesn't include the version (e.g, their Maven group and name). a push is only
+ * counted when something on the classpath changed since the last one, so pushing the same thing again doesn't age out
+ * the history. each repository has a small JSON file, replaced with a rename.
+ *
+ * @author theo
+ *
+ */
+
+public class JpxChurn {
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  /**
+   * how many of the most recent pushes are looked at.
+   */
+
+  public static final int WINDOW = 20;
+
+  /**
+   * how many of them a JAR has to have changed in to be frequently changing.
+   */
+
+  public static final int FREQUENT = 3;
+
+  public enum Tier {
+
+    /**
+     * changed in at least {@link JpxChurn#FREQUENT} of the recent pushes.
+     */
+
+    FREQUENT,
+
+    /**
+     * changed at least once in the recent pushes.
+     */
+
+    OCCASIONAL,
+
+    /**
+     * hasn't changed recently, or we've not seen it before.
+     */
+
+    RARE
+
+  }
+
+  /**
+   * what's recorded for each repository.
+   */
+
+  public static class History {
+
+    public int pushes;
+    public Map<String, Entry> entries = new TreeMap<>();
+
+  }
+
+  public static class Entry {
+
+    public String integrity;
+
+    /**
+     * the pushes it changed in, within the window.
+     */
+
+    public List<Integer> changed = new ArrayList<>();
+
+  }
+
+  private final Path base;
+
+  public JpxChurn(Path base) {
+    this.base = base;
+  }
+
+  private Path path(String repository) {
+    String key = Hashing.sha256().hashString(repository, UTF_8).toString();
+    return this.base.resolve(key.substring(0, 2)).resolve(key);
+  }
+
+  private History load(String repository) throws IOException {
+    try {
+      return mapper.readValue(Files.readAllBytes(path(repository)), History.class);
+    }
+    catch (NoSuchFileException ex) {
+      return new History();
+    }
+  }
+
+  /**
+   * the tier of each of the given JARs, from the pushes before this one.
+   */
+
+  public synchronized Map<String, Tier> tiers(String repository, Iterable<String> ids) throws IOException {
+
+    History history = load(repository);
+
+    Map<String, Tier> tiers = new HashMap<>();
+
+    for (String id : ids) {
+
+      Entry entry = history.entries.get(id);
+
+      long recent = (entry == null)
+          ? 0
+          : entry.changed.stream().filter(push -> push > history.pushes - WINDOW).count();
+
+      tiers.put(id, (recent >= FREQUENT) ? Tier.FREQUENT : (recent > 0) ? Tier.OCCASIONAL : Tier.RARE);
+
+    }
+
+    return tiers;
+
+  }
+
+  /**
+   * records a push of the given JARs, by id, with their integrity.
+   */
+
+  public synchronized void record(String repository, Map<String, String> classpath) throws IOException {
+
+    History history = load(repository);
+
+    int push = history.pushes + 1;
+
+    boolean changed = history.entries.size() != classpath.size();
+
+    Map<String, Entry> entries = new TreeMap<>();
+
+    for (Map.Entry<String, String> e : classpath.entrySet()) {
+
+      Entry entry = history.entries.getOrDefault(e.getKey(), new Entry());
+
+      if (entry.integrity == null) {
+        changed = true;
+      }
+      else if (!entry.integrity.equals(e.getValue())) {
+        entry.changed.add(push);
+        changed = true;
+      }
+
+      entry.integrity = e.getValue();
+      entry.changed.removeIf(p -> p <= push - WINDOW);
+
+      entries.put(e.getKey(), entry);
+
+    }
+
+    if (!changed) {
+      return;
+    }
+
+    // JARs which aren't on the classpath any more are dropped.
+    history.pushes = push;
+    history.entries = entries;
+
+    Path path = path(repository);
+
+    Files.createDirectories(path.getParent());
+
+    Path temp = Files.createTempFile(path.getParent(), ".", ".tmp");
+
+    try {
+      mapper.writeValue(temp.toFile(), history);
+      Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+    finally {
+      Files.deleteIfExists(temp);
+    }
+
+  }
+
+}
@@ -0,0 +1,174 @@
+package io.zrz.joci.registry.jpx;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import io.zrz.joci.jpx.JpxCompression;
+import io.zrz.joci.jpx.JpxLayerBuilder;
+import io.zrz.joci.spi.RegistryProvider.BlobInfo;
+
+/**
+ * the precompressed tar entry (a gzip member) of each JAR we've put in a layer, so a layer can be assembled by copying
+ * them rather than compressing every JAR again.
+ *
+ * fragments are keyed by the JAR digest, the name it has in the layer and the gzip level (unless it's the default),
+ * which together give the exact bytes. they are written to a temp file and renamed into place, so a reader never sees a
+ * partial one.
+ *
+ * a fragment's modification time is when it was last used (to within {@link #TOUCH_INTERVAL}), and
+ * {@link #evict(Instant)} removes those which haven't been used since. {@link JpxCache} does this when it compacts, with
+ * the same max age as its entries, so fragments go around when the layers made from them do.
+ *
+ * @author theo
+ *
+ */
+
+public class JpxFragments {
+
+  private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(JpxFragments.class);
+
+  /**
+   * bumped whenever the fragment format (or its compression) changes, so old ones aren't used.
+   */
+
+  private static final int VERSION = 1;
+
+  /**
+   * how stale the modification time of a fragment can get before using it updates it, so most uses don't write.
+   */
+
+  static final Duration TOUCH_INTERVAL = Duration.ofHours(1);
+
+  private final Path base;
+  private final ForkJoinPool pool;
+
+  public JpxFragments(Path base) {
+    this(base, ForkJoinPool.commonPool());
+  }
+
+  public JpxFragments(Path base, ForkJoinPool pool) {
+    this.base = base;
+    this.pool = pool;
+  }
+
+  private Path path(BlobInfo blob, String name, int level) {
+    Hasher hasher = Hashing.sha256()
+        .newHasher()
+        .putInt(VERSION)
+        .putBytes(blob.digest().rawBytes())
+        .putInt(0)
+        .putBytes(name.getBytes(UTF_8));
+    // those at the default level keep the keys they had before there was a choice.
+    if (level != JpxCompression.GZIP.defaultLevel()) {
+      hasher.putInt(level);
+    }
+    String key = hasher.hash().toString();
+    return this.base.resolve(key.substring(0, 2)).resolve(key);
+  }
+
+  /**
+   * the fragment for the blob under the given name and gzip level, which is created if we don't already have it.
+   */
+
+  public Path get(BlobInfo blob, String name, int level) throws IOException {
+
+    Path path = path(blob, name, level);
+
+    if (Files.exists(path)) {
+      touch(path);
+      return path;
+    }
+
+    log.debug("creating fragment for {} ({})", name, blob.digest());
+
+    Files.createDirectories(path.getParent());
+
+    Path temp = Files.createTempFile(path.getParent(), ".", ".tmp");
+
+    try {
+
+      try (InputStream in = blob.openStream()) {
+        JpxLayerBuilder.fragment(name, blob.size(), in, Files.newOutputStream(temp), this.pool, level);
+      }
+
+      // the content is the same whoever wins, so just replace it.
+      Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+    }
+    finally {
+      Files.deleteIfExists(temp);
+    }
+
+    return path;
+
+  }
+
+  private static void touch(Path path) {
+    try {
+      Instant now = Instant.now();
+      if (Files.getLastModifiedTime(path).toInstant().isBefore(now.minus(TOUCH_INTERVAL))) {
+        Files.setLastModifiedTime(path, FileTime.from(now));
+      }
+    }
+    catch (IOException ex) {
+      // only means it may be evicted sooner.
+      log.debug("failed to touch fragment {}: {}", path, ex.toString());
+    }
+  }
+
+  /**
+   * removes the fragments (and any temp files left behind) which haven't been used since the given time.
+   *
+   * @return how many were removed.
+   */
+
+  public int evict(Instant before) throws IOException {
+
+    if (!Files.isDirectory(this.base)) {
+      return 0;
+    }
+
+    List<Path> old;
+
+    try (Stream<Path> files = Files.walk(this.base)) {
+      old = files
+          .filter(Files::isRegularFile)
+          .filter(file -> {
+            try {
+              return Files.getLastModifiedTime(file).toInstant().isBefore(before);
+            }
+            catch (IOException ex) {
+              return false;
+            }
+          })
+          .collect(Collectors.toList());
+    }
+
+    for (Path file : old) {
+      Files.deleteIfExists(file);
+    }
+
+    if (!old.isEmpty()) {
+      log.info("evicted {} JPX fragments", old.size());
+    }
+
+    return old.size();
+
+  }
+
+}
@@ -0,0 +1,266 @@
+package io.zrz.joci.registry.jpx;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import com.google.common.base.Preconditions;
+
+import io.zrz.joci.registry.jpx.JpxChurn.Tier;
+import io.zrz.joci.spi.RegistryProvider.BlobInfo;
+
+/**
+ * how the stable JARs of a JPX image are split into layers, so bumping one library doesn't mean rebuilding (and every
+ * node pulling) all of them.
+ *
+ * with more than one layer, the biggest Maven groups get a layer each, then JARs over a size are put together, then
+ * everything else. each layer only depends on the JARs in it, which are sorted, so the same JARs give the same layer
+ * whichever service they're in, and it's stored and pulled once.
+ *
+ * a single layer keeps the JARs in classpath order, as it always has, so existing layers are still reused.
+ *
+ * when tiered, JARs which have changed recently (see {@link JpxChurn}) are kept out of those layers: ones which
+ * change occasionally get a layer of their own after them, and ones which change frequently another.
+ *
+ * @author theo
+ *
+ */
+
+public class JpxLayering {
+
+  /**
+   * docker won't run an image with more than 127 layers. this leaves plenty for the base image and the changing layer.
+   */
+
+  public static final int MAX_STABLE_LAYERS = 100;
+
+  public static final long DEFAULT_BIG_JAR = 4 * 1024 * 1024;
+
+  public static final long DEFAULT_MIN_GROUP = 8 * 1024 * 1024;
+
+  public static final JpxLayering SINGLE = new JpxLayering(1);
+
+  /**
+   * a stable JAR, the Maven group it's from if known, and the id its churn is tracked by.
+   */
+
+  public static class Jar {
+
+    private final BlobInfo blob;
+    private final String name;
+    private final String group;
+    private final String id;
+
+    public Jar(BlobInfo blob, String name, String group) {
+      this(blob, name, group, name);
+    }
+
+    public Jar(BlobInfo blob, String name, String group, String id) {
+      this.blob = blob;
+      this.name = name;
+      this.group = group;
+      this.id = id;
+    }
+
+    public String id() {
+      return this.id;
+    }
+
+    Pair<BlobInfo, String> entry() {
+      return Pair.of(this.blob, this.name);
+    }
+
+  }
+
+  private final int layers;
+  private final long bigJar;
+  private final long minGroup;
+  private final boolean tiered;
+
+  public JpxLayering(int layers) {
+    this(layers, DEFAULT_BIG_JAR, DEFAULT_MIN_GROUP, false);
+  }
+
+  public JpxLayering(int layers, long bigJar, long minGroup) {
+    this(layers, bigJar, minGroup, false);
+  }
+
+  /**
+   * @param layers
+   *          the most layers to split the stable JARs into.
+   * @param bigJar
+   *          JARs at least this big which aren't in a group of their own are put together.
+   * @param minGroup
+   *          the total size of a Maven group's JARs before it can have a layer of its own.
+   * @param tiered
+   *          if JARs which have changed recently get layers of their own.
+   */
+
+  public JpxLayering(int layers, long bigJar, long minGroup, boolean tiered) {
+    Preconditions.checkArgument(layers >= 1 && layers <= MAX_STABLE_LAYERS,
+        "stable layers must be between 1 and %s, got %s", MAX_STABLE_LAYERS, layers);
+    this.layers = layers;
+    this.bigJar = bigJar;
+    this.minGroup = minGroup;
+    this.tiered = tiered;
+  }
+
+  public int layers() {
+    return this.layers;
+  }
+
+  /**
+   * the same policy, split into a different number of layers.
+   */
+
+  public JpxLayering withLayers(int layers) {
+    return new JpxLayering(layers, this.bigJar, this.minGroup, this.tiered);
+  }
+
+  public boolean tiered() {
+    return this.tiered;
+  }
+
+  /**
+   * if the layers have the JARs in classpath order, rather than sorted.
+   */
+
+  public boolean keepsOrder() {
+    return this.layers == 1 && !this.tiered;
+  }
+
+  /**
+   * splits the JARs, with those which have changed recently put in layers after the rest.
+   *
+   * @param tiers
+   *          the tier of each JAR by its id. those without one are rarely changing.
+   */
+
+  public List<List<Pair<BlobInfo, String>>> split(List<Jar> jars, Map<String, Tier> tiers) {
+
+    if (!this.tiered) {
+      return split(jars);
+    }
+
+    List<Jar> rare = new ArrayList<>();
+    List<Jar> occasional = new ArrayList<>();
+    List<Jar> frequent = new ArrayList<>();
+
+    for (Jar jar : jars) {
+      switch (tiers.getOrDefault(jar.id, Tier.RARE)) {
+        case FREQUENT:
+          frequent.add(jar);
+          break;
+        case OCCASIONAL:
+          occasional.add(jar);
+          break;
+        default:
+          rare.add(jar);
+          break;
+      }
+    }
+
+    List<List<Pair<BlobInfo, String>>> split = new ArrayList<>();
+
+    for (List<Pair<BlobInfo, String>> layer : split(rare)) {
+      if (!layer.isEmpty()) {
+        split.add(layer);
+      }
+    }
+
+    if (!occasional.isEmpty()) {
+      split.add(sorted(occasional));
+    }
+
+    if (!frequent.isEmpty()) {
+      split.add(sorted(frequent));
+    }
+
+    if (split.isEmpty()) {
+      split.add(Collections.emptyList());
+    }
+
+    return split;
+
+  }
+
+  /**
+   * the JARs in each layer, in the order they go in the image. there is always at least one, which may be empty.
+   */
+
+  public List<List<Pair<BlobInfo, String>>> split(List<Jar> jars) {
+
+    if (this.keepsOrder()) {
+      return Collections.singletonList(jars.stream().map(Jar::entry).collect(Collectors.toList()));
+    }
+
+    if (this.layers == 1) {
+      return Collections.singletonList(sorted(jars));
+    }
+
+    Map<String, Long> sizes = new TreeMap<>();
+
+    for (Jar jar : jars) {
+      if (jar.group != null && !jar.group.isEmpty()) {
+        sizes.merge(jar.group, jar.blob.size(), Long::sum);
+      }
+    }
+
+    // the biggest groups, keeping one layer back for big JARs and one for the rest.
+    List<String> own = sizes.entrySet()
+        .stream()
+        .filter(e -> e.getValue() >= this.minGroup)
+        .sorted(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()))
+        .limit(Math.max(0, this.layers - 2))
+        .map(Map.Entry::getKey)
+        .sorted()
+        .collect(Collectors.toList());
+
+    Map<String, List<Jar>> groups = new TreeMap<>();
+    List<Jar> big = new ArrayList<>();
+    List<Jar> rest = new ArrayList<>();
+
+    for (Jar jar : jars) {
+      if (jar.group != null && own.contains(jar.group)) {
+        groups.computeIfAbsent(jar.group, g -> new ArrayList<>()).add(jar);
+      }
+      else if (jar.blob.size() >= this.bigJar) {
+        big.add(jar);
+      }
+      else {
+        rest.add(jar);
+      }
+    }
+
+    List<List<Pair<BlobInfo, String>>> split = new ArrayList<>();
+
+    for (String group : own) {
+      split.add(sorted(groups.get(group)));
+    }
+
+    if (!big.isEmpty()) {
+      split.add(sorted(big));
+    }
+
+    if (!rest.isEmpty() || split.isEmpty()) {
+      split.add(sorted(rest));
+    }
+
+    return split;
+
+  }
+
+  private static List<Pair<BlobInfo, String>> sorted(List<Jar> jars) {
+    return jars.stream()
+        .sorted(Comparator.comparing((Jar jar) -> jar.name).thenComparing(jar -> jar.blob.digest().toString()))
+        .map(Jar::entry)
+        .collect(Collectors.toList());
+  }
+
+}
@@ -0,0 +1,62 @@
+package io.zrz.joci.registry.jpx;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * runs the JDK tools JPX builds use.
+ *
+ * @author theo
+ *
+ */
+
+final class JpxProcesses {
+
+  private JpxProcesses() {
+  }
+
+  /**
+   * runs the command in the given directory with its output (and errors) written to the given file, failing with the
+   * end of it if the command does.
+   */
+
+  static void run(Path dir, Path output, Duration timeout, String... command) throws IOException {
+
+    Process process = new ProcessBuilder(command)
+        .directory(dir.toFile())
+        .redirectErrorStream(true)
+        .redirectOutput(output.toFile())
+        .start();
+
+    try {
+
+      if (!process.waitFor(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+        process.destroyForcibly();
+        throw new IOException("timed out running " + command[0]);
+      }
+
+      if (process.exitValue() != 0) {
+        List<String> lines = Files.readAllLines(output, UTF_8);
+        throw new IOException(String.format("%s exited with %d: %s",
+            command[0],
+            process.exitValue(),
+            String.join("\n", lines.subList(Math.max(0, lines.size() - 10), lines.size()))));
+      }
+
+    }
+    catch (InterruptedException ex) {
+      process.destroyForcibly();
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+
+  }
+
+}
@@ -0,0 +1,283 @@
+package io.zrz.joci.registry.jpx;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+
+import io.zrz.joci.spi.RegistryProvider;
+import io.zrz.joci.spi.RegistryProvider.BlobInfo;
+
+/**
+ * links a Java runtime with just the modules an application's classpath uses, which goes in a layer of its own on a
+ * base image without a JRE (e.g, "debian:stretch-slim") instead of the full one.
+ *
+ * the modules each JAR uses are found with jdeps and kept by the JAR's digest, so only JARs we haven't seen before are
+ * looked at. the runtime is keyed by the module set and the JDK, so applications using the same modules share one.
+ *
+ * @author theo
+ *
+ */
+
+public class JpxRuntime {
+
+  private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(JpxRuntime.class);
+
+  /**
+   * where the runtime is in the image, under /joci.
+   */
+
+  public static final String PATH = "runtime";
+
+  public static final String HOME = "/joci/" + PATH;
+
+  public static final Duration DEFAULT_TIMEOUT = Duration.ofMinutes(10);
+
+  private static final String[] JLINK_OPTIONS = {
+      "--strip-debug",
+      "--no-header-files",
+      "--no-man-pages",
+      "--compress=2"
+  };
+
+  private final Path jdk;
+  private final String base;
+  private final Duration timeout;
+  private final Cache<String, Set<String>> modules = CacheBuilder.newBuilder().maximumSize(100_000).build();
+  private volatile Properties release;
+
+  /**
+   * @param jdk
+   *          the home of the JDK the runtime is linked from, which needs its jmods.
+   * @param base
+   *          the image runtimes are added to, unless the JPX manifest gives one. it's required, as the default image
+   *          already has a JRE.
+   */
+
+  public JpxRuntime(Path jdk, String base) {
+    this(jdk, base, DEFAULT_TIMEOUT);
+  }
+
+  public JpxRuntime(Path jdk, String base, Duration timeout) {
+    Preconditions.checkArgument(base != null, "a linked runtime needs a base image without a JRE");
+    this.jdk = jdk;
+    this.base = base;
+    this.timeout = timeout;
+  }
+
+  public String base() {
+    return this.base;
+  }
+
+  /**
+   * the JDK's release file, which the runtime has a copy of.
+   */
+
+  private Properties release() throws IOException {
+    if (this.release == null) {
+      Properties release = new Properties();
+      try (InputStream in = Files.newInputStream(this.jdk.resolve("release"))) {
+        release.load(in);
+      }
+      this.release = release;
+    }
+    return this.release;
+  }
+
+  /**
+   * the version of the runtime, e.g "11.0.21".
+   */
+
+  public String version() throws IOException {
+    return release().getProperty("JAVA_VERSION", "").replace("\"", "");
+  }
+
+  /**
+   * the platform modules used by the JARs, along with any given.
+   */
+
+  public SortedSet<String> modules(List<Pair<BlobInfo, String>> jars, Collection<String> extra) throws IOException {
+
+    SortedSet<String> result = new TreeSet<>(extra);
+
+    result.add("java.base");
+
+    List<BlobInfo> unknown = new ArrayList<>();
+
+    for (Pair<BlobInfo, String> jar : jars) {
+      Set<String> used = this.modules.getIfPresent(jar.getKey().digest().toString());
+      if (used == null) {
+        unknown.add(jar.getKey());
+      }
+      else {
+        result.addAll(used);
+      }
+    }
+
+    if (!unknown.isEmpty()) {
+      analyze(unknown).forEach((digest, used) -> {
+        this.modules.put(digest, used);
+        result.addAll(used);
+      });
+    }
+
+    return result;
+
+  }
+
+  /**
+   * runs jdeps over the JARs, which are named by their digest so its summary can be matched back to them.
+   */
+
+  private Map<String, Set<String>> analyze(List<BlobInfo> jars) throws IOException {
+
+    Path dir = Files.createTempDirectory("joci-jdeps");
+
+    try {
+
+      Map<String, BlobInfo> names = new HashMap<>();
+
+      List<String> command = new ArrayList<>();
+
+      command.add(this.jdk.resolve("bin").resolve("jdeps").toString());
+      command.add("-summary");
+      command.add("--multi-release");
+      command.add(feature());
+
+      for (BlobInfo jar : jars) {
+        String name = jar.digest().hash() + ".jar";
+        if (names.putIfAbsent(name, jar) != null) {
+          continue;
+        }
+        try (InputStream in = jar.openStream()) {
+          Files.copy(in, dir.resolve(name));
+        }
+        command.add(name);
+      }
+
+      long started = System.nanoTime();
+
+      Path output = dir.resolve("jdeps.txt");
+
+      JpxProcesses.run(dir, output, this.timeout, command.toArray(new String[0]));
+
+      Map<String, Set<String>> result = new HashMap<>();
+
+      names.values().forEach(jar -> result.put(jar.digest().toString(), new TreeSet<>()));
+
+      // e.g "abcd.jar -> java.sql", as well as other JARs and "not found".
+      for (String line : Files.readAllLines(output, UTF_8)) {
+
+        String[] parts = line.split(" -> ");
+
+        if (parts.length != 2 || !names.containsKey(parts[0].trim())) {
+          continue;
+        }
+
+        String module = parts[1].trim();
+
+        if (module.endsWith(".jar") || module.equals("not found")) {
+          continue;
+        }
+
+        result.get(names.get(parts[0].trim()).digest().toString()).add(module);
+
+      }
+
+      log.info("found the modules of {} JARs in {}ms", names.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+
+      return result;
+
+    }
+    finally {
+      MoreFiles.deleteRecursively(dir, RecursiveDeleteOption.ALLOW_INSECURE);
+    }
+
+  }
+
+  /**
+   * the release of the JDK, which multi-release JARs are looked at for.
+   */
+
+  private String feature() throws IOException {
+    String version = version();
+    int dot = version.indexOf('.');
+    return version.isEmpty() ? "base" : (dot == -1) ? version : version.substring(0, dot);
+  }
+
+  /**
+   * a blob describing the runtime for the given modules, which it's cached by.
+   */
+
+  public Pair<BlobInfo, String> key(RegistryProvider registry, Set<String> modules) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    sb.append(release().getProperty("IMPLEMENTOR", "")).append('\n');
+    sb.append(release().getProperty("JAVA_RUNTIME_VERSION", version())).append('\n');
+    sb.append(String.join(" ", JLINK_OPTIONS)).append('\n');
+    sb.append(String.join(",", modules)).append('\n');
+    return Pair.of(registry.putBlob(sb.toString()), "runtime/modules");
+  }
+
+  /**
+   * links the runtime into a new directory, which must be deleted once done with.
+   */
+
+  public Path link(Set<String> modules) throws IOException {
+
+    Path dir = Files.createTempDirectory("joci-jlink");
+
+    try {
+
+      List<String> command = new ArrayList<>();
+
+      command.add(this.jdk.resolve("bin").resolve("jlink").toString());
+      command.add("--add-modules");
+      command.add(String.join(",", modules));
+
+      for (String option : JLINK_OPTIONS) {
+        command.add(option);
+      }
+
+      command.add("--output");
+      command.add(PATH);
+
+      long started = System.nanoTime();
+
+      JpxProcesses.run(dir, dir.resolve("jlink.txt"), this.timeout, command.toArray(new String[0]));
+
+      Files.delete(dir.resolve("jlink.txt"));
+
+      log.info("linked runtime with {} in {}ms", modules, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+
+      return dir;
+
+    }
+    catch (IOException | RuntimeException ex) {
+      MoreFiles.deleteRecursively(dir, RecursiveDeleteOption.ALLOW_INSECURE);
+      throw ex;
+    }
+
+  }
+
+}
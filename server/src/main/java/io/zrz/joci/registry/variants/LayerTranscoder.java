@@ -0,0 +1,326 @@
+package io.zrz.joci.registry.variants;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingOutputStream;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.RateLimiter;
+
+import io.zrz.joci.core.Digest;
+import io.zrz.joci.jpx.JpxCompression;
+import io.zrz.joci.registry.variants.LayerVariants.Variant;
+import io.zrz.joci.spi.RegistryProvider;
+import io.zrz.joci.spi.RegistryProvider.BlobInfo;
+import io.zrz.joci.spi.RegistryUploadSession;
+
+/**
+ * converts gzip layers already in the registry into the other forms, in the background.
+ *
+ * there's a single low priority thread, which reads the layer no faster than the given rate and stops whenever there's
+ * foreground work (e.g, a blob transfer) going on, so it never competes with pulls. every missing variant is written in
+ * one pass over the layer, and only recorded once the uncompressed content has been checked against the diff_id.
+ *
+ * layers which can't be queued are dropped, and will be queued again the next time they're asked for.
+ *
+ * @author theo
+ *
+ */
+
+public class LayerTranscoder {
+
+  private static final Logger log = LoggerFactory.getLogger(LayerTranscoder.class);
+
+  /**
+   * how fast gzip layers are read, in bytes per second.
+   */
+
+  public static final long DEFAULT_RATE = 32 * 1024 * 1024;
+
+  private static final int QUEUE_SIZE = 1024;
+
+  private static final long IDLE_POLL_MILLIS = 100;
+
+  private final RegistryProvider registry;
+  private final LayerVariants variants;
+  private final Set<JpxCompression> targets;
+  private final int level;
+  private final RateLimiter limiter;
+  private final IntSupplier foreground;
+  private final ThreadPoolExecutor executor;
+
+  /**
+   * diff_ids which are queued or being transcoded.
+   */
+
+  private final Set<Digest> pending = ConcurrentHashMap.newKeySet();
+
+  /**
+   * @param targets
+   *          the forms to convert layers to.
+   * @param level
+   *          the zstd level.
+   * @param rate
+   *          the most bytes per second to read, or 0 for no limit.
+   * @param foreground
+   *          the number of foreground tasks in progress, which are waited for.
+   */
+
+  public LayerTranscoder(
+      final RegistryProvider registry,
+      final LayerVariants variants,
+      final Set<JpxCompression> targets,
+      final int level,
+      final long rate,
+      final IntSupplier foreground) {
+    Preconditions.checkArgument(!targets.contains(JpxCompression.GZIP), "layers are transcoded from gzip");
+    this.registry = registry;
+    this.variants = variants;
+    this.targets = targets.isEmpty() ? Collections.emptySet() : Collections.unmodifiableSet(EnumSet.copyOf(targets));
+    this.level = JpxCompression.ZSTD.checkLevel(level);
+    this.limiter = (rate > 0) ? RateLimiter.create(rate) : null;
+    this.foreground = foreground;
+    this.executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(QUEUE_SIZE), r -> {
+      final Thread thread = new Thread(r, "transcoder");
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    });
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  public Set<JpxCompression> targets() {
+    return this.targets;
+  }
+
+  public LayerVariants variants() {
+    return this.variants;
+  }
+
+  private Set<JpxCompression> missing(final Digest diffId) {
+    final Set<JpxCompression> missing = EnumSet.noneOf(JpxCompression.class);
+    final Map<JpxCompression, Variant> existing = this.variants.get(diffId);
+    for (final JpxCompression target : this.targets) {
+      if (!existing.containsKey(target)) {
+        missing.add(target);
+      }
+    }
+    return missing;
+  }
+
+  /**
+   * queues the gzip layer with the given diff_id, unless we already have every variant of it or it's already queued.
+   */
+
+  public void submit(final Digest layer, final Digest diffId) {
+
+    if (this.targets.isEmpty() || missing(diffId).isEmpty() || !this.pending.add(diffId)) {
+      return;
+    }
+
+    try {
+
+      this.executor.execute(() -> {
+        try {
+          this.transcode(layer, diffId);
+        }
+        catch (final Throwable ex) {
+          log.warn("failed to transcode {}", layer, ex);
+        }
+        finally {
+          this.pending.remove(diffId);
+        }
+      });
+
+    }
+    catch (final RejectedExecutionException ex) {
+      this.pending.remove(diffId);
+      log.debug("transcode queue full, dropping {}", layer);
+    }
+
+  }
+
+  void transcode(final Digest layer, final Digest diffId) throws IOException {
+
+    final Set<JpxCompression> missing = missing(diffId);
+
+    final BlobInfo blob = this.registry.stat(layer);
+
+    if (blob == null || missing.isEmpty()) {
+      return;
+    }
+
+    final long started = System.nanoTime();
+
+    final Map<JpxCompression, RegistryUploadSession> sessions = new EnumMap<>(JpxCompression.class);
+    final Map<JpxCompression, HashingOutputStream> hashes = new EnumMap<>(JpxCompression.class);
+    final List<OutputStream> outputs = new ArrayList<>();
+
+    try {
+
+      for (final JpxCompression target : missing) {
+
+        // the plain tar is its own diff_id, so may well be here already.
+        if (target == JpxCompression.NONE && this.registry.containsBlob(diffId)) {
+          this.variants.put(diffId, target, new Variant(diffId, this.registry.stat(diffId).size()));
+          continue;
+        }
+
+        final RegistryUploadSession session = this.registry.startUpload();
+        final HashingOutputStream hashed = new HashingOutputStream(Hashing.sha256(), session.openStream());
+
+        sessions.put(target, session);
+        hashes.put(target, hashed);
+        outputs.add(target.compress(hashed, (target == JpxCompression.ZSTD) ? this.level : target.defaultLevel()));
+
+      }
+
+      if (outputs.isEmpty()) {
+        return;
+      }
+
+      final HashingOutputStream tar = new HashingOutputStream(Hashing.sha256(), new Fanout(outputs));
+
+      try (InputStream in = JpxCompression.GZIP.decompress(new Throttled(blob.openStream()))) {
+        ByteStreams.copy(in, tar);
+      }
+
+      for (final OutputStream out : outputs) {
+        out.close();
+      }
+
+      if (!new Digest(tar.hash()).equals(diffId)) {
+        log.warn("{} doesn't match its diff_id {}, not transcoding", layer, diffId);
+        return;
+      }
+
+      for (final JpxCompression target : sessions.keySet()) {
+        final BlobInfo bi = this.registry.completeUpload(
+            sessions.get(target).uploadId(),
+            new Digest(hashes.get(target).hash()));
+        this.variants.put(diffId, target, new Variant(bi.digest(), bi.size()));
+      }
+
+      sessions.clear();
+
+      log.info("transcoded {} to {} in {}ms",
+          layer,
+          missing,
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+
+    }
+    finally {
+      // anything still here wasn't completed.
+      if (!sessions.isEmpty()) {
+        for (final OutputStream out : outputs) {
+          Closeables.close(out, true);
+        }
+        for (final RegistryUploadSession session : sessions.values()) {
+          this.registry.cancelUpload(session.uploadId());
+        }
+      }
+    }
+
+  }
+
+  public void shutdown() {
+    this.executor.shutdownNow();
+  }
+
+  /**
+   * writes to each of the streams.
+   */
+
+  private static class Fanout extends OutputStream {
+
+    private final List<OutputStream> outputs;
+
+    Fanout(final List<OutputStream> outputs) {
+      this.outputs = outputs;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+      for (final OutputStream out : this.outputs) {
+        out.write(b);
+      }
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+      for (final OutputStream out : this.outputs) {
+        out.write(b, off, len);
+      }
+    }
+
+  }
+
+  /**
+   * reads no faster than the rate, and not at all while there's foreground work.
+   */
+
+  private class Throttled extends FilterInputStream {
+
+    Throttled(final InputStream in) {
+      super(in);
+    }
+
+    private void pause() throws IOException {
+      try {
+        while (LayerTranscoder.this.foreground.getAsInt() > 0) {
+          Thread.sleep(IDLE_POLL_MILLIS);
+        }
+      }
+      catch (final InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+    }
+
+    private void acquire(final int bytes) {
+      if (bytes > 0 && LayerTranscoder.this.limiter != null) {
+        LayerTranscoder.this.limiter.acquire(bytes);
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      this.pause();
+      final int b = super.read();
+      this.acquire((b == -1) ? 0 : 1);
+      return b;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      this.pause();
+      final int read = super.read(b, off, len);
+      this.acquire(read);
+      return read;
+    }
+
+  }
+
+}
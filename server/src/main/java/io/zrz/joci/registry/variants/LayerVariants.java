@@ -0,0 +1,171 @@
+package io.zrz.joci.registry.variants;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+import io.zrz.joci.core.Digest;
+import io.zrz.joci.jpx.JpxCompression;
+
+/**
+ * the other forms we've stored each layer in, keyed by its diff_id (the digest of the uncompressed tar), which is the
+ * same whichever form it's in.
+ *
+ * each layer has a small JSON file, e.g base/ab/abcd..., giving the digest and size of each variant. it's replaced
+ * with a rename when a variant is added, so a reader never sees a partial one. the blobs themselves are in the
+ * registry as usual.
+ *
+ * @author theo
+ *
+ */
+
+public class LayerVariants {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  public static final long DEFAULT_CACHED_LAYERS = 100_000;
+
+  public static class Variant {
+
+    private final Digest digest;
+    private final long size;
+
+    public Variant(final Digest digest, final long size) {
+      this.digest = digest;
+      this.size = size;
+    }
+
+    public Digest digest() {
+      return this.digest;
+    }
+
+    public long size() {
+      return this.size;
+    }
+
+    @Override
+    public String toString() {
+      return "Variant(" + this.digest + ", " + this.size + ")";
+    }
+
+  }
+
+  private final Path base;
+
+  private final LoadingCache<Digest, Map<JpxCompression, Variant>> variants;
+
+  public LayerVariants(final Path base) {
+    this(base, DEFAULT_CACHED_LAYERS);
+  }
+
+  public LayerVariants(final Path base, final long cached) {
+    this.base = base;
+    this.variants = CacheBuilder.newBuilder()
+        .maximumSize(cached)
+        .build(CacheLoader.from(this::load));
+  }
+
+  private Path path(final Digest diffId) {
+    final String hash = diffId.hash();
+    if (hash.length() < 2 || hash.indexOf('/') != -1 || hash.indexOf('.') != -1) {
+      throw new IllegalArgumentException("invalid digest " + diffId);
+    }
+    return this.base.resolve(hash.substring(0, 2)).resolve(hash);
+  }
+
+  private Map<JpxCompression, Variant> load(final Digest diffId) {
+
+    final JsonNode node;
+
+    try {
+      node = MAPPER.readTree(Files.readAllBytes(path(diffId)));
+    }
+    catch (final NoSuchFileException ex) {
+      return Collections.emptyMap();
+    }
+    catch (final IOException ex) {
+      throw new RuntimeException(ex);
+    }
+
+    final Map<JpxCompression, Variant> variants = new EnumMap<>(JpxCompression.class);
+
+    node.fields().forEachRemaining(e -> variants.put(
+        JpxCompression.fromId(e.getKey()),
+        new Variant(new Digest(e.getValue().get("digest").asText()), e.getValue().get("size").asLong())));
+
+    return Collections.unmodifiableMap(variants);
+
+  }
+
+  /**
+   * the variants of the layer we have, which may be none.
+   */
+
+  public Map<JpxCompression, Variant> get(final Digest diffId) {
+    try {
+      return this.variants.get(diffId);
+    }
+    catch (final ExecutionException ex) {
+      throw new RuntimeException(ex.getCause());
+    }
+  }
+
+  /**
+   * the variant of the layer in the given form, or null if we don't have it.
+   */
+
+  public Variant get(final Digest diffId, final JpxCompression compression) {
+    return get(diffId).get(compression);
+  }
+
+  /**
+   * records a variant of the layer, once its blob is in the registry.
+   */
+
+  public synchronized void put(final Digest diffId, final JpxCompression compression, final Variant variant)
+      throws IOException {
+
+    final Map<JpxCompression, Variant> variants = new EnumMap<>(JpxCompression.class);
+
+    variants.putAll(load(diffId));
+    variants.put(compression, variant);
+
+    final ObjectNode node = JsonNodeFactory.instance.objectNode();
+
+    variants.forEach((c, v) -> node.putObject(c.id())
+        .put("digest", v.digest().toString())
+        .put("size", v.size()));
+
+    final Path path = path(diffId);
+
+    Files.createDirectories(path.getParent());
+
+    final Path temp = Files.createTempFile(path.getParent(), ".", ".tmp");
+
+    try {
+      MAPPER.writeValue(temp.toFile(), node);
+      Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+    finally {
+      Files.deleteIfExists(temp);
+    }
+
+    this.variants.put(diffId, Collections.unmodifiableMap(variants));
+
+  }
+
+}
@@ -0,0 +1,60 @@
+package io.zrz.joci.registry;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.google.common.collect.Range;
+
+public class RangeHeaderTest {
+
+  @Test
+  public void test() {
+
+    assertEquals(asList(Range.closed(0L, 99L)), RangeHeader.fromValue("bytes=0-99").resolve(1000));
+    assertEquals(asList(Range.closed(0L, 999L)), RangeHeader.fromValue("bytes=0-5000").resolve(1000));
+    assertEquals(asList(Range.closed(100L, 999L)), RangeHeader.fromValue("bytes=100-").resolve(1000));
+    assertEquals(asList(Range.closed(900L, 999L)), RangeHeader.fromValue("bytes=-100").resolve(1000));
+    assertEquals(asList(Range.closed(0L, 999L)), RangeHeader.fromValue("bytes=-5000").resolve(1000));
+
+    assertEquals(
+        asList(Range.closed(0L, 0L), Range.closed(999L, 999L)),
+        RangeHeader.fromValue("bytes=0-0, -1").resolve(1000));
+
+    // unsatisfiable
+    assertTrue(RangeHeader.fromValue("bytes=1000-").resolve(1000).isEmpty());
+    assertTrue(RangeHeader.fromValue("bytes=-0").resolve(1000).isEmpty());
+
+    // single ranges still work for uploads.
+    assertEquals(Range.closed(0L, 99L), RangeHeader.fromValue("Range: bytes=0-99").getRange());
+    assertEquals("Range: bytes=0-99,-1", RangeHeader.fromValue("bytes=0-99,-1").toString());
+
+  }
+
+  @Test
+  public void testContentRange() {
+    assertEquals(Range.closed(0L, 99L), RangeHeader.fromContentRange("0-99"));
+    assertEquals(Range.closed(100L, 199L), RangeHeader.fromContentRange("bytes 100-199/*"));
+    assertEquals(Range.closed(100L, 199L), RangeHeader.fromContentRange("bytes=100-199"));
+    assertNull(RangeHeader.fromContentRange(null));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidContentRange() {
+    RangeHeader.fromContentRange("99-0");
+  }
+
+  @Test
+  public void testInvalid() {
+    // ignored, rather than rejected.
+    assertNull(RangeHeader.fromValue("bytes=99-0"));
+    assertNull(RangeHeader.fromValue("bytes=a-b"));
+    assertNull(RangeHeader.fromValue("bytes=-"));
+    assertNull(RangeHeader.fromValue("items=0-99"));
+    assertNull(RangeHeader.fromValue("0-99"));
+  }
+
+}
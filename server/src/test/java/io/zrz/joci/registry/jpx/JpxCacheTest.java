@@ -2,15 +2,33 @@ package io.zrz.joci.registry.jpx;
 
 import static com.google.common.hash.HashCode.fromString;
 import static io.zrz.joci.registry.jpx.MockBlobInfo.blobInfo;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Arrays.asList;
 import static org.apache.commons.lang3.tuple.Pair.of;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang3.tuple.Pair;
 import org.junit.Test;
@@ -18,6 +36,7 @@ import org.junit.Test;
 import com.google.common.io.MoreFiles;
 import com.google.common.io.RecursiveDeleteOption;
 
+import io.zrz.joci.jpx.JpxCompression;
 import io.zrz.joci.registry.jpx.JpxBuilder.Layer;
 
 public class JpxCacheTest {
@@ -56,4 +75,275 @@ public class JpxCacheTest {
 
   }
 
+  @Test
+  public void testSingleFlight() throws Exception {
+
+    Path tempdir = Files.createTempDirectory("cache-tests");
+
+    JpxCache cache = new JpxCache(tempdir);
+
+    AtomicInteger builds = new AtomicInteger();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+
+    JpxCache.LayerBuild build = () -> {
+      builds.incrementAndGet();
+      started.countDown();
+      try {
+        release.await();
+      }
+      catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      return new Layer(blobInfo("ccc"), asList(of(blobInfo("xxx"), "")), fromString("1234"), fromString("5678"));
+    };
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    try {
+
+      Future<Layer> first = executor.submit(() -> cache.get(
+          asList(of(blobInfo("xxx"), "")), Optional.empty(), JpxCompression.GZIP, 6, build));
+
+      started.await();
+
+      Future<Layer> second = executor.submit(() -> cache.get(
+          asList(of(blobInfo("xxx"), "")), Optional.empty(), JpxCompression.GZIP, 6, build));
+
+      // give the second a chance to find the build in progress.
+      Thread.sleep(100);
+
+      release.countDown();
+
+      assertEquals(fromString("1234"), first.get(10, TimeUnit.SECONDS).compressedHash());
+      assertEquals(fromString("1234"), second.get(10, TimeUnit.SECONDS).compressedHash());
+      assertEquals(1, builds.get());
+
+      // and now it's cached.
+      assertNotNull(cache.inCache(asList(of(blobInfo("xxx"), ""))));
+
+    }
+    finally {
+      executor.shutdownNow();
+      MoreFiles.deleteRecursively(tempdir, RecursiveDeleteOption.ALLOW_INSECURE);
+    }
+
+  }
+
+  @Test
+  public void testReloadAndEvict() throws IOException {
+
+    Path tempdir = Files.createTempDirectory("cache-tests");
+
+    try {
+
+      Clock day1 = Clock.fixed(Instant.parse("2019-01-01T00:00:00Z"), ZoneOffset.UTC);
+      Clock day3 = Clock.offset(day1, Duration.ofDays(2));
+
+      JpxCache cache = new JpxCache(tempdir, 10, 2, Duration.ofDays(1), day1);
+
+      cache.add(new Layer(blobInfo("ccc"), asList(of(blobInfo("xxx"), "")), fromString("1234"), fromString("5678")));
+      cache.add(new Layer(blobInfo("ddd"), asList(of(blobInfo("yyy"), "")), fromString("abcd"), fromString("ef01")));
+
+      assertNotNull(cache.inCache(asList(of(blobInfo("xxx"), ""))));
+      assertNull(cache.inCache(asList(of(blobInfo("zzz"), ""))));
+
+      assertEquals(1, cache.stats().hits);
+      assertEquals(1, cache.stats().misses);
+
+      cache.compact();
+      cache.close();
+
+      // from the index, and the entry appended after it.
+      cache = new JpxCache(tempdir, 10, 2, Duration.ofDays(1), day1);
+      cache.add(new Layer(blobInfo("eee"), asList(of(blobInfo("zzz"), "")), fromString("2345"), fromString("6789")));
+      cache.close();
+
+      cache = new JpxCache(tempdir, 10, 2, Duration.ofDays(1), day1);
+
+      assertEquals(3, cache.stats().entries);
+      assertEquals(fromString("abcd"), cache.inCache(asList(of(blobInfo("yyy"), ""))).compressedHash());
+
+      cache.compact();
+
+      assertEquals(1, cache.stats().evictions);
+      assertEquals(2, cache.stats().entries);
+      cache.close();
+
+      // nothing has been used in the last day.
+      cache = new JpxCache(tempdir, 10, 2, Duration.ofDays(1), day3);
+      cache.compact();
+
+      assertEquals(2, cache.stats().evictions);
+      assertNull(cache.inCache(asList(of(blobInfo("yyy"), ""))));
+      cache.close();
+
+    }
+    finally {
+      MoreFiles.deleteRecursively(tempdir, RecursiveDeleteOption.ALLOW_INSECURE);
+    }
+
+  }
+
+  @Test
+  public void testStaleIndex() throws IOException {
+
+    Path tempdir = Files.createTempDirectory("cache-tests");
+
+    try {
+
+      // a second later each time it's asked, so the last added is the most recently used.
+      AtomicLong now = new AtomicLong(Instant.parse("2019-01-01T00:00:00Z").toEpochMilli());
+
+      Clock clock = new Clock() {
+
+        @Override
+        public ZoneId getZone() {
+          return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+          return this;
+        }
+
+        @Override
+        public Instant instant() {
+          return Instant.ofEpochMilli(now.addAndGet(1000));
+        }
+
+      };
+
+      JpxCache cache = new JpxCache(tempdir, 10, 1, Duration.ofDays(1), clock);
+
+      cache.add(new Layer(blobInfo("ccc"), asList(of(blobInfo("xxx"), "")), fromString("1234"), fromString("5678")));
+      cache.compact();
+      cache.add(new Layer(blobInfo("ddd"), asList(of(blobInfo("yyy"), "")), fromString("abcd"), fromString("ef01")));
+      cache.add(new Layer(blobInfo("eee"), asList(of(blobInfo("zzz"), "")), fromString("2345"), fromString("6789")));
+      cache.compact();
+
+      byte[] stale = Files.readAllBytes(tempdir.resolve(JpxCacheLog.INDEX));
+
+      cache.add(new Layer(blobInfo("fff"), asList(of(blobInfo("www"), "")), fromString("3456"), fromString("789a")));
+      cache.add(new Layer(blobInfo("ggg"), asList(of(blobInfo("vvv"), "")), fromString("4567"), fromString("89ab")));
+      cache.compact();
+      cache.close();
+
+      // as if it had crashed after replacing the log but before writing the index.
+      Files.write(tempdir.resolve(JpxCacheLog.INDEX), stale);
+
+      cache = new JpxCache(tempdir, 10, 1, Duration.ofDays(1), clock);
+
+      assertNull(cache.inCache(asList(of(blobInfo("zzz"), ""))));
+      assertEquals(fromString("4567"), cache.inCache(asList(of(blobInfo("vvv"), ""))).compressedHash());
+
+      cache.compact();
+      cache.close();
+
+      // and a line which isn't an entry at all, after those the index has.
+      Files.write(tempdir.resolve(JpxCacheLog.LOG), "{\"key\":\n".getBytes(UTF_8), StandardOpenOption.APPEND);
+
+      cache = new JpxCache(tempdir, 10, 1, Duration.ofDays(1), clock);
+
+      assertEquals(fromString("4567"), cache.inCache(asList(of(blobInfo("vvv"), ""))).compressedHash());
+
+      cache.close();
+
+    }
+    finally {
+      MoreFiles.deleteRecursively(tempdir, RecursiveDeleteOption.ALLOW_INSECURE);
+    }
+
+  }
+
+  @Test
+  public void testMisplacedIndex() throws IOException {
+
+    Path tempdir = Files.createTempDirectory("cache-tests");
+
+    try {
+
+      JpxCache cache = new JpxCache(tempdir);
+
+      cache.add(new Layer(blobInfo("ccc"), asList(of(blobInfo("xxx"), "")), fromString("1234"), fromString("5678")));
+      cache.add(new Layer(blobInfo("ddd"), asList(of(blobInfo("yyy"), "")), fromString("abcd"), fromString("ef01")));
+      cache.add(new Layer(blobInfo("eee"), asList(of(blobInfo("zzz"), "")), fromString("2345"), fromString("6789")));
+      cache.compact();
+      cache.close();
+
+      // shifting the log along means the index's offsets land part way through a line.
+      Path log = tempdir.resolve(JpxCacheLog.LOG);
+      byte[] lines = Files.readAllBytes(log);
+      byte[] shifted = new byte[lines.length + 3];
+      System.arraycopy("{}\n".getBytes(UTF_8), 0, shifted, 0, 3);
+      System.arraycopy(lines, 0, shifted, 3, lines.length);
+      Files.write(log, shifted);
+
+      cache = new JpxCache(tempdir);
+
+      assertEquals(fromString("1234"), cache.inCache(asList(of(blobInfo("xxx"), ""))).compressedHash());
+      assertEquals(fromString("abcd"), cache.inCache(asList(of(blobInfo("yyy"), ""))).compressedHash());
+      assertEquals(fromString("2345"), cache.inCache(asList(of(blobInfo("zzz"), ""))).compressedHash());
+
+      cache.compact();
+      cache.close();
+
+      // an index which is right about the last entry, but not one before it.
+      lines = Files.readAllBytes(log);
+      for (int i = 0; lines[i] != '\n'; ++i) {
+        lines[i] = ' ';
+      }
+      Files.write(log, lines);
+
+      cache = new JpxCache(tempdir);
+
+      int found = 0;
+      for (String jar : asList("xxx", "yyy", "zzz")) {
+        if (cache.inCache(asList(of(blobInfo(jar), ""))) != null) {
+          found++;
+        }
+      }
+      assertEquals(2, found);
+
+      cache.close();
+
+    }
+    finally {
+      MoreFiles.deleteRecursively(tempdir, RecursiveDeleteOption.ALLOW_INSECURE);
+    }
+
+  }
+
+  @Test
+  public void testFragmentEviction() throws IOException {
+
+    Path tempdir = Files.createTempDirectory("cache-tests");
+
+    try {
+
+      JpxCache cache = new JpxCache(tempdir);
+
+      FileTime old = FileTime.from(Instant.now().minus(Duration.ofDays(31)));
+
+      Path fragment = cache.fragments().get(blobInfo("xxx"), "x.jar", 6);
+
+      // using it again means it's kept.
+      Files.setLastModifiedTime(fragment, old);
+      assertEquals(fragment, cache.fragments().get(blobInfo("xxx"), "x.jar", 6));
+      cache.compact();
+      assertTrue(Files.exists(fragment));
+
+      Files.setLastModifiedTime(fragment, old);
+      cache.compact();
+      assertFalse(Files.exists(fragment));
+
+      cache.close();
+
+    }
+    finally {
+      MoreFiles.deleteRecursively(tempdir, RecursiveDeleteOption.ALLOW_INSECURE);
+    }
+
+  }
+
 }
@@ -0,0 +1,61 @@
+package io.zrz.joci.registry.jpx;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+
+import io.zrz.joci.registry.jpx.JpxChurn.Tier;
+
+public class JpxChurnTest {
+
+  @Test
+  public void test() throws IOException {
+
+    Path tempdir = Files.createTempDirectory("churn-tests");
+
+    try {
+
+      JpxChurn churn = new JpxChurn(tempdir);
+
+      for (int i = 0; i < 4; ++i) {
+        churn.record("app", ImmutableMap.of("com.example:internal", "sha256:" + i, "com.google:guava", "sha256:g"));
+        // pushing the same again isn't counted.
+        churn.record("app", ImmutableMap.of("com.example:internal", "sha256:" + i, "com.google:guava", "sha256:g"));
+      }
+
+      churn.record("app", ImmutableMap.of("com.example:internal", "sha256:3", "com.google:guava", "sha256:h"));
+
+      Map<String, Tier> tiers = new JpxChurn(tempdir).tiers("app", Arrays.asList("com.example:internal", "com.google:guava", "new"));
+
+      assertEquals(Tier.FREQUENT, tiers.get("com.example:internal"));
+      assertEquals(Tier.OCCASIONAL, tiers.get("com.google:guava"));
+      assertEquals(Tier.RARE, tiers.get("new"));
+
+      // each repository has its own.
+      assertEquals(Tier.RARE, churn.tiers("other", Arrays.asList("com.example:internal")).get("com.example:internal"));
+
+      // and it ages out.
+      for (int i = 0; i < JpxChurn.WINDOW; ++i) {
+        churn.record("app", ImmutableMap.of("com.example:internal", "sha256:3", "com.google:guava", "sha256:h", "x", "sha256:" + i));
+      }
+
+      assertEquals(Tier.RARE, churn.tiers("app", Arrays.asList("com.example:internal")).get("com.example:internal"));
+
+    }
+    finally {
+      MoreFiles.deleteRecursively(tempdir, RecursiveDeleteOption.ALLOW_INSECURE);
+    }
+
+  }
+
+}
@@ -0,0 +1,113 @@
+package io.zrz.joci.registry.jpx;
+
+import static io.zrz.joci.registry.jpx.MockBlobInfo.blobInfo;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+
+import io.zrz.joci.spi.RegistryProvider.BlobInfo;
+
+public class JpxLayeringTest {
+
+  private static JpxLayering.Jar jar(String name, int size, String group) {
+    return new JpxLayering.Jar(blobInfo(Strings.repeat("x", size) + name), name, group);
+  }
+
+  private static List<List<String>> names(List<List<Pair<BlobInfo, String>>> split) {
+    return split.stream()
+        .map(layer -> layer.stream().map(Pair::getValue).collect(Collectors.toList()))
+        .collect(Collectors.toList());
+  }
+
+  @Test
+  public void testSingle() {
+
+    List<JpxLayering.Jar> jars = asList(jar("b.jar", 10, "g"), jar("a.jar", 10, "g"));
+
+    // classpath order, as before.
+    assertEquals(asList(asList("b.jar", "a.jar")), names(JpxLayering.SINGLE.split(jars)));
+
+  }
+
+  @Test
+  public void testSplit() {
+
+    List<JpxLayering.Jar> jars = asList(
+        jar("netty-codec.jar", 60, "io.netty"),
+        jar("small.jar", 5, "org.small"),
+        jar("guava.jar", 80, "com.google.guava"),
+        jar("netty-buffer.jar", 60, "io.netty"),
+        jar("huge.jar", 90, null),
+        jar("tiny.jar", 1, null));
+
+    JpxLayering layering = new JpxLayering(4, 50, 100);
+
+    assertEquals(
+        asList(
+            asList("netty-buffer.jar", "netty-codec.jar"),
+            asList("guava.jar", "huge.jar"),
+            asList("small.jar", "tiny.jar")),
+        names(layering.split(jars)));
+
+    // the same JARs in a different order give the same layers.
+    assertEquals(names(layering.split(jars)), names(layering.split(asList(
+        jars.get(5), jars.get(4), jars.get(3), jars.get(2), jars.get(1), jars.get(0)))));
+
+  }
+
+  @Test
+  public void testLimit() {
+
+    List<JpxLayering.Jar> jars = asList(
+        jar("a.jar", 30, "a"),
+        jar("b.jar", 20, "b"),
+        jar("c.jar", 10, "c"));
+
+    // one group layer, then the rest.
+    assertEquals(
+        asList(asList("a.jar"), asList("b.jar", "c.jar")),
+        names(new JpxLayering(3, 1000, 10).split(jars)));
+
+    assertEquals(asList(asList()), names(new JpxLayering(3).split(asList())));
+
+  }
+
+  @Test
+  public void testTiered() {
+
+    List<JpxLayering.Jar> jars = asList(
+        jar("internal.jar", 10, "com.example"),
+        jar("guava.jar", 80, "com.google.guava"),
+        jar("util.jar", 10, "com.example"),
+        jar("api.jar", 10, "com.example"));
+
+    Map<String, JpxChurn.Tier> tiers = ImmutableMap.of(
+        "internal.jar", JpxChurn.Tier.FREQUENT,
+        "util.jar", JpxChurn.Tier.OCCASIONAL);
+
+    assertEquals(
+        asList(asList("api.jar", "guava.jar"), asList("util.jar"), asList("internal.jar")),
+        names(new JpxLayering(1, 50, 100, true).split(jars, tiers)));
+
+    // ignored unless tiered.
+    assertEquals(
+        asList(asList("internal.jar", "guava.jar", "util.jar", "api.jar")),
+        names(JpxLayering.SINGLE.split(jars, tiers)));
+
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTooManyLayers() {
+    new JpxLayering(JpxLayering.MAX_STABLE_LAYERS + 1);
+  }
+
+}